@@ -321,14 +321,9 @@ public class TerminalFragment extends Fragment implements SerialInputOutputManag
     }
 
     class ControlLines {
-        private static final int refreshInterval = 200; // msec
-
-        private final Runnable runnable;
         private final ToggleButton rtsBtn, ctsBtn, dtrBtn, dsrBtn, cdBtn, riBtn;
 
         ControlLines(View view) {
-            runnable = this::run; // w/o explicit Runnable, a new lambda would be created on each postDelayed, which would not be found again by removeCallbacks
-
             rtsBtn = view.findViewById(R.id.controlLineRts);
             ctsBtn = view.findViewById(R.id.controlLineCts);
             dtrBtn = view.findViewById(R.id.controlLineDtr);
@@ -355,21 +350,13 @@ public class TerminalFragment extends Fragment implements SerialInputOutputManag
             }
         }
 
-        private void run() {
-            if (!connected)
-                return;
-            try {
-                EnumSet<UsbSerialPort.ControlLine> controlLines = usbSerialPort.getControlLines();
-                rtsBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.RTS));
-                ctsBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.CTS));
-                dtrBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.DTR));
-                dsrBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.DSR));
-                cdBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.CD));
-                riBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.RI));
-                mainLooper.postDelayed(runnable, refreshInterval);
-            } catch (Exception e) {
-                status("getControlLines() failed: " + e.getMessage() + " -> stopped control line refresh");
-            }
+        private void update(EnumSet<UsbSerialPort.ControlLine> controlLines) {
+            rtsBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.RTS));
+            ctsBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.CTS));
+            dtrBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.DTR));
+            dsrBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.DSR));
+            cdBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.CD));
+            riBtn.setChecked(controlLines.contains(UsbSerialPort.ControlLine.RI));
         }
 
         void start() {
@@ -383,7 +370,12 @@ public class TerminalFragment extends Fragment implements SerialInputOutputManag
                 if (!controlLines.contains(UsbSerialPort.ControlLine.DSR)) dsrBtn.setVisibility(View.INVISIBLE);
                 if (!controlLines.contains(UsbSerialPort.ControlLine.CD))   cdBtn.setVisibility(View.INVISIBLE);
                 if (!controlLines.contains(UsbSerialPort.ControlLine.RI))   riBtn.setVisibility(View.INVISIBLE);
-                run();
+                if (controlLines.isEmpty())
+                    return;
+                update(usbSerialPort.getControlLines());
+                controlLines.removeAll(EnumSet.of(UsbSerialPort.ControlLine.RTS, UsbSerialPort.ControlLine.DTR));
+                if (!controlLines.isEmpty()) // input lines
+                    usbSerialPort.setControlLineListener(lines -> mainLooper.post(() -> update(lines)));
             } catch (Exception e) {
                 Toast.makeText(getActivity(), "getSupportedControlLines() failed: " + e.getMessage(), Toast.LENGTH_SHORT).show();
                 rtsBtn.setVisibility(View.INVISIBLE);
@@ -397,7 +389,10 @@ public class TerminalFragment extends Fragment implements SerialInputOutputManag
         }
 
         void stop() {
-            mainLooper.removeCallbacks(runnable);
+            try {
+                if (usbSerialPort != null)
+                    usbSerialPort.setControlLineListener(null);
+            } catch (IOException ignored) {}
             rtsBtn.setChecked(false);
             ctsBtn.setChecked(false);
             dtrBtn.setChecked(false);
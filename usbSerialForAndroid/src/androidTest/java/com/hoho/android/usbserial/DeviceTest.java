@@ -32,6 +32,7 @@ import com.hoho.android.usbserial.driver.ProbeTable;
 import com.hoho.android.usbserial.driver.ProlificSerialDriver;
 import com.hoho.android.usbserial.driver.ProlificSerialPortWrapper;
 import com.hoho.android.usbserial.driver.SerialTimeoutException;
+import com.hoho.android.usbserial.driver.UsbId;
 import com.hoho.android.usbserial.driver.UsbSerialDriver;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
 import com.hoho.android.usbserial.driver.UsbSerialProber;
@@ -62,6 +63,7 @@ import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
@@ -423,6 +425,8 @@ public class DeviceTest {
     @Test
     public void ftdiBaudRate() throws Exception {
         Assume.assumeTrue("only for FTDI", usb.serialDriver instanceof FtdiSerialDriver);
+        int productId = usb.serialDriver.getDevice().getProductId();
+        boolean highSpeedClock = productId == UsbId.FTDI_FT232H || productId == UsbId.FTDI_FT2232H || productId == UsbId.FTDI_FT4232H;
 
         usb.open();
         try {
@@ -441,6 +445,22 @@ public class DeviceTest {
         usb.setParameters(1333333, 8, 1, UsbSerialPort.PARITY_NONE);
         usb.setParameters(1411764, 8, 1, UsbSerialPort.PARITY_NONE);
         usb.setParameters(1500000, 8, 1, UsbSerialPort.PARITY_NONE);
+        if (highSpeedClock) {
+            // 120 MHz clock, fine enough granularity for these rates
+            usb.setParameters((int)(2000000/1.04), 8, 1, UsbSerialPort.PARITY_NONE);
+            usb.setParameters(2000000, 8, 1, UsbSerialPort.PARITY_NONE);
+            usb.setParameters((int)(2000000*1.04), 8, 1, UsbSerialPort.PARITY_NONE);
+            usb.setParameters(3000000, 8, 1, UsbSerialPort.PARITY_NONE);
+            usb.setParameters(4000000, 8, 1, UsbSerialPort.PARITY_NONE);
+            usb.setParameters(6000000, 8, 1, UsbSerialPort.PARITY_NONE);
+            usb.setParameters(12000000, 8, 1, UsbSerialPort.PARITY_NONE);
+            try {
+                usb.setParameters(15000000, 8, 1, UsbSerialPort.PARITY_NONE);
+                fail("baud rate to high expected");
+            } catch (UnsupportedOperationException ignored) {
+            }
+            return;
+        }
         try {
             usb.setParameters((int)(2000000/1.04), 8, 1, UsbSerialPort.PARITY_NONE);
             fail("baud rate error expected");
@@ -493,6 +513,30 @@ public class DeviceTest {
         }
     }
 
+    @Test
+    public void Ch34xFastOpen() throws Exception {
+        Assume.assumeTrue("only for Ch34x", usb.serialDriver instanceof Ch34xSerialDriver);
+        Ch34xSerialDriver.Ch340SerialPort port = (Ch34xSerialDriver.Ch340SerialPort) usb.serialPort;
+
+        long regularTime = System.nanoTime();
+        usb.open(EnumSet.of(UsbWrapper.OpenCloseFlags.NO_CONTROL_LINE_INIT));
+        usb.setParameters(115200, 8, 1, UsbSerialPort.PARITY_NONE);
+        regularTime = System.nanoTime() - regularTime;
+        usb.close();
+
+        port.setFastOpen(115200, 8, 1, UsbSerialPort.PARITY_NONE);
+        try {
+            long fastTime = System.nanoTime();
+            usb.open(EnumSet.of(UsbWrapper.OpenCloseFlags.NO_CONTROL_LINE_INIT));
+            fastTime = System.nanoTime() - fastTime;
+            Log.i(TAG, "open latency: regular " + regularTime / 1000 + " usec, fast " + fastTime / 1000 + " usec");
+            telnet.setParameters(115200, 8, 1, UsbSerialPort.PARITY_NONE);
+            doReadWrite("");
+        } finally {
+            port.disableFastOpen();
+        }
+    }
+
     @Test
     public void baudRate() throws Exception {
         usb.open();
@@ -1751,6 +1795,8 @@ public class DeviceTest {
 
         Boolean inputLineFalse = usb.inputLinesSupported ? Boolean.FALSE : null;
         Boolean inputLineTrue = usb.inputLinesConnected ? Boolean.TRUE : inputLineFalse;
+        Boolean ctsLineFalse = usb.inputLinesWithoutCts ? null : inputLineFalse;
+        Boolean ctsLineTrue = usb.inputLinesWithoutCts ? null : inputLineTrue;
 
         EnumSet<ControlLine> supportedControlLines = EnumSet.noneOf(ControlLine.class);
         if(usb.outputLinesSupported) {
@@ -1758,7 +1804,8 @@ public class DeviceTest {
             supportedControlLines.add(ControlLine.DTR);
         }
         if(usb.inputLinesSupported) {
-            supportedControlLines.add(ControlLine.CTS);
+            if(!usb.inputLinesWithoutCts)
+                supportedControlLines.add(ControlLine.CTS);
             supportedControlLines.add(ControlLine.DSR);
             supportedControlLines.add(ControlLine.CD);
             supportedControlLines.add(ControlLine.RI);
@@ -1791,7 +1838,7 @@ public class DeviceTest {
                         : EnumSet.noneOf(ControlLine.class),
                 usb.serialPort.getControlLines());
         assertThat(usb.getControlLine(usb.serialPort::getRTS), equalTo(Boolean.FALSE));
-        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(inputLineFalse));
+        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(ctsLineFalse));
         assertThat(usb.getControlLine(usb.serialPort::getDTR), equalTo(Boolean.FALSE));
         assertThat(usb.getControlLine(usb.serialPort::getDSR), equalTo(inputLineFalse));
         assertThat(usb.getControlLine(usb.serialPort::getCD), equalTo(inputLineFalse));
@@ -1809,7 +1856,7 @@ public class DeviceTest {
                         : EnumSet.of(ControlLine.RTS),
                 usb.serialPort.getControlLines());
         assertThat(usb.getControlLine(usb.serialPort::getRTS), equalTo(Boolean.TRUE));
-        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(inputLineTrue));
+        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(ctsLineTrue));
         assertThat(usb.getControlLine(usb.serialPort::getDTR), equalTo(Boolean.FALSE));
         assertThat(usb.getControlLine(usb.serialPort::getDSR), equalTo(inputLineFalse));
         assertThat(usb.getControlLine(usb.serialPort::getCD), equalTo(inputLineFalse));
@@ -1829,7 +1876,7 @@ public class DeviceTest {
                 : EnumSet.of(ControlLine.RTS, ControlLine.DTR),
                 usb.serialPort.getControlLines());
         assertThat(usb.getControlLine(usb.serialPort::getRTS), equalTo(Boolean.TRUE));
-        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(usb.inputLinesOnlyRtsCts ? Boolean.TRUE : inputLineFalse));
+        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(usb.inputLinesOnlyRtsCts ? Boolean.TRUE : ctsLineFalse));
         assertThat(usb.getControlLine(usb.serialPort::getDTR), equalTo(Boolean.TRUE));
         assertThat(usb.getControlLine(usb.serialPort::getDSR), equalTo(inputLineFalse));
         assertThat(usb.getControlLine(usb.serialPort::getCD), equalTo(usb.inputLinesOnlyRtsCts ? Boolean.FALSE : inputLineTrue));
@@ -1847,7 +1894,7 @@ public class DeviceTest {
                         : EnumSet.of(ControlLine.DTR),
                 usb.serialPort.getControlLines());
         assertThat(usb.getControlLine(usb.serialPort::getRTS), equalTo(Boolean.FALSE));
-        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(inputLineFalse));
+        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(ctsLineFalse));
         assertThat(usb.getControlLine(usb.serialPort::getDTR), equalTo(Boolean.TRUE));
         assertThat(usb.getControlLine(usb.serialPort::getDSR), equalTo(usb.inputLinesOnlyRtsCts ? Boolean.FALSE : inputLineTrue));
         assertThat(usb.getControlLine(usb.serialPort::getCD), equalTo(inputLineFalse));
@@ -1871,7 +1918,7 @@ public class DeviceTest {
         if(inputRetained)  retainedControlLines.add(ControlLine.CTS);
         assertEquals(retainedControlLines, usb.serialPort.getControlLines());
         assertThat(usb.getControlLine(usb.serialPort::getRTS), equalTo(outputRetained));
-        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(inputRetained ? inputLineTrue : inputLineFalse));
+        assertThat(usb.getControlLine(usb.serialPort::getCTS), equalTo(inputRetained ? ctsLineTrue : ctsLineFalse));
         assertThat(usb.getControlLine(usb.serialPort::getDTR), equalTo(Boolean.FALSE));
         assertThat(usb.getControlLine(usb.serialPort::getDSR), equalTo(inputLineFalse));
         assertThat(usb.getControlLine(usb.serialPort::getCD), equalTo(inputLineFalse));
@@ -1921,7 +1968,7 @@ public class DeviceTest {
         }
 
         try {
-            if (usb.serialDriver instanceof ProlificSerialDriver) {
+            if (usb.serialDriver instanceof ProlificSerialDriver || usb.serialDriver instanceof CdcAcmSerialDriver) {
                 for(int i = 0; i < 10; i++) { // can take some time until background thread fails
                     usb.serialPort.getRI();
                     Thread.sleep(100);
@@ -1935,6 +1982,54 @@ public class DeviceTest {
         }
     }
 
+    @Test
+    public void controlLineListener() throws Exception {
+        int sleep = 300; // > ControlLinePoller.POLL_INTERVAL_MILLIS
+        usb.open(EnumSet.of(UsbWrapper.OpenCloseFlags.NO_CONTROL_LINE_INIT));
+        usb.setParameters(19200, 8, 1, UsbSerialPort.PARITY_NONE);
+
+        EnumSet<ControlLine> inputLines = usb.serialPort.getSupportedControlLines();
+        inputLines.removeAll(EnumSet.of(ControlLine.RTS, ControlLine.DTR));
+        if(inputLines.isEmpty()) {
+            assertThrows(UnsupportedOperationException.class, () -> usb.serialPort.setControlLineListener(controlLines -> {}));
+            return;
+        }
+        LinkedBlockingDeque<EnumSet<ControlLine>> notifications = new LinkedBlockingDeque<>();
+        usb.serialPort.setControlLineListener(notifications::add);
+        Thread.sleep(sleep);
+        assertEquals(1, notifications.size()); // initial state
+        assertEquals(usb.serialPort.getControlLines(), notifications.getLast());
+        notifications.clear();
+        usb.serialPort.setDTR(false); // output lines only, no notification
+        Thread.sleep(sleep);
+        assertEquals(0, notifications.size());
+        if(usb.inputLinesConnected) {
+            usb.serialPort.setRTS(true);
+            Thread.sleep(sleep);
+            assertEquals(1, notifications.size());
+            assertTrue(notifications.getLast().contains(ControlLine.CTS));
+            usb.serialPort.setRTS(false);
+            Thread.sleep(sleep);
+            assertEquals(2, notifications.size());
+            assertFalse(notifications.getLast().contains(ControlLine.CTS));
+        }
+
+        // listener retained over close+open
+        notifications.clear();
+        usb.close(EnumSet.of(UsbWrapper.OpenCloseFlags.NO_CONTROL_LINE_INIT));
+        usb.open(EnumSet.of(UsbWrapper.OpenCloseFlags.NO_CONTROL_LINE_INIT));
+        Thread.sleep(sleep);
+        assertEquals(1, notifications.size());
+
+        notifications.clear();
+        usb.serialPort.setControlLineListener(null);
+        if(usb.inputLinesConnected) {
+            usb.serialPort.setRTS(true);
+            Thread.sleep(sleep);
+            assertEquals(0, notifications.size());
+        }
+    }
+
     @Test
     public void flowControlBase() throws Exception {
         usb.open();
@@ -2503,9 +2598,17 @@ public class DeviceTest {
         telnet.write("x".getBytes());
         b = usb.read(1);
         long t3 = System.currentTimeMillis();
+        ftdiSerialPort.setEventChar('\n');
+        telnet.write("x\n".getBytes());
+        b = usb.read(2);
+        long t4 = System.currentTimeMillis();
+        ftdiSerialPort.setEventChar(-1);
+        assertEquals(-1, ftdiSerialPort.getEventChar());
         ftdiSerialPort.setLatencyTimer(lt);
         assertTrue("latency 1: expected < 100, got "+ (t2-t1), (t2-t1) < 100);
         assertTrue("latency 100: expected >= 100, got " + (t3-t2), (t3-t2) >= 100);
+        assertTrue("latency 100 + event char: expected < 100, got " + (t4-t3), (t4-t3) < 100);
+        assertThrows(IllegalArgumentException.class, () -> ftdiSerialPort.setEventChar(256));
 
         usb.deviceConnection.close();
         try {
@@ -63,6 +63,7 @@ public class UsbWrapper implements SerialInputOutputManager.Listener {
     public boolean inputLinesSupported;
     public boolean inputLinesConnected;
     public boolean inputLinesOnlyRtsCts;
+    public boolean inputLinesWithoutCts;
     public int writePacketSize = -1;
     public int writeBufferSize = -1;
     public int readBufferSize = -1;
@@ -107,7 +108,7 @@ public class UsbWrapper implements SerialInputOutputManager.Listener {
         // extract some device properties:
         isCp21xxRestrictedPort = serialDriver instanceof Cp21xxSerialDriver && serialDriver.getPorts().size()==2 && serialPort.getPortNumber() == 1;
         // output lines are supported by all common drivers
-        // input lines are supported by all common drivers except CDC
+        // input lines are supported by all common drivers, CDC has no CTS
         if (serialDriver instanceof FtdiSerialDriver) {
             outputLinesSupported = true;
             inputLinesSupported = true;
@@ -133,6 +134,8 @@ public class UsbWrapper implements SerialInputOutputManager.Listener {
                 inputLinesConnected = true;  // I only have 74LS138 connected at CH340, not connected at CH341A
         } else if (serialDriver instanceof CdcAcmSerialDriver) {
             outputLinesSupported = true;
+            inputLinesSupported = true;
+            inputLinesWithoutCts = true; // and DSR, CD, RI only if device sends SERIAL_STATE notification
         }
 
         if (serialDriver instanceof Cp21xxSerialDriver) {
@@ -8,12 +8,12 @@ package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.util.Log;
 
-import com.hoho.android.usbserial.util.HexDump;
-import com.hoho.android.usbserial.util.UsbUtils;
+import com.hoho.android.usbserial.util.UsbDescriptors;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -24,6 +24,10 @@ import java.util.Map;
 
 /**
  * USB CDC/ACM serial driver implementation.
+ * <p>
+ * Also used for newer Qinheng chips like CH342, CH343, CH344 and CH9102. They implement CDC/ACM
+ * with one IAD function per port and calculate baud rate prescaler and divisor from the
+ * SET_LINE_CODING rate, so rates up to 6 Mbaud work without vendor specific requests.
  *
  * @author mike wakerly (opensource@hoho.com)
  * @see <a
@@ -99,6 +103,25 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
         private static final int SET_CONTROL_LINE_STATE = 0x22;
         private static final int SEND_BREAK = 0x23;
 
+        private static final int NOTIFICATION_REQTYPE = 0xa1; // USB CDC 1.1 section 6.3
+        private static final int NOTIFICATION_HEADER_LENGTH = 8;
+        private static final int NOTIFICATION_BUFFER_SIZE = 64;
+        private static final int SERIAL_STATE = 0x20;
+
+        /* SERIAL_STATE */
+        private static final int SERIAL_STATE_RX_CARRIER = 0x01; // CD
+        private static final int SERIAL_STATE_TX_CARRIER = 0x02; // DSR
+        private static final int SERIAL_STATE_BREAK = 0x04;
+        private static final int SERIAL_STATE_RING_SIGNAL = 0x08;
+        private static final int SERIAL_STATE_FRAMING = 0x10;
+        private static final int SERIAL_STATE_PARITY = 0x20;
+        private static final int SERIAL_STATE_OVERRUN = 0x40;
+
+        private volatile int mSerialState = 0;
+        private final byte[] mNotification = new byte[NOTIFICATION_BUFFER_SIZE];
+        private int mNotificationLength = 0;
+        private volatile Exception mReadNotificationException = null;
+
         public CdcAcmSerialPort(UsbDevice device, int portNumber) {
             super(device, portNumber);
         }
@@ -108,6 +131,13 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
             return CdcAcmSerialDriver.this;
         }
 
+        @Override
+        public void open(UsbDeviceConnection connection) throws IOException {
+            super.open(connection);
+            InterruptEndpointPoller.getInstance().add(this, mConnection, mControlEndpoint, NOTIFICATION_BUFFER_SIZE,
+                    this::readNotification, e -> { if (isOpen()) mReadNotificationException = e; });
+        }
+
         @Override
         protected void openInt() throws IOException {
             Log.d(TAG, "interfaces:");
@@ -222,28 +252,21 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
         }
 
         private int getInterfaceIdFromDescriptors() {
-            ArrayList<byte[]> descriptors = UsbUtils.getDescriptors(mConnection);
-            Log.d(TAG, "USB descriptor:");
-            for(byte[] descriptor : descriptors)
-                Log.d(TAG, HexDump.toHexString(descriptor));
-
-            if (descriptors.size() > 0 &&
-                    descriptors.get(0).length == 18 &&
-                    descriptors.get(0)[1] == 1 && // bDescriptorType
-                    descriptors.get(0)[4] == (byte)(UsbConstants.USB_CLASS_MISC) && //bDeviceClass
-                    descriptors.get(0)[5] == 2 && // bDeviceSubClass
-                    descriptors.get(0)[6] == 1) { // bDeviceProtocol
+            UsbDescriptors descriptors = UsbDescriptors.get(mConnection);
+            UsbDescriptors.DeviceDescriptor deviceDescriptor = descriptors.getDeviceDescriptor();
+            if (deviceDescriptor != null &&
+                    deviceDescriptor.getDeviceClass() == UsbConstants.USB_CLASS_MISC &&
+                    deviceDescriptor.getDeviceSubclass() == 2 &&
+                    deviceDescriptor.getDeviceProtocol() == 1) {
                 // is IAD device, see https://www.usb.org/sites/default/files/iadclasscode_r10.pdf
                 int port = -1;
-                for (int d = 1; d < descriptors.size(); d++) {
-                    if (descriptors.get(d).length == 8 &&
-                            descriptors.get(d)[1] == 0x0b && // bDescriptorType == IAD
-                            descriptors.get(d)[4] == UsbConstants.USB_CLASS_COMM && // bFunctionClass == CDC
-                            descriptors.get(d)[5] == USB_SUBCLASS_ACM) { // bFunctionSubClass == ACM
+                for (UsbDescriptors.InterfaceAssociationDescriptor iad : descriptors.getDescriptors(UsbDescriptors.InterfaceAssociationDescriptor.class)) {
+                    if (iad.getFunctionClass() == UsbConstants.USB_CLASS_COMM &&
+                            iad.getFunctionSubclass() == USB_SUBCLASS_ACM) {
                         port++;
                         if (port == mPortNumber &&
-                                descriptors.get(d)[3] == 2) { // bInterfaceCount
-                            return descriptors.get(d)[2]; // bFirstInterface
+                                iad.getInterfaceCount() == 2) {
+                            return iad.getFirstInterface();
                         }
                     }
                 }
@@ -260,8 +283,64 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
             return len;
         }
 
+        /**
+         * Reassemble notifications from control endpoint packets, read by {@link InterruptEndpointPoller},
+         * and decode SERIAL_STATE.
+         * Other notifications like NETWORK_CONNECTION and RESPONSE_AVAILABLE are ignored.
+         */
+        void readNotification(byte[] buffer, int length) {
+            int pos = 0;
+            while (pos < length) {
+                if (mNotificationLength == 0 && (buffer[pos] & 0xff) != NOTIFICATION_REQTYPE) {
+                    pos++; // skip until start of next notification
+                    continue;
+                }
+                int notificationLength = NOTIFICATION_HEADER_LENGTH;
+                if (mNotificationLength >= NOTIFICATION_HEADER_LENGTH)
+                    notificationLength += (mNotification[6] & 0xff) | ((mNotification[7] & 0xff) << 8); // wLength
+                int len = Math.min(length - pos, notificationLength - mNotificationLength);
+                System.arraycopy(buffer, pos, mNotification, mNotificationLength, len);
+                mNotificationLength += len;
+                pos += len;
+                if (mNotificationLength == NOTIFICATION_HEADER_LENGTH) {
+                    notificationLength += (mNotification[6] & 0xff) | ((mNotification[7] & 0xff) << 8);
+                    if (notificationLength > mNotification.length) {
+                        Log.w(TAG, "Invalid notification length " + notificationLength);
+                        mNotificationLength = 0;
+                        continue;
+                    }
+                }
+                if (mNotificationLength < notificationLength)
+                    continue;
+                if (mNotification[1] == SERIAL_STATE && notificationLength >= NOTIFICATION_HEADER_LENGTH + 2) {
+                    int state = (mNotification[8] & 0xff) | ((mNotification[9] & 0xff) << 8);
+                    if ((state & SERIAL_STATE_BREAK) != 0) countLineError(LineError.BREAK);
+                    if ((state & SERIAL_STATE_FRAMING) != 0) countLineError(LineError.FRAMING);
+                    if ((state & SERIAL_STATE_PARITY) != 0) countLineError(LineError.PARITY);
+                    if ((state & SERIAL_STATE_OVERRUN) != 0) countLineError(LineError.OVERRUN);
+                    mSerialState = state;
+                    notifyControlLines(getControlLines(state));
+                }
+                mNotificationLength = 0;
+            }
+        }
+
+        private int getSerialState() throws IOException {
+            /* throw and clear an exception which occurred while reading notifications */
+            Exception readNotificationException = mReadNotificationException;
+            if (readNotificationException != null) {
+                mReadNotificationException = null;
+                throw new IOException(readNotificationException);
+            }
+            return mSerialState;
+        }
+
         @Override
         protected void closeInt() {
+            InterruptEndpointPoller.getInstance().remove(this);
+            mReadNotificationException = null;
+            mNotificationLength = 0;
+            mSerialState = 0;
             try {
                 mConnection.releaseInterface(mControlInterface);
                 mConnection.releaseInterface(mDataInterface);
@@ -302,6 +381,22 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
                     parityBitesByte,
                     (byte) dataBits};
             sendAcmControlMessage(SET_LINE_CODING, 0, msg);
+            setFrameTime(baudRate, dataBits, stopBits, parity); // devices without UART cannot be distinguished
+        }
+
+        @Override
+        public boolean getCD() throws IOException {
+            return (getSerialState() & SERIAL_STATE_RX_CARRIER) != 0;
+        }
+
+        @Override
+        public boolean getDSR() throws IOException {
+            return (getSerialState() & SERIAL_STATE_TX_CARRIER) != 0;
+        }
+
+        @Override
+        public boolean getRI() throws IOException {
+            return (getSerialState() & SERIAL_STATE_RING_SIGNAL) != 0;
         }
 
         @Override
@@ -333,15 +428,49 @@ public class CdcAcmSerialDriver implements UsbSerialDriver {
 
         @Override
         public EnumSet<ControlLine> getControlLines() throws IOException {
+            return getControlLines(getSerialState());
+        }
+
+        private EnumSet<ControlLine> getControlLines(int serialState) {
             EnumSet<ControlLine> set = EnumSet.noneOf(ControlLine.class);
             if(mRts) set.add(ControlLine.RTS);
             if(mDtr) set.add(ControlLine.DTR);
+            if((serialState & SERIAL_STATE_TX_CARRIER) != 0) set.add(ControlLine.DSR);
+            if((serialState & SERIAL_STATE_RX_CARRIER) != 0) set.add(ControlLine.CD);
+            if((serialState & SERIAL_STATE_RING_SIGNAL) != 0) set.add(ControlLine.RI);
             return set;
         }
 
+        /**
+         * DSR, CD and RI are only available, if the device sends SERIAL_STATE notifications,
+         * else they are reported as {@code false}. CTS is not part of the CDC specification.
+         */
         @Override
         public EnumSet<ControlLine> getSupportedControlLines() throws IOException {
-            return EnumSet.of(ControlLine.RTS, ControlLine.DTR);
+            return EnumSet.of(ControlLine.RTS, ControlLine.DTR, ControlLine.DSR, ControlLine.CD, ControlLine.RI);
+        }
+
+        @Override
+        public EnumSet<LineError> getSupportedLineErrors() {
+            return EnumSet.allOf(LineError.class);
+        }
+
+        /**
+         * Device buffer sizes and maximum baud rate are not known for CDC devices.
+         */
+        @Override
+        public UsbSerialPortProfile getProfile() {
+            return super.getProfile().setInterruptStatus(true);
+        }
+
+        @Override
+        protected void startControlLineMonitor() throws IOException {
+            // InterruptEndpointPoller notifies changes
+            notifyControlLines(getControlLines());
+        }
+
+        @Override
+        protected void stopControlLineMonitor() {
         }
 
         @Override
@@ -7,6 +7,7 @@ package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.util.Log;
@@ -20,6 +21,11 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+/**
+ * Driver for Qinheng CH340 and CH341 with vendor specific protocol.
+ * <p>
+ * Newer CH342, CH343, CH344 and CH9102 chips use {@link CdcAcmSerialDriver}.
+ */
 public class Ch34xSerialDriver implements UsbSerialDriver {
 
     private static final String TAG = Ch34xSerialDriver.class.getSimpleName();
@@ -42,6 +48,7 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
     private static final int GCL_DSR = 0x02;
     private static final int GCL_RI  = 0x04;
     private static final int GCL_CD  = 0x08;
+    private static final int GCL_MASK = GCL_CTS | GCL_DSR | GCL_RI | GCL_CD;
     private static final int SCL_DTR = 0x20;
     private static final int SCL_RTS = 0x40;
 
@@ -68,6 +75,12 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 
         private boolean dtr = false;
         private boolean rts = false;
+        private int[] fastOpenValues = null; // {baud rate value 0x1312, value 0x0f2c, lcr}
+        private int[] fastOpenParameters = null; // {baudRate, dataBits, stopBits, parity}
+
+        private UsbEndpoint statusEndpoint;
+        private volatile int status = -1; // GCL_* bits from status endpoint, -1 if unknown
+        private volatile Exception readStatusException = null;
 
         public Ch340SerialPort(UsbDevice device, int portNumber) {
             super(device, portNumber);
@@ -78,6 +91,15 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
             return Ch34xSerialDriver.this;
         }
 
+        @Override
+        public void open(UsbDeviceConnection connection) throws IOException {
+            super.open(connection);
+            if (statusEndpoint != null) {
+                InterruptEndpointPoller.getInstance().add(this, mConnection, statusEndpoint, Math.max(8, statusEndpoint.getMaxPacketSize()),
+                        this::readStatus, this::readStatusFailed);
+            }
+        }
+
         @Override
         protected void openInt() throws IOException {
             for (int i = 0; i < mDevice.getInterfaceCount(); i++) {
@@ -88,6 +110,7 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
             }
 
             UsbInterface dataIface = mDevice.getInterface(mDevice.getInterfaceCount() - 1);
+            statusEndpoint = null;
             for (int i = 0; i < dataIface.getEndpointCount(); i++) {
                 UsbEndpoint ep = dataIface.getEndpoint(i);
                 if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK) {
@@ -96,15 +119,57 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
                     } else {
                         mWriteEndpoint = ep;
                     }
+                } else if (ep.getType() == UsbConstants.USB_ENDPOINT_XFER_INT && ep.getDirection() == UsbConstants.USB_DIR_IN) {
+                    statusEndpoint = ep;
                 }
             }
 
-            initialize();
-            setBaudRate(DEFAULT_BAUD_RATE);
+            if (fastOpenValues != null) {
+                initializeFast(fastOpenValues);
+                setFrameTime(fastOpenParameters[0], fastOpenParameters[1], fastOpenParameters[2], fastOpenParameters[3]);
+            } else {
+                initialize();
+                setBaudRate(DEFAULT_BAUD_RATE);
+            }
+        }
+
+        /**
+         * Initialize device with given line parameters while opening, so no setParameters() call
+         * is required after open(). Has to be called before open().
+         * <p>
+         * Like the Linux ch341 driver, this skips the version and status reads of the regular
+         * initialization, which are only checked for plausibility, and the default baud rate
+         * settings. This reduces open() from 14 control transfers plus 3 for setParameters() to 5.
+         */
+        public void setFastOpen(int baudRate, int dataBits, int stopBits, @Parity int parity) {
+            if (mConnection != null) {
+                throw new IllegalStateException("Already open");
+            }
+            if(baudRate <= 0) {
+                throw new IllegalArgumentException("Invalid baud rate: " + baudRate);
+            }
+            int[] baudRateValues = getBaudRateValues(baudRate);
+            fastOpenValues = new int[]{baudRateValues[0], baudRateValues[1], getLcr(dataBits, stopBits, parity)};
+            fastOpenParameters = new int[]{baudRate, dataBits, stopBits, parity};
+        }
+
+        /**
+         * Use regular initialization with plausibility checks and 9600 baud default.
+         */
+        public void disableFastOpen() {
+            fastOpenValues = null;
+            fastOpenParameters = null;
+        }
+
+        public boolean isFastOpen() {
+            return fastOpenValues != null;
         }
 
         @Override
         protected void closeInt() {
+            InterruptEndpointPoller.getInstance().remove(this);
+            readStatusException = null;
+            status = -1;
             try {
                 for (int i = 0; i < mDevice.getInterfaceCount(); i++)
                     mConnection.releaseInterface(mDevice.getInterface(i));
@@ -155,12 +220,46 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
             }
         }
 
-        private byte getStatus() throws IOException {
+        /**
+         * Modem status from status endpoint, or control transfer if not known yet.
+         */
+        private int getStatus() throws IOException {
+            /* throw and clear an exception which occurred while reading the status endpoint */
+            Exception exception = readStatusException;
+            if (exception != null) {
+                readStatusException = null;
+                throw new IOException(exception);
+            }
+            int cachedStatus = status;
+            if (cachedStatus != -1)
+                return cachedStatus;
             byte[] buffer = new byte[2];
             int ret = controlIn(0x95, 0x0706, 0, buffer);
             if (ret < 0)
                 throw new IOException("Error getting control lines");
-            return buffer[0];
+            cachedStatus = buffer[0] & GCL_MASK;
+            if (status == -1 && InterruptEndpointPoller.getInstance().contains(this))
+                status = cachedStatus; // status endpoint only receives changes
+            return cachedStatus;
+        }
+
+        private void readStatusFailed(Exception e) {
+            if (isOpen()) {
+                status = -1;
+                readStatusException = e;
+            }
+        }
+
+        /**
+         * Decode status packet from interrupt endpoint, read by {@link InterruptEndpointPoller},
+         * same as Linux ch341 driver: byte 2 contains inverted modem status.
+         */
+        void readStatus(byte[] buffer, int length) {
+            if (length < 4)
+                return;
+            int newStatus = buffer[2] & GCL_MASK;
+            status = newStatus;
+            notifyControlLines(getControlLines(newStatus));
         }
 
         private void initialize() throws IOException {
@@ -191,8 +290,26 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
             checkState("init #10", 0x95, 0x0706, new int[]{-1/* 0x9f, 0xff*/, -1/*0xec,0xee*/});
         }
 
+        private void initializeFast(int[] values) throws IOException {
+            if (controlOut(0xa1, 0, 0) < 0) {
+                throw new IOException("Init failed: #2");
+            }
+            writeBaudRate(values[0], values[1]);
+            if (controlOut(0x9a, 0x2518, values[2]) < 0) {
+                throw new IOException("Init failed: #5");
+            }
+            setControlLines();
+        }
 
         private void setBaudRate(int baudRate) throws IOException {
+            int[] values = getBaudRateValues(baudRate);
+            writeBaudRate(values[0], values[1]);
+        }
+
+        /**
+         * @return {value of register 0x1312, value of register 0x0f2c}
+         */
+        private int[] getBaudRateValues(int baudRate) {
             long factor;
             long divisor;
 
@@ -221,6 +338,10 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
             int val1 = (int) ((factor & 0xff00) | divisor);
             int val2 = (int) (factor & 0xff);
             Log.d(TAG, String.format("baud rate=%d, 0x1312=0x%04x, 0x0f2c=0x%04x", baudRate, val1, val2));
+            return new int[]{val1, val2};
+        }
+
+        private void writeBaudRate(int val1, int val2) throws IOException {
             int ret = controlOut(0x9a, 0x1312, val1);
             if (ret < 0) {
                 throw new IOException("Error setting baud rate: #1)");
@@ -238,6 +359,14 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
             }
             setBaudRate(baudRate);
 
+            int ret = controlOut(0x9a, 0x2518, getLcr(dataBits, stopBits, parity));
+            if (ret < 0) {
+                throw new IOException("Error setting control byte");
+            }
+            setFrameTime(baudRate, dataBits, stopBits, parity);
+        }
+
+        private int getLcr(int dataBits, int stopBits, @Parity int parity) {
             int lcr = LCR_ENABLE_RX | LCR_ENABLE_TX;
 
             switch (dataBits) {
@@ -287,11 +416,7 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
                 default:
                     throw new IllegalArgumentException("Invalid stop bits: " + stopBits);
             }
-
-            int ret = controlOut(0x9a, 0x2518, lcr);
-            if (ret < 0) {
-                throw new IOException("Error setting control byte");
-            }
+            return lcr;
         }
 
         @Override
@@ -338,7 +463,10 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
 
         @Override
         public EnumSet<ControlLine> getControlLines() throws IOException {
-            int status = getStatus();
+            return getControlLines(getStatus());
+        }
+
+        private EnumSet<ControlLine> getControlLines(int status) {
             EnumSet<ControlLine> set = EnumSet.noneOf(ControlLine.class);
             if(rts) set.add(ControlLine.RTS);
             if((status & GCL_CTS) == 0) set.add(ControlLine.CTS);
@@ -354,6 +482,31 @@ public class Ch34xSerialDriver implements UsbSerialDriver {
             return EnumSet.allOf(ControlLine.class);
         }
 
+        @Override
+        public UsbSerialPortProfile getProfile() {
+            return super.getProfile()
+                    .setFifoSizes(64, 64)
+                    .setMaxBaudRate(2000000)
+                    .setInterruptStatus(mConnection == null || statusEndpoint != null);
+        }
+
+        @Override
+        protected void startControlLineMonitor() throws IOException {
+            if (statusEndpoint == null) {
+                super.startControlLineMonitor();
+            } else {
+                // InterruptEndpointPoller notifies changes
+                notifyControlLines(getControlLines());
+            }
+        }
+
+        @Override
+        protected void stopControlLineMonitor() {
+            if (statusEndpoint == null) {
+                super.stopControlLineMonitor();
+            }
+        }
+
         @Override
         public void setBreak(boolean value) throws IOException {
             byte[] req = new byte[2];
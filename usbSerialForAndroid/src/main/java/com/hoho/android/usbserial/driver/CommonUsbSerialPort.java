@@ -14,10 +14,13 @@ import android.os.Build;
 import android.util.Log;
 
 import com.hoho.android.usbserial.util.MonotonicClock;
+import com.hoho.android.usbserial.util.UsbDescriptors;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 /**
  * A base class shared by several driver implementations.
@@ -40,6 +43,25 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
     protected UsbEndpoint mWriteEndpoint;
     protected UsbRequest mUsbRequest;
     protected FlowControl mFlowControl = FlowControl.NONE;
+    private ReadQueue mReadQueue; // created at first read with timeout = 0
+    private int mReadQueueCount = 1;
+    private int mReadQueueBufferSize;
+
+    private static final EnumSet<ControlLine> INPUT_CONTROL_LINES =
+            EnumSet.of(ControlLine.CTS, ControlLine.DSR, ControlLine.CD, ControlLine.RI);
+    private volatile ControlLineListener mControlLineListener;
+    private EnumSet<ControlLine> mNotifiedControlLines; // guarded by mControlLineLock
+    private final Object mControlLineLock = new Object();
+    private final AtomicIntegerArray mLineErrorCounts = new AtomicIntegerArray(LineError.values().length);
+    private volatile long mFrameNanos; // time per character, 0 = line parameters not set since open
+    private volatile long mTransmitEndNanos; // estimated end of transmission of written data
+    private volatile boolean mRs485;
+    private volatile int mRs485TurnaroundMicros = -1;
+    private final Object mRs485Lock = new Object();
+    private volatile DataLossListener mDataLossListener;
+    private final AtomicInteger mDataLossCount = new AtomicInteger();
+    private volatile long mLastReadMillis; // end of previous read, 0 = no read since open
+    private volatile int mReadBufferBytes = -1; // device + read queue buffer size, -1 = not calculated, 0 = unknown
 
     /**
      * Internal write buffer.
@@ -87,6 +109,19 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
         return mConnection.getSerial();
     }
 
+    /**
+     * Profile with packet size of the read endpoint. Drivers add chip specific values.
+     */
+    @Override
+    public UsbSerialPortProfile getProfile() {
+        UsbSerialPortProfile profile = new UsbSerialPortProfile();
+        UsbEndpoint readEndpoint = mReadEndpoint;
+        if (readEndpoint != null && readEndpoint.getMaxPacketSize() > 0) {
+            profile.setMaxPacketSize(readEndpoint.getMaxPacketSize());
+        }
+        return profile;
+    }
+
     /**
      * Sets the size of the internal buffer used to exchange data with the USB
      * stack for write operations.  Most users should not need to change this.
@@ -110,6 +145,34 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
         }
     }
 
+    /**
+     * Sets the number of read requests queued for {@link #read} with timeout = 0.
+     * <p>
+     * With more than one request, USB transfers continue while received data is processed,
+     * e.g. for multi-MB/s streams. Data is still returned in order. Reads with timeout = 0 and
+     * timeout != 0 must not be mixed, as queued requests already receive data. Reads with
+     * timeout = 0 need a buffer of at least the packet size, as packets are not split.
+     * Has to be called before open().
+     *
+     * @param count number of queued requests, 1 = single request without additional buffer
+     * @param bufferSize size of each request in bytes, rounded up to a multiple of the packet size
+     */
+    public void setReadQueue(int count, int bufferSize) {
+        if (count < 1 || (count > 1 && bufferSize <= 0)) {
+            throw new IllegalArgumentException("Invalid read queue size");
+        }
+        if (mConnection != null) {
+            throw new IllegalStateException("Already open");
+        }
+        mReadQueueCount = count;
+        mReadQueueBufferSize = bufferSize;
+        mReadBufferBytes = -1;
+    }
+
+    public int getReadQueueCount() {
+        return mReadQueueCount;
+    }
+
     @Override
     public void open(UsbDeviceConnection connection) throws IOException {
         if (mConnection != null) {
@@ -119,6 +182,13 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
             throw new IllegalArgumentException("Connection is null");
         }
         mConnection = connection;
+        for (int i = 0; i < mLineErrorCounts.length(); i++)
+            mLineErrorCounts.set(i, 0);
+        mFrameNanos = 0; // device initialization resets line parameters
+        mTransmitEndNanos = 0;
+        mDataLossCount.set(0);
+        mLastReadMillis = 0;
+        mReadBufferBytes = -1;
         boolean ok = false;
         try {
             openInt();
@@ -127,6 +197,9 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
             }
             mUsbRequest = new UsbRequest();
             mUsbRequest.initialize(mConnection, mReadEndpoint);
+            if (mControlLineListener != null) {
+                startControlLineMonitor();
+            }
             ok = true;
         } finally {
             if (!ok) {
@@ -149,9 +222,20 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
         try {
             usbRequest.cancel();
         } catch(Exception ignored) {}
+        ReadQueue readQueue = mReadQueue;
+        mReadQueue = null;
+        if (readQueue != null) {
+            readQueue.close();
+        }
+        stopControlLineMonitor();
+        synchronized (mControlLineLock) {
+            mNotifiedControlLines = null;
+        }
+        mRs485 = false;
         try {
             closeInt();
         } catch(Exception ignored) {}
+        UsbDescriptors.remove(mConnection);
         try {
             mConnection.close();
         } catch(Exception ignored) {}
@@ -196,6 +280,7 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
         if(length <= 0) {
             throw new IllegalArgumentException("Read length too small");
         }
+        long startMillis = MonotonicClock.millis();
         length = Math.min(length, dest.length);
         final int nread;
         if (timeout != 0) {
@@ -215,6 +300,16 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
             if(nread == -1 && testConnection)
                 testConnection(MonotonicClock.millis() < endTime);
 
+        } else if (mReadQueueCount > 1) {
+            ReadQueue readQueue = mReadQueue;
+            if (readQueue == null) {
+                readQueue = ReadQueue.create(mConnection, mReadEndpoint, mReadQueueCount, mReadQueueBufferSize);
+                mReadQueue = readQueue;
+            }
+            nread = readQueue.read(dest, length);
+            if(nread == 0) {
+                testConnection(true);
+            }
         } else {
             final ByteBuffer buf = ByteBuffer.wrap(dest, 0, length);
             if (!mUsbRequest.queue(buf, length)) {
@@ -231,14 +326,77 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
                 testConnection(true);
             }
         }
+        checkReadStall(startMillis, MonotonicClock.millis(), Math.max(nread, 0), length);
         return Math.max(nread, 0);
     }
 
+    /**
+     * Detect likely data loss caused by the application not reading for longer than the device
+     * can buffer received data.
+     * <p>
+     * Without pending read the device buffer fills at line speed. If the gap between end of
+     * previous read and start of this read exceeds the fill time, and this read returns at least
+     * a full device buffer, the device most likely had to discard data.
+     */
+    void checkReadStall(long startMillis, long endMillis, int nread, int length) {
+        long lastReadMillis = mLastReadMillis;
+        mLastReadMillis = endMillis;
+        long frameNanos = mFrameNanos;
+        if (lastReadMillis == 0 || frameNanos == 0)
+            return;
+        int bufferBytes = mReadBufferBytes;
+        if (bufferBytes < 0) {
+            bufferBytes = getProfile().getReadFifoSize();
+            if (bufferBytes > 0 && mReadQueueCount > 1)
+                bufferBytes += mReadQueueCount * mReadQueueBufferSize;
+            mReadBufferBytes = bufferBytes;
+        }
+        if (bufferBytes == 0 || nread < Math.min(length, bufferBytes))
+            return;
+        long stallMillis = startMillis - lastReadMillis;
+        if (stallMillis * 1_000_000 > bufferBytes * frameNanos) {
+            notifyDataLoss((int) Math.min(stallMillis, Integer.MAX_VALUE));
+        }
+    }
+
+    private void notifyDataLoss(int stallMillis) {
+        mDataLossCount.incrementAndGet();
+        DataLossListener listener = mDataLossListener;
+        if (listener == null)
+            return;
+        try {
+            listener.onDataLoss(stallMillis);
+        } catch (Throwable t) {
+            Log.w(TAG, "Exception in onDataLoss: " + t.getMessage(), t);
+        }
+    }
+
     @Override
     public void write(byte[] src, int timeout) throws IOException {write(src, src.length, timeout);}
 
     @Override
     public void write(final byte[] src, int length, final int timeout) throws IOException {
+        if (!mRs485) {
+            writeData(src, length, timeout);
+            return;
+        }
+        // serialize writes, else RTS could be reset while another write is still sending
+        synchronized (mRs485Lock) {
+            setRTS(true);
+            long endNanos = -1;
+            try {
+                writeData(src, length, timeout);
+                endNanos = waitTransmitted(timeout);
+            } finally {
+                setRTS(false);
+                if (endNanos >= 0) {
+                    mRs485TurnaroundMicros = (int) Math.max(0, (System.nanoTime() - endNanos) / 1000);
+                }
+            }
+        }
+    }
+
+    private void writeData(final byte[] src, int length, final int timeout) throws IOException {
         int offset = 0;
         long startTime = MonotonicClock.millis();
         length = Math.min(length, src.length);
@@ -273,7 +431,14 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
                 if (requestTimeout < 0) {
                     actualLength = -2;
                 } else {
+                    long requestStartNanos = System.nanoTime();
                     actualLength = mConnection.bulkTransfer(mWriteEndpoint, writeBuffer, requestLength, requestTimeout);
+                    if (actualLength > 0) {
+                        // device starts sending when data arrives, at latest when transfer completed
+                        long frameNanos = mFrameNanos;
+                        mTransmitEndNanos = Math.max(Math.max(mTransmitEndNanos, requestStartNanos) + actualLength * frameNanos,
+                                System.nanoTime() + frameNanos);
+                    }
                 }
             }
             long elapsed = MonotonicClock.millis() - startTime;
@@ -300,6 +465,103 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
         return mUsbRequest != null;
     }
 
+    /**
+     * Remember line parameters for transmit time calculations.
+     * Called by drivers at the end of a successful {@link #setParameters}, or when line
+     * parameters are set while opening.
+     */
+    protected void setFrameTime(int baudRate, int dataBits, int stopBits, @Parity int parity) {
+        int halfBits = 2 * (1 + dataBits + (parity == PARITY_NONE ? 0 : 1)) + (stopBits == STOPBITS_1_5 ? 3 : 2 * stopBits);
+        mFrameNanos = 500_000_000L * halfBits / baudRate;
+    }
+
+    /**
+     * @return time to send one character with start, parity and stop bits in nanoseconds,
+     *         or 0 if line parameters have not been set
+     */
+    protected long getFrameNanos() {
+        return mFrameNanos;
+    }
+
+    /**
+     * @return {@link System#nanoTime()} when written data is expected to be sent, calculated from
+     *         write times, data length and line parameters
+     */
+    protected long getTransmitEndNanos() {
+        return mTransmitEndNanos;
+    }
+
+    protected static void sleepNanos(long nanos) throws IOException {
+        if (nanos <= 0)
+            return;
+        try {
+            Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Drain interrupted", e);
+        }
+    }
+
+    /**
+     * Wait until all data written has been sent, for {@link #drain} and RS-485 mode.
+     * <p>
+     * Default implementation waits until {@link #getTransmitEndNanos()}, calculated from the
+     * line parameters. Before line parameters are set, it returns when the USB transfer completed.
+     * CDC devices without UART ignore the line parameters, so for these it waits longer than required.
+     * Drivers with transmit empty status override this.
+     *
+     * @param timeout timeout in milliseconds, 0 is infinite
+     * @return {@link System#nanoTime()} when the last stop bit has been sent
+     * @throws SerialTimeoutException if data is still queued after timeout
+     */
+    protected long waitTransmitted(int timeout) throws IOException {
+        long endNanos = mTransmitEndNanos;
+        long sleepNanos = endNanos - System.nanoTime();
+        if (timeout != 0 && sleepNanos > timeout * 1_000_000L) {
+            sleepNanos(timeout * 1_000_000L);
+            throw new SerialTimeoutException("Drain timeout, " + (endNanos - System.nanoTime()) / 1_000_000 + " msec remaining", 0);
+        }
+        sleepNanos(sleepNanos);
+        return endNanos;
+    }
+
+    @Override
+    public void drain(int timeout) throws IOException {
+        waitTransmitted(timeout);
+    }
+
+    /**
+     * Enable RS-485 half-duplex mode with RTS as transmit enable.
+     * <p>
+     * Only available while open and after {@link #setParameters}, and not together
+     * with flow control using RTS.
+     */
+    @Override
+    public void setRs485(boolean enabled) throws IOException {
+        if (enabled) {
+            testConnection(false);
+            if (!getSupportedControlLines().contains(ControlLine.RTS))
+                throw new UnsupportedOperationException();
+            if (mFrameNanos == 0)
+                throw new IllegalStateException("Line parameters not set");
+            if (mFlowControl == FlowControl.RTS_CTS)
+                throw new IllegalStateException("RTS used by flow control");
+        }
+        synchronized (mRs485Lock) {
+            if (enabled) {
+                setRTS(false);
+            }
+            mRs485 = enabled;
+            mRs485TurnaroundMicros = -1;
+        }
+    }
+
+    @Override
+    public boolean getRs485() { return mRs485; }
+
+    @Override
+    public int getRs485TurnaroundMicros() { return mRs485TurnaroundMicros; }
+
     @Override
     public abstract void setParameters(int baudRate, int dataBits, int stopBits, @Parity int parity) throws IOException;
 
@@ -333,6 +595,94 @@ public abstract class CommonUsbSerialPort implements UsbSerialPort {
     @Override
     public EnumSet<ControlLine> getSupportedControlLines() throws IOException { return EnumSet.noneOf(ControlLine.class); }
 
+    @Override
+    public void setControlLineListener(ControlLineListener listener) throws IOException {
+        if (listener != null) {
+            EnumSet<ControlLine> inputLines = getSupportedControlLines();
+            inputLines.retainAll(INPUT_CONTROL_LINES);
+            if (inputLines.isEmpty())
+                throw new UnsupportedOperationException();
+        }
+        if (mControlLineListener != null && isOpen()) {
+            stopControlLineMonitor();
+        }
+        synchronized (mControlLineLock) {
+            mControlLineListener = listener;
+            mNotifiedControlLines = null;
+        }
+        if (listener != null && isOpen()) {
+            startControlLineMonitor();
+        }
+    }
+
+    @Override
+    public ControlLineListener getControlLineListener() { return mControlLineListener; }
+
+    /**
+     * Start monitoring control lines for {@link #setControlLineListener}.
+     * <p>
+     * Default implementation polls {@link #getControlLines()} in a thread shared by all ports.
+     * Drivers receiving status notifications from the device override this and
+     * call {@link #notifyControlLines} on each notification.
+     */
+    protected void startControlLineMonitor() throws IOException {
+        ControlLinePoller.getInstance().add(this);
+    }
+
+    protected void stopControlLineMonitor() {
+        ControlLinePoller.getInstance().remove(this);
+    }
+
+    /**
+     * Forward current control lines to listener, if input control lines changed since last call.
+     */
+    protected void notifyControlLines(EnumSet<ControlLine> controlLines) {
+        ControlLineListener listener;
+        synchronized (mControlLineLock) {
+            listener = mControlLineListener;
+            if (listener == null)
+                return;
+            EnumSet<ControlLine> inputLines = EnumSet.copyOf(controlLines);
+            inputLines.retainAll(INPUT_CONTROL_LINES);
+            if (inputLines.equals(mNotifiedControlLines))
+                return;
+            mNotifiedControlLines = inputLines;
+        }
+        try {
+            listener.onControlLinesChanged(controlLines);
+        } catch (Throwable t) {
+            Log.w(TAG, "Exception in onControlLinesChanged: " + t.getMessage(), t);
+        }
+    }
+
+    /**
+     * Count line error reported by the device. Overruns are also reported as data loss.
+     */
+    protected void countLineError(LineError lineError) {
+        mLineErrorCounts.incrementAndGet(lineError.ordinal());
+        if (lineError == LineError.OVERRUN)
+            notifyDataLoss(0);
+    }
+
+    @Override
+    public int getLineErrorCount(LineError lineError) {
+        if (!getSupportedLineErrors().contains(lineError))
+            throw new UnsupportedOperationException();
+        return mLineErrorCounts.get(lineError.ordinal());
+    }
+
+    @Override
+    public EnumSet<LineError> getSupportedLineErrors() { return EnumSet.noneOf(LineError.class); }
+
+    @Override
+    public void setDataLossListener(DataLossListener listener) { mDataLossListener = listener; }
+
+    @Override
+    public DataLossListener getDataLossListener() { return mDataLossListener; }
+
+    @Override
+    public int getDataLossCount() { return mDataLossCount.get(); }
+
     @Override
     public void setFlowControl(FlowControl flowcontrol) throws IOException {
         if (flowcontrol != FlowControl.NONE)
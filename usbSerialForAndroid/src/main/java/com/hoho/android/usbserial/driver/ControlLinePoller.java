@@ -0,0 +1,72 @@
+package com.hoho.android.usbserial.driver;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Fallback for {@link UsbSerialPort.ControlLineListener} on devices without status notifications.
+ * <p>
+ * A single thread polls all registered ports with low rate, so the number of threads does not
+ * grow with the number of monitored ports. The thread ends when no port is registered.
+ */
+class ControlLinePoller {
+
+    private static final String TAG = ControlLinePoller.class.getSimpleName();
+    static final int POLL_INTERVAL_MILLIS = 100;
+
+    private static final ControlLinePoller sInstance = new ControlLinePoller();
+
+    private final List<CommonUsbSerialPort> mPorts = new ArrayList<>(); // guarded by this
+    private Thread mThread; // guarded by this
+
+    static ControlLinePoller getInstance() {
+        return sInstance;
+    }
+
+    synchronized void add(CommonUsbSerialPort port) {
+        if (!mPorts.contains(port))
+            mPorts.add(port);
+        if (mThread == null) {
+            mThread = new Thread(this::run, TAG);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    synchronized void remove(CommonUsbSerialPort port) {
+        mPorts.remove(port);
+    }
+
+    synchronized boolean contains(CommonUsbSerialPort port) {
+        return mPorts.contains(port);
+    }
+
+    private void run() {
+        while (true) {
+            CommonUsbSerialPort[] ports;
+            synchronized (this) {
+                if (mPorts.isEmpty()) {
+                    mThread = null;
+                    return;
+                }
+                ports = mPorts.toArray(new CommonUsbSerialPort[0]);
+            }
+            for (CommonUsbSerialPort port : ports) {
+                try {
+                    port.notifyControlLines(port.getControlLines());
+                } catch (Exception e) {
+                    if (contains(port)) { // not closed meanwhile
+                        Log.w(TAG, "Stop polling " + port + ": " + e.getMessage());
+                        remove(port);
+                    }
+                }
+            }
+            try {
+                Thread.sleep(POLL_INTERVAL_MILLIS);
+            } catch (InterruptedException ignored) {
+            }
+        }
+    }
+}
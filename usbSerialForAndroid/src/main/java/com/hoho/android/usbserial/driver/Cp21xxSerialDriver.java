@@ -10,6 +10,9 @@ import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
+import android.util.Log;
+
+import com.hoho.android.usbserial.util.MonotonicClock;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -66,6 +69,7 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
         private static final int SILABSER_GET_COMM_STATUS_REQUEST_CODE = 0x10;
         private static final int SILABSER_FLUSH_REQUEST_CODE = 0x12;
         private static final int SILABSER_SET_FLOW_REQUEST_CODE = 0x13;
+        private static final int SILABSER_EMBED_EVENTS_REQUEST_CODE = 0x15;
         private static final int SILABSER_SET_CHARS_REQUEST_CODE = 0x19;
         private static final int SILABSER_SET_BAUDRATE_REQUEST_CODE = 0x1E;
 
@@ -95,10 +99,35 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
         private static final int STATUS_DSR = 0x20;
         private static final int STATUS_RI = 0x40;
         private static final int STATUS_CD = 0x80;
+        private static final int STATUS_INPUT_MASK = STATUS_CTS | STATUS_DSR | STATUS_RI | STATUS_CD;
 
+        /*
+         * SILABSER_EMBED_EVENTS, events inserted into received data after escape character
+         */
+        private static final int EMBED_EVENTS_ESCAPE_CHAR = 0xec;
+        private static final int ESCAPE_TYPE_ESCAPE = 0x00; // escape character as data
+        private static final int ESCAPE_TYPE_LSR_DATA = 0x01; // line status + data
+        private static final int ESCAPE_TYPE_LSR = 0x02; // line status
+        private static final int ESCAPE_TYPE_MSR = 0x03; // modem status, same bits as STATUS_*
+        private static final int LSR_OVERRUN = 0x02;
+        private static final int LSR_PARITY = 0x04;
+        private static final int LSR_FRAMING = 0x08;
+        private static final int LSR_BREAK = 0x10;
+
+        private static final int ESCAPE_STATE_DATA = 0;
+        private static final int ESCAPE_STATE_ESCAPE = 1;
+        private static final int ESCAPE_STATE_LSR = 2;
+        private static final int ESCAPE_STATE_LSR_DATA_0 = 3;
+        private static final int ESCAPE_STATE_LSR_DATA_1 = 4;
+        private static final int ESCAPE_STATE_MSR = 5;
+        private static final long DEFAULT_FRAME_NANOS = 1000000000L * 10 / 9600; // device default 9600 8N1
 
         private boolean dtr = false;
         private boolean rts = false;
+        private volatile int maxRxQueueCount = 0;
+        private volatile boolean embedEvents = false;
+        private int escapeState = ESCAPE_STATE_DATA; // only accessed from read thread
+        private volatile int eventModemStatus = -1; // STATUS_INPUT_MASK bits from embedded events, -1 if unknown
 
         // second port of Cp2105 has limited baudRate, dataBits, stopBits, parity
         // unsupported baudrate returns error at controlTransfer(), other parameters are silently ignored
@@ -121,13 +150,20 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
             }
         }
 
-        private byte getStatus() throws IOException {
+        private int getStatus() throws IOException {
+            if (embedEvents) {
+                int modemStatus = eventModemStatus;
+                if (modemStatus != -1)
+                    return modemStatus | (dtr ? STATUS_DTR : 0) | (rts ? STATUS_RTS : 0);
+            }
             byte[] buffer = new byte[1];
             int result = mConnection.controlTransfer(REQTYPE_DEVICE_TO_HOST, SILABSER_GET_MDMSTS_REQUEST_CODE, 0,
                     mPortNumber, buffer, buffer.length, USB_WRITE_TIMEOUT_MILLIS);
             if (result != buffer.length) {
                 throw new IOException("Control transfer failed: " + SILABSER_GET_MDMSTS_REQUEST_CODE + " / " + 0 + " -> " + result);
             }
+            if (embedEvents && eventModemStatus == -1)
+                eventModemStatus = buffer[0] & STATUS_INPUT_MASK; // events only report changes
             return buffer[0];
         }
 
@@ -152,9 +188,143 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
                 }
             }
 
+            maxRxQueueCount = 0;
+            escapeState = ESCAPE_STATE_DATA;
+            eventModemStatus = -1;
             setConfigSingle(SILABSER_IFC_ENABLE_REQUEST_CODE, UART_ENABLE);
             setConfigSingle(SILABSER_SET_MHS_REQUEST_CODE, (dtr ? DTR_ENABLE : DTR_DISABLE) | (rts ? RTS_ENABLE : RTS_DISABLE));
             setFlowControl(mFlowControl);
+            if (embedEvents) {
+                setConfigSingle(SILABSER_EMBED_EVENTS_REQUEST_CODE, EMBED_EVENTS_ESCAPE_CHAR);
+            }
+        }
+
+        @Override
+        public int read(final byte[] dest, int length, final int timeout) throws IOException {
+            if (!embedEvents) {
+                return super.read(dest, length, timeout);
+            }
+            int nread, len;
+            if (timeout != 0) {
+                long endTime = MonotonicClock.millis() + timeout;
+                do {
+                    nread = super.read(dest, length, Math.max(1, (int)(endTime - MonotonicClock.millis())), false);
+                    len = readFilter(dest, nread);
+                } while (nread > 0 && len == 0 && MonotonicClock.millis() < endTime); // events only
+                if(nread <= 0)
+                    testConnection(MonotonicClock.millis() < endTime);
+            } else {
+                do {
+                    nread = super.read(dest, length, timeout);
+                    len = readFilter(dest, nread);
+                } while (nread > 0 && len == 0);
+            }
+            return len;
+        }
+
+        /**
+         * Remove embedded events from received data in place. Escape sequences can be split
+         * across reads, so the parser state is kept between calls.
+         */
+        int readFilter(byte[] buffer, int length) {
+            int destPos = 0;
+            for (int srcPos = 0; srcPos < length; srcPos++) {
+                int c = buffer[srcPos] & 0xff;
+                switch (escapeState) {
+                    case ESCAPE_STATE_DATA:
+                        if (c == EMBED_EVENTS_ESCAPE_CHAR)
+                            escapeState = ESCAPE_STATE_ESCAPE;
+                        else
+                            buffer[destPos++] = (byte) c;
+                        break;
+                    case ESCAPE_STATE_ESCAPE:
+                        switch (c) {
+                            case ESCAPE_TYPE_ESCAPE:
+                                buffer[destPos++] = (byte) EMBED_EVENTS_ESCAPE_CHAR;
+                                escapeState = ESCAPE_STATE_DATA;
+                                break;
+                            case ESCAPE_TYPE_LSR_DATA: escapeState = ESCAPE_STATE_LSR_DATA_0; break;
+                            case ESCAPE_TYPE_LSR:      escapeState = ESCAPE_STATE_LSR; break;
+                            case ESCAPE_TYPE_MSR:      escapeState = ESCAPE_STATE_MSR; break;
+                            default:
+                                Log.w(TAG, "Unknown escape type " + c);
+                                escapeState = ESCAPE_STATE_DATA;
+                        }
+                        break;
+                    case ESCAPE_STATE_LSR_DATA_0:
+                        countLineStatus(c);
+                        escapeState = ESCAPE_STATE_LSR_DATA_1;
+                        break;
+                    case ESCAPE_STATE_LSR_DATA_1:
+                        buffer[destPos++] = (byte) c;
+                        escapeState = ESCAPE_STATE_DATA;
+                        break;
+                    case ESCAPE_STATE_LSR:
+                        countLineStatus(c);
+                        escapeState = ESCAPE_STATE_DATA;
+                        break;
+                    case ESCAPE_STATE_MSR:
+                        int modemStatus = c & STATUS_INPUT_MASK;
+                        eventModemStatus = modemStatus;
+                        if (getControlLineListener() != null)
+                            notifyControlLines(getControlLines(modemStatus | (dtr ? STATUS_DTR : 0) | (rts ? STATUS_RTS : 0)));
+                        escapeState = ESCAPE_STATE_DATA;
+                        break;
+                }
+            }
+            return destPos;
+        }
+
+        private void countLineStatus(int lsr) {
+            if ((lsr & LSR_BREAK) != 0)
+                countLineError(LineError.BREAK);
+            else if ((lsr & LSR_PARITY) != 0)
+                countLineError(LineError.PARITY);
+            else if ((lsr & LSR_FRAMING) != 0)
+                countLineError(LineError.FRAMING);
+            if ((lsr & LSR_OVERRUN) != 0)
+                countLineError(LineError.OVERRUN);
+        }
+
+        /**
+         * Embed line status and modem status events in received data, instead of polling them with control transfers.
+         * <p>
+         * Line errors are counted in {@link #getLineErrorCount} and modem status changes are
+         * reported to the {@link ControlLineListener} and used by getCTS(), getDSR(), getRI(), getCD()
+         * and getControlLines(). Events are only received while reading, so data has to be read
+         * continuously, e.g. with {@link com.hoho.android.usbserial.util.SerialInputOutputManager}.
+         * DTR and RTS are then reported as configured, not as actual values.
+         */
+        public void setEmbedEvents(boolean enable) throws IOException {
+            boolean monitor = getControlLineListener() != null && isOpen();
+            if (monitor)
+                stopControlLineMonitor();
+            if (mConnection != null)
+                setConfigSingle(SILABSER_EMBED_EVENTS_REQUEST_CODE, enable ? EMBED_EVENTS_ESCAPE_CHAR : 0);
+            eventModemStatus = -1;
+            embedEvents = enable;
+            if (monitor)
+                startControlLineMonitor();
+        }
+
+        public boolean getEmbedEvents() {
+            return embedEvents;
+        }
+
+        @Override
+        protected void startControlLineMonitor() throws IOException {
+            if (embedEvents) {
+                notifyControlLines(getControlLines()); // read thread notifies changes
+            } else {
+                super.startControlLineMonitor();
+            }
+        }
+
+        @Override
+        protected void stopControlLineMonitor() {
+            if (!embedEvents) {
+                super.stopControlLineMonitor();
+            }
         }
 
         @Override
@@ -249,6 +419,7 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
                     throw new IllegalArgumentException("Invalid stop bits: " + stopBits);
             }
             setConfigSingle(SILABSER_SET_LINE_CTL_REQUEST_CODE, configDataBits);
+            setFrameTime(baudRate, dataBits, stopBits, parity);
         }
 
         @Override
@@ -295,7 +466,10 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
 
         @Override
         public EnumSet<ControlLine> getControlLines() throws IOException {
-            byte status = getStatus();
+            return getControlLines(getStatus());
+        }
+
+        private EnumSet<ControlLine> getControlLines(int status) {
             EnumSet<ControlLine> set = EnumSet.noneOf(ControlLine.class);
             //if(rts) set.add(ControlLine.RTS);                      // configured value
             if((status & STATUS_RTS) != 0) set.add(ControlLine.RTS); // actual value
@@ -315,13 +489,64 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
 
         @Override
         public boolean getXON() throws IOException {
-            byte[] buffer = new byte[0x13];
+            return (getCommStatus().getHoldReasons() & CommStatus.HOLD_XOFF_RECEIVED) == 0;
+        }
+
+        /**
+         * Read queue counts, errors and hold reasons with one control transfer.
+         * <p>
+         * The device clears errors when reading the status, so they are also added to
+         * {@link #getLineErrorCount}. Errors are only counted when this method is called.
+         */
+        public CommStatus getCommStatus() throws IOException {
+            byte[] buffer = new byte[CommStatus.LENGTH];
             int result = mConnection.controlTransfer(REQTYPE_DEVICE_TO_HOST, SILABSER_GET_COMM_STATUS_REQUEST_CODE, 0,
                     mPortNumber, buffer, buffer.length, USB_WRITE_TIMEOUT_MILLIS);
             if (result != buffer.length) {
                 throw new IOException("Control transfer failed: " + SILABSER_GET_COMM_STATUS_REQUEST_CODE + " -> " + result);
             }
-            return (buffer[4] & 8) == 0;
+            CommStatus status = new CommStatus(buffer);
+            int errors = status.getErrors();
+            if ((errors & CommStatus.ERROR_BREAK) != 0) countLineError(LineError.BREAK);
+            if ((errors & CommStatus.ERROR_FRAMING) != 0) countLineError(LineError.FRAMING);
+            if ((errors & CommStatus.ERROR_PARITY) != 0) countLineError(LineError.PARITY);
+            if ((errors & (CommStatus.ERROR_HW_OVERRUN | CommStatus.ERROR_QUEUE_OVERRUN)) != 0) countLineError(LineError.OVERRUN);
+            if (status.getRxQueueCount() > maxRxQueueCount)
+                maxRxQueueCount = status.getRxQueueCount();
+            return status;
+        }
+
+        /**
+         * Highest receive queue count seen by {@link #getCommStatus} since open().
+         * <p>
+         * Received data is queued in the device while no read request is pending. A value
+         * approaching the device buffer size indicates imminent overrun, e.g. from reading
+         * with too small buffers or too slow processing of received data.
+         */
+        public int getMaxRxQueueCount() {
+            return maxRxQueueCount;
+        }
+
+        /**
+         * Polls the transmit queue count until empty, then waits one more character time for
+         * the last character to leave the transmit shift register.
+         */
+        @Override
+        protected long waitTransmitted(int timeout) throws IOException {
+            final long endTime = timeout == 0 ? Long.MAX_VALUE : MonotonicClock.millis() + timeout;
+            final long frameNanos = getFrameNanos() != 0 ? getFrameNanos() : DEFAULT_FRAME_NANOS;
+            int txQueueCount;
+            while ((txQueueCount = getCommStatus().getTxQueueCount()) > 0) {
+                long remaining = endTime - MonotonicClock.millis();
+                if (remaining <= 0) {
+                    throw new SerialTimeoutException("Drain timeout, " + txQueueCount + " bytes remaining", 0);
+                }
+                // expected send time, but at least 1 msec to limit USB load and at most 50 msec to not miss flow control changes
+                long sleep = Math.max(1, Math.min(50, Math.min(remaining, txQueueCount * frameNanos / 1000000)));
+                sleepNanos(sleep * 1000000);
+            }
+            sleepNanos(frameNanos);
+            return System.nanoTime();
         }
 
         /**
@@ -380,6 +605,34 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
             return EnumSet.of(FlowControl.NONE, FlowControl.RTS_CTS, FlowControl.DTR_DSR, FlowControl.XON_XOFF);
         }
 
+        @Override
+        public EnumSet<LineError> getSupportedLineErrors() {
+            return EnumSet.allOf(LineError.class);
+        }
+
+        /**
+         * Status is only sent by the device with {@link #setEmbedEvents}.
+         */
+        @Override
+        public UsbSerialPortProfile getProfile() {
+            UsbSerialPortProfile profile = super.getProfile().setInterruptStatus(embedEvents);
+            switch (mDevice.getInterfaceCount()) {
+                case 1: // CP2102
+                    profile.setFifoSizes(576, 576).setMaxBaudRate(1000000);
+                    break;
+                case 2: // CP2105
+                    if (mPortNumber == 0)
+                        profile.setFifoSizes(256, 320).setMaxBaudRate(2000000);
+                    else
+                        profile.setFifoSizes(256, 128).setMaxBaudRate(921600);
+                    break;
+                default: // CP2108
+                    profile.setMaxBaudRate(2000000);
+                    break;
+            }
+            return profile;
+        }
+
         @Override
         // note: only working on some devices, on other devices ignored w/o error
         public void purgeHwBuffers(boolean purgeWriteBuffers, boolean purgeReadBuffers) throws IOException {
@@ -397,6 +650,80 @@ public class Cp21xxSerialDriver implements UsbSerialDriver {
         }
     }
 
+    /**
+     * Response of GET_COMM_STATUS request, see AN571 SERIAL_STATUS.
+     */
+    public static class CommStatus {
+        static final int LENGTH = 0x13;
+
+        public static final int ERROR_BREAK = 0x01;
+        public static final int ERROR_FRAMING = 0x02;
+        public static final int ERROR_HW_OVERRUN = 0x04;
+        public static final int ERROR_QUEUE_OVERRUN = 0x08;
+        public static final int ERROR_PARITY = 0x10;
+
+        public static final int HOLD_CTS = 0x01;
+        public static final int HOLD_DSR = 0x02;
+        public static final int HOLD_DCD = 0x04;
+        public static final int HOLD_XOFF_RECEIVED = 0x08;
+        public static final int HOLD_XOFF_SENT = 0x10;
+
+        private final int mErrors;
+        private final int mHoldReasons;
+        private final int mRxQueueCount;
+        private final int mTxQueueCount;
+        private final boolean mEofReceived;
+        private final boolean mWaitForImmediate;
+
+        CommStatus(byte[] buffer) {
+            mErrors = getInt(buffer, 0);
+            mHoldReasons = getInt(buffer, 4);
+            mRxQueueCount = getInt(buffer, 8);
+            mTxQueueCount = getInt(buffer, 12);
+            mEofReceived = buffer[16] != 0;
+            mWaitForImmediate = buffer[17] != 0;
+        }
+
+        private static int getInt(byte[] buffer, int offset) {
+            return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8
+                    | (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+        }
+
+        /** ERROR_* bits, cleared in device after reading */
+        public int getErrors() {
+            return mErrors;
+        }
+
+        /** HOLD_* bits, reasons why transmission is currently paused */
+        public int getHoldReasons() {
+            return mHoldReasons;
+        }
+
+        /** bytes received by the device, not yet transferred to host */
+        public int getRxQueueCount() {
+            return mRxQueueCount;
+        }
+
+        /** bytes transferred from host, not yet sent by the device */
+        public int getTxQueueCount() {
+            return mTxQueueCount;
+        }
+
+        public boolean isEofReceived() {
+            return mEofReceived;
+        }
+
+        public boolean isWaitForImmediate() {
+            return mWaitForImmediate;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<%s errors=0x%02x hold=0x%02x rx=%d tx=%d>",
+                    getClass().getSimpleName(), mErrors, mHoldReasons, mRxQueueCount, mTxQueueCount);
+        }
+    }
+
     @SuppressWarnings({"unused"})
     public static Map<Integer, int[]> getSupportedDevices() {
         final Map<Integer, int[]> supportedDevices = new LinkedHashMap<>();
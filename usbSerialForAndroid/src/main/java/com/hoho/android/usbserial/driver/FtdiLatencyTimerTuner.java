@@ -0,0 +1,129 @@
+package com.hoho.android.usbserial.driver;
+
+/**
+ * Adaptive latency timer for {@link FtdiSerialDriver.FtdiSerialPort#setLatencyTimerTuner}.
+ * <p>
+ * While a read request is pending, the device sends buffered data when a packet is full or the
+ * latency timer expires. Data arriving in consecutive latency timer intervals indicates a
+ * continuous stream, where a higher latency timer results in fewer and larger USB packets.
+ * Data arriving with larger gaps indicates sparse, interactive traffic, where a lower latency
+ * timer reduces response time.
+ * <p>
+ * The latency timer is doubled or halved at most once per {@link #ADJUST_INTERVAL_MILLIS},
+ * and only if enough reads have been seen in this interval.
+ */
+public class FtdiLatencyTimerTuner {
+
+    public static final int DEFAULT_MIN_LATENCY_TIMER = 1;
+    public static final int DEFAULT_MAX_LATENCY_TIMER = 16;
+    public static final int ADJUST_INTERVAL_MILLIS = 1000;
+    static final int MIN_READS = 4;
+    static final int STREAM_PERCENT_RAISE = 75;
+    static final int STREAM_PERCENT_LOWER = 25;
+
+    private final int mMinLatencyTimer;
+    private final int mMaxLatencyTimer;
+
+    // only accessed from read thread
+    private long mIntervalStartMillis;
+    private long mLastReadMillis;
+    private int mIntervalReads;
+    private int mIntervalStreamReads;
+
+    // metrics, written from read thread only
+    private volatile long mReadCount;
+    private volatile long mByteCount;
+    private volatile int mAdjustCount;
+    private volatile int mStreamPercent = -1;
+
+    public FtdiLatencyTimerTuner() {
+        this(DEFAULT_MIN_LATENCY_TIMER, DEFAULT_MAX_LATENCY_TIMER);
+    }
+
+    /**
+     * @param minLatencyTimer lower limit in msec, >= 1
+     * @param maxLatencyTimer upper limit in msec, <= 255
+     */
+    public FtdiLatencyTimerTuner(int minLatencyTimer, int maxLatencyTimer) {
+        if (minLatencyTimer < 1 || maxLatencyTimer > 255 || minLatencyTimer > maxLatencyTimer) {
+            throw new IllegalArgumentException("Invalid latency timer range: " + minLatencyTimer + ".." + maxLatencyTimer);
+        }
+        mMinLatencyTimer = minLatencyTimer;
+        mMaxLatencyTimer = maxLatencyTimer;
+    }
+
+    public int getMinLatencyTimer() {
+        return mMinLatencyTimer;
+    }
+
+    public int getMaxLatencyTimer() {
+        return mMaxLatencyTimer;
+    }
+
+    /** number of reads returning data */
+    public long getReadCount() {
+        return mReadCount;
+    }
+
+    /** number of bytes returned by reads */
+    public long getByteCount() {
+        return mByteCount;
+    }
+
+    /** number of latency timer changes */
+    public int getAdjustCount() {
+        return mAdjustCount;
+    }
+
+    /**
+     * Percentage of reads in last interval following the previous read within two latency
+     * timer intervals, or -1 if not enough reads yet.
+     */
+    public int getStreamPercent() {
+        return mStreamPercent;
+    }
+
+    /**
+     * Called after each read returning data.
+     *
+     * @return new latency timer, or latencyTimer if unchanged
+     */
+    int onRead(int length, int latencyTimer, long nowMillis) {
+        mReadCount++;
+        mByteCount += length;
+        if (mLastReadMillis == 0) {
+            mIntervalStartMillis = nowMillis;
+        } else {
+            mIntervalReads++;
+            if (nowMillis - mLastReadMillis <= 2L * latencyTimer + 2)
+                mIntervalStreamReads++;
+        }
+        mLastReadMillis = nowMillis;
+        if (nowMillis - mIntervalStartMillis < ADJUST_INTERVAL_MILLIS)
+            return latencyTimer;
+
+        int newLatencyTimer = latencyTimer;
+        if (mIntervalReads >= MIN_READS) {
+            int streamPercent = 100 * mIntervalStreamReads / mIntervalReads;
+            mStreamPercent = streamPercent;
+            if (streamPercent >= STREAM_PERCENT_RAISE)
+                newLatencyTimer = latencyTimer * 2;
+            else if (streamPercent <= STREAM_PERCENT_LOWER)
+                newLatencyTimer = latencyTimer / 2;
+        }
+        newLatencyTimer = Math.max(mMinLatencyTimer, Math.min(mMaxLatencyTimer, newLatencyTimer));
+        mIntervalStartMillis = nowMillis;
+        mIntervalReads = 0;
+        mIntervalStreamReads = 0;
+        if (newLatencyTimer != latencyTimer)
+            mAdjustCount++;
+        return newLatencyTimer;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<%s range=%d..%d reads=%d bytes=%d adjusts=%d stream=%d%%>",
+                getClass().getSimpleName(), mMinLatencyTimer, mMaxLatencyTimer,
+                mReadCount, mByteCount, mAdjustCount, mStreamPercent);
+    }
+}
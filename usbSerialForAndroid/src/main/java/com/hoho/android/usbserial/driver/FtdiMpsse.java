@@ -0,0 +1,323 @@
+package com.hoho.android.usbserial.driver;
+
+import com.hoho.android.usbserial.util.MonotonicClock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MPSSE engine of FT232H, FT2232H and FT4232H for SPI, I2C, JTAG, ...
+ * <p>
+ * Each USB round trip takes about one millisecond, so commands are collected in a {@link Batch},
+ * sent with a single write and the responses of all reading commands are read back together.
+ *
+ * documentation: https://ftdichip.com/wp-content/uploads/2020/08/AN_108_Command_Processor_for_MPSSE_and_MCU_Host_Bus_Emulation_Modes.pdf
+ */
+public class FtdiMpsse {
+
+    static final int BITMODE_RESET = 0x00;
+    static final int BITMODE_MPSSE = 0x02;
+
+    // clock data commands, MSB first, data out on falling edge, data in on rising edge -> SPI mode 0
+    static final int CLOCK_BYTES_OUT = 0x11;
+    static final int CLOCK_BITS_OUT = 0x13;
+    static final int CLOCK_BYTES_IN = 0x20;
+    static final int CLOCK_BITS_IN = 0x22;
+    static final int CLOCK_BYTES_IN_OUT = 0x31;
+    static final int SET_BITS_LOW = 0x80;
+    static final int GET_BITS_LOW = 0x81;
+    static final int SET_BITS_HIGH = 0x82;
+    static final int GET_BITS_HIGH = 0x83;
+    static final int LOOPBACK_ON = 0x84;
+    static final int LOOPBACK_OFF = 0x85;
+    static final int SET_CLOCK_DIVISOR = 0x86;
+    static final int SEND_IMMEDIATE = 0x87;
+    static final int DISABLE_CLOCK_DIVIDE_BY_5 = 0x8a;
+    static final int DISABLE_3_PHASE_CLOCK = 0x8d;
+    static final int DISABLE_ADAPTIVE_CLOCK = 0x97;
+    static final int BAD_COMMAND = 0xfa;
+    static final int SYNC_COMMAND = 0xab; // any invalid command
+
+    static final int MAX_CLOCK_LENGTH = 0x10000;
+    static final int BASE_CLOCK = 30000000; // 60 MHz / 2, with divide by 5 disabled
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final FtdiSerialDriver.FtdiSerialPort mPort;
+    private final byte[] mReadBuffer = new byte[READ_BUFFER_SIZE];
+    private int mTimeout = 1000;
+
+    public FtdiMpsse(FtdiSerialDriver.FtdiSerialPort port) {
+        mPort = port;
+    }
+
+    /**
+     * Switch opened port to MPSSE mode, verify command processing and set clock.
+     *
+     * @return effective clock frequency
+     */
+    public int open(int clockHz) throws IOException {
+        if (!mPort.isMpsseSupported()) {
+            throw new UnsupportedOperationException("MPSSE not supported by this device");
+        }
+        mPort.setWriteBufferSize(WRITE_BUFFER_SIZE);
+        mPort.setBitMode(0, BITMODE_RESET);
+        mPort.setBitMode(0, BITMODE_MPSSE);
+        mPort.purgeHwBuffers(true, true);
+        sync();
+        Batch batch = new Batch()
+                .command(DISABLE_CLOCK_DIVIDE_BY_5)
+                .command(DISABLE_ADAPTIVE_CLOCK)
+                .command(DISABLE_3_PHASE_CLOCK)
+                .command(LOOPBACK_OFF);
+        int divisor = getClockDivisor(clockHz);
+        batch.setClockDivisor(divisor);
+        execute(batch);
+        return BASE_CLOCK / (divisor + 1);
+    }
+
+    public void close() throws IOException {
+        mPort.setBitMode(0, BITMODE_RESET);
+    }
+
+    public void setTimeout(int timeout) {
+        mTimeout = timeout;
+    }
+
+    public int getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * lowest divisor not exceeding clockHz
+     */
+    static int getClockDivisor(int clockHz) {
+        if (clockHz <= 0) {
+            throw new IllegalArgumentException("Invalid clock: " + clockHz);
+        }
+        int divisor = (BASE_CLOCK + clockHz - 1) / clockHz - 1;
+        return Math.max(0, Math.min(0xffff, divisor));
+    }
+
+    /**
+     * Invalid commands are answered with BAD_COMMAND + command, used to check that
+     * no data is left over from previous commands.
+     */
+    private void sync() throws IOException {
+        mPort.write(new byte[]{(byte) SYNC_COMMAND, (byte) SEND_IMMEDIATE}, mTimeout);
+        byte[] response = read(2);
+        if ((response[0] & 0xff) != BAD_COMMAND || (response[1] & 0xff) != SYNC_COMMAND) {
+            throw new IOException("MPSSE sync failed");
+        }
+    }
+
+    /**
+     * Send all commands with one write and read responses of all reading commands.
+     *
+     * @return one response per reading command, in command order
+     */
+    public List<byte[]> execute(Batch batch) throws IOException {
+        int responseLength = batch.getResponseLength();
+        if (responseLength > 0 && batch.mLastCommand != SEND_IMMEDIATE) {
+            batch.command(SEND_IMMEDIATE);
+        }
+        mPort.write(batch.mCommands, batch.mLength, mTimeout);
+        List<byte[]> responses = new ArrayList<>(batch.mResponseLengths.size());
+        if (responseLength == 0) {
+            return responses;
+        }
+        byte[] response = read(responseLength);
+        int offset = 0;
+        for (int length : batch.mResponseLengths) {
+            responses.add(Arrays.copyOfRange(response, offset, offset + length));
+            offset += length;
+        }
+        return responses;
+    }
+
+    private byte[] read(int length) throws IOException {
+        byte[] response = new byte[length];
+        int offset = 0;
+        long endTime = MonotonicClock.millis() + mTimeout;
+        while (offset < length) {
+            int remaining = (int) (endTime - MonotonicClock.millis());
+            if (remaining <= 0) {
+                throw new IOException("MPSSE response incomplete: " + offset + " of " + length + " bytes");
+            }
+            int len = mPort.read(mReadBuffer, remaining);
+            if (offset + len > length) {
+                // e.g. BAD_COMMAND + command
+                throw new IOException("MPSSE response too long: " + (offset + len) + " instead of " + length + " bytes");
+            }
+            System.arraycopy(mReadBuffer, 0, response, offset, len);
+            offset += len;
+        }
+        return response;
+    }
+
+    /**
+     * MPSSE command builder.
+     * <p>
+     * Clock commands use MSB first, data out on falling edge and data in on rising edge clock,
+     * as required for SPI mode 0. Lengths above 64 kB are split into multiple commands.
+     */
+    public static class Batch {
+        private byte[] mCommands = new byte[256];
+        private int mLength;
+        private int mLastCommand = -1;
+        private int mResponseLength;
+        private final List<Integer> mResponseLengths = new ArrayList<>();
+
+        public Batch clear() {
+            mLength = 0;
+            mLastCommand = -1;
+            mResponseLength = 0;
+            mResponseLengths.clear();
+            return this;
+        }
+
+        /** length of commands in bytes */
+        public int getLength() {
+            return mLength;
+        }
+
+        /** copy of commands */
+        public byte[] toByteArray() {
+            return Arrays.copyOf(mCommands, mLength);
+        }
+
+        /** sum of all response lengths */
+        public int getResponseLength() {
+            return mResponseLength;
+        }
+
+        /** command without parameters, e.g. LOOPBACK_ON */
+        Batch command(int command) {
+            ensureCapacity(1);
+            mLastCommand = command;
+            mCommands[mLength++] = (byte) command;
+            return this;
+        }
+
+        private Batch command(int command, int param1, int param2) {
+            command(command);
+            ensureCapacity(2);
+            mCommands[mLength++] = (byte) param1;
+            mCommands[mLength++] = (byte) param2;
+            return this;
+        }
+
+        private void response(int length) {
+            mResponseLengths.add(length);
+            mResponseLength += length;
+        }
+
+        private void ensureCapacity(int length) {
+            if (mLength + length > mCommands.length) {
+                mCommands = Arrays.copyOf(mCommands, Math.max(mCommands.length * 2, mLength + length));
+            }
+        }
+
+        /** set ADBUS0..7 pins, direction bit 1 = output */
+        public Batch setBitsLow(int value, int direction) {
+            return command(SET_BITS_LOW, value, direction);
+        }
+
+        /** set ACBUS0..7 pins, direction bit 1 = output */
+        public Batch setBitsHigh(int value, int direction) {
+            return command(SET_BITS_HIGH, value, direction);
+        }
+
+        /** read ADBUS0..7 pins, adds 1 byte response */
+        public Batch getBitsLow() {
+            command(GET_BITS_LOW);
+            response(1);
+            return this;
+        }
+
+        /** read ACBUS0..7 pins, adds 1 byte response */
+        public Batch getBitsHigh() {
+            command(GET_BITS_HIGH);
+            response(1);
+            return this;
+        }
+
+        /** clock = 30 MHz / (1 + divisor) */
+        public Batch setClockDivisor(int divisor) {
+            return command(SET_CLOCK_DIVISOR, divisor & 0xff, (divisor >> 8) & 0xff);
+        }
+
+        public Batch setLoopback(boolean enable) {
+            return command(enable ? LOOPBACK_ON : LOOPBACK_OFF);
+        }
+
+        /** clock data bytes out */
+        public Batch write(byte[] data) {
+            for (int offset = 0; offset < data.length; offset += MAX_CLOCK_LENGTH) {
+                int length = Math.min(MAX_CLOCK_LENGTH, data.length - offset);
+                command(CLOCK_BYTES_OUT, length - 1, (length - 1) >> 8);
+                ensureCapacity(length);
+                System.arraycopy(data, offset, mCommands, mLength, length);
+                mLength += length;
+            }
+            return this;
+        }
+
+        /** clock data bytes in, adds length bytes response */
+        public Batch read(int length) {
+            if (length <= 0) {
+                throw new IllegalArgumentException("Invalid length: " + length);
+            }
+            for (int offset = 0; offset < length; offset += MAX_CLOCK_LENGTH) {
+                int len = Math.min(MAX_CLOCK_LENGTH, length - offset);
+                command(CLOCK_BYTES_IN, len - 1, (len - 1) >> 8);
+            }
+            response(length);
+            return this;
+        }
+
+        /** clock data bytes out and in, adds data.length bytes response */
+        public Batch transfer(byte[] data) {
+            if (data.length == 0) {
+                throw new IllegalArgumentException("Invalid length: 0");
+            }
+            for (int offset = 0; offset < data.length; offset += MAX_CLOCK_LENGTH) {
+                int length = Math.min(MAX_CLOCK_LENGTH, data.length - offset);
+                command(CLOCK_BYTES_IN_OUT, length - 1, (length - 1) >> 8);
+                ensureCapacity(length);
+                System.arraycopy(data, offset, mCommands, mLength, length);
+                mLength += length;
+            }
+            response(data.length);
+            return this;
+        }
+
+        /** clock 1..8 data bits out, MSB first */
+        public Batch writeBits(int value, int bits) {
+            checkBits(bits);
+            command(CLOCK_BITS_OUT);
+            ensureCapacity(2);
+            mCommands[mLength++] = (byte) (bits - 1);
+            mCommands[mLength++] = (byte) value;
+            return this;
+        }
+
+        /** clock 1..8 data bits in, adds 1 byte response with bits in LSBs */
+        public Batch readBits(int bits) {
+            checkBits(bits);
+            command(CLOCK_BITS_IN);
+            ensureCapacity(1);
+            mCommands[mLength++] = (byte) (bits - 1);
+            response(1);
+            return this;
+        }
+
+        private static void checkBits(int bits) {
+            if (bits < 1 || bits > 8) {
+                throw new IllegalArgumentException("Invalid bit count: " + bits);
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import android.hardware.usb.UsbDevice;
 import android.util.Log;
 
 import com.hoho.android.usbserial.util.MonotonicClock;
+import com.hoho.android.usbserial.util.UsbDescriptors;
 
 import java.io.IOException;
 import java.util.ArrayList;
@@ -57,7 +58,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
     public class FtdiSerialPort extends CommonUsbSerialPort {
 
         private static final int USB_WRITE_TIMEOUT_MILLIS = 5000;
-        private static final int READ_HEADER_LENGTH = 2; // contains MODEM_STATUS
+        private static final int READ_HEADER_LENGTH = 2; // contains MODEM_STATUS and LINE_STATUS
 
         private static final int REQTYPE_HOST_TO_DEVICE = UsbConstants.USB_TYPE_VENDOR | UsbConstants.USB_DIR_OUT;
         private static final int REQTYPE_DEVICE_TO_HOST = UsbConstants.USB_TYPE_VENDOR | UsbConstants.USB_DIR_IN;
@@ -68,8 +69,11 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         private static final int SET_BAUD_RATE_REQUEST = 3;
         private static final int SET_DATA_REQUEST = 4;
         private static final int GET_MODEM_STATUS_REQUEST = 5;
+        private static final int SET_EVENT_CHAR_REQUEST = 6;
         private static final int SET_LATENCY_TIMER_REQUEST = 9;
         private static final int GET_LATENCY_TIMER_REQUEST = 10;
+        private static final int SET_BITMODE_REQUEST = 11;
+        private static final int READ_PINS_REQUEST = 12;
 
         private static final int MODEM_CONTROL_DTR_ENABLE = 0x0101;
         private static final int MODEM_CONTROL_DTR_DISABLE = 0x0100;
@@ -79,14 +83,42 @@ public class FtdiSerialDriver implements UsbSerialDriver {
         private static final int MODEM_STATUS_DSR = 0x20;
         private static final int MODEM_STATUS_RI = 0x40;
         private static final int MODEM_STATUS_CD = 0x80;
+        private static final int MODEM_STATUS_MASK = 0xf0;
+        private static final int LINE_STATUS_OVERRUN = 0x02;
+        private static final int LINE_STATUS_PARITY = 0x04;
+        private static final int LINE_STATUS_FRAMING = 0x08;
+        private static final int LINE_STATUS_BREAK = 0x10;
+        private static final int LINE_STATUS_TEMT = 0x40;
+        private static final int LINE_STATUS_ERROR_MASK = LINE_STATUS_OVERRUN | LINE_STATUS_PARITY | LINE_STATUS_FRAMING | LINE_STATUS_BREAK;
+        private static final int DEFAULT_LATENCY_TIMER = 16;
+        private static final int EVENT_CHAR_ENABLE = 0x100;
+        public static final int BITMODE_RESET = 0x00;
+        public static final int BITMODE_ASYNC_BITBANG = 0x01;
+        public static final int BITMODE_SYNC_BITBANG = 0x04;
+        private static final int BITMODE_SYNC_FIFO = 0x40;
+        private static final int BITBANG_CLOCK_MULTIPLIER = 16;
+        private static final int DEVICE_TYPE_FT2232H = 7;
+        private static final int DEVICE_TYPE_FT4232H = 8;
+        private static final int DEVICE_TYPE_FT232H = 9;
+        private static final int HIGH_SPEED_CLOCK_MIN_BAUD_RATE = 1200;
         private static final int RESET_ALL = 0;
         private static final int RESET_PURGE_RX = 1;
         private static final int RESET_PURGE_TX = 2;
 
         private boolean baudRateWithPort = false;
+        private int deviceType = 0;
+        private boolean syncFifoMode = false;
+        private int bitMode = BITMODE_RESET;
         private boolean dtr = false;
         private boolean rts = false;
         private int breakConfig = 0;
+        private volatile int latencyTimer = DEFAULT_LATENCY_TIMER;
+        private int eventChar = -1;
+        private volatile FtdiLatencyTimerTuner latencyTimerTuner;
+        // status from read header, only valid while reading, as device sends headers not before read request
+        private volatile int headerModemStatus;
+        private volatile int headerLineStatus;
+        private volatile long headerStatusMillis = 0;
 
         public FtdiSerialPort(UsbDevice device, int portNumber) {
             super(device, portNumber);
@@ -122,19 +154,26 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                 throw new IOException("Init RTS,DTR failed: result=" + result);
             }
             setFlowControl(mFlowControl);
+            if (eventChar >= 0) {
+                setEventChar(eventChar);
+            }
 
             // mDevice.getVersion() would require API 23
-            byte[] rawDescriptors = mConnection.getRawDescriptors();
-            if(rawDescriptors == null || rawDescriptors.length < 14) {
+            UsbDescriptors.DeviceDescriptor deviceDescriptor = UsbDescriptors.get(mConnection).getDeviceDescriptor();
+            if(deviceDescriptor == null) {
                 throw new IOException("Could not get device descriptors");
             }
-            int deviceType = rawDescriptors[13];
-            baudRateWithPort = deviceType == 7 || deviceType == 8 || deviceType == 9 // ...H devices
+            deviceType = deviceDescriptor.getDeviceVersion() >> 8;
+            baudRateWithPort = deviceType == DEVICE_TYPE_FT2232H || deviceType == DEVICE_TYPE_FT4232H || deviceType == DEVICE_TYPE_FT232H
                     || mDevice.getInterfaceCount() > 1; // FT2232C
+            if (syncFifoMode) {
+                setSyncFifoMode(true);
+            }
         }
 
         @Override
         protected void closeInt() {
+            headerStatusMillis = 0;
             try {
                 mConnection.releaseInterface(mDevice.getInterface(mPortNumber));
             } catch(Exception ignored) {}
@@ -161,85 +200,99 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                 // data transfer at high baud rates when buffers are fully filled.
             }
             length = Math.min(length, dest.length);
-            int nread;
+            int nread, len;
             if (timeout != 0) {
                 long endTime = MonotonicClock.millis() + timeout;
                 do {
                     nread = super.read(dest, length, Math.max(1, (int)(endTime - MonotonicClock.millis())), false);
+                    len = readFilter(dest, nread); // also for header only packets, to update status
                 } while (nread == READ_HEADER_LENGTH && MonotonicClock.millis() < endTime);
                 if(nread <= 0)
                     testConnection(MonotonicClock.millis() < endTime);
             } else {
                 do {
                     nread = super.read(dest, length, timeout);
+                    len = readFilter(dest, nread);
                 } while (nread == READ_HEADER_LENGTH);
             }
-            return readFilter(dest, nread);
+            FtdiLatencyTimerTuner tuner = latencyTimerTuner;
+            if (tuner != null && len > 0) {
+                int newLatencyTimer = tuner.onRead(len, latencyTimer, MonotonicClock.millis());
+                if (newLatencyTimer != latencyTimer) {
+                    Log.d(TAG, "latency timer " + latencyTimer + " -> " + newLatencyTimer + ", " + tuner);
+                    setLatencyTimer(newLatencyTimer);
+                }
+            }
+            return len;
         }
 
         protected int readFilter(byte[] buffer, int totalBytesRead) throws IOException {
             final int maxPacketSize = mReadEndpoint.getMaxPacketSize();
             int destPos = 0;
+            int modemStatus = headerModemStatus;
+            int lineStatus = headerLineStatus;
             for(int srcPos = 0; srcPos < totalBytesRead; srcPos += maxPacketSize) {
                 int length = Math.min(srcPos + maxPacketSize, totalBytesRead) - (srcPos + READ_HEADER_LENGTH);
                 if (length < 0)
                     throw new IOException("Expected at least " + READ_HEADER_LENGTH + " bytes");
+                modemStatus = buffer[srcPos] & MODEM_STATUS_MASK;
+                lineStatus = buffer[srcPos + 1] & 0xff;
+                // similar to Linux ftdi_sio, count errors only for packets with data to avoid over-reporting
+                if (length > 0 && bitMode == BITMODE_RESET && (lineStatus & LINE_STATUS_ERROR_MASK) != 0) {
+                    if ((lineStatus & LINE_STATUS_BREAK) != 0)
+                        countLineError(LineError.BREAK);
+                    else if ((lineStatus & LINE_STATUS_PARITY) != 0)
+                        countLineError(LineError.PARITY);
+                    else if ((lineStatus & LINE_STATUS_FRAMING) != 0)
+                        countLineError(LineError.FRAMING);
+                    if ((lineStatus & LINE_STATUS_OVERRUN) != 0)
+                        countLineError(LineError.OVERRUN);
+                }
                 System.arraycopy(buffer, srcPos + READ_HEADER_LENGTH, buffer, destPos, length);
                 destPos += length;
             }
+            if (totalBytesRead > 0) {
+                boolean changed = modemStatus != headerModemStatus || headerStatusMillis == 0;
+                headerModemStatus = modemStatus;
+                headerLineStatus = lineStatus;
+                headerStatusMillis = MonotonicClock.millis();
+                if (changed && getControlLineListener() != null)
+                    notifyControlLines(getControlLines(modemStatus));
+            }
             //Log.d(TAG, "read filter " + totalBytesRead + " -> " + destPos);
             return destPos;
         }
 
-        private void setBaudrate(int baudRate) throws IOException {
-            int divisor, subdivisor, effectiveBaudRate;
-            if (baudRate > 3500000) {
-                throw new UnsupportedOperationException("Baud rate to high");
-            } else if(baudRate >= 2500000) {
-                divisor = 0;
-                subdivisor = 0;
-                effectiveBaudRate = 3000000;
-            } else if(baudRate >= 1750000) {
-                divisor = 1;
-                subdivisor = 0;
-                effectiveBaudRate = 2000000;
-            } else {
-                divisor = (24000000 << 1) / baudRate;
-                divisor = (divisor + 1) >> 1; // round
-                subdivisor = divisor & 0x07;
-                divisor >>= 3;
-                if (divisor > 0x3fff) // exceeds bit 13 at 183 baud
-                    throw new UnsupportedOperationException("Baud rate to low");
-                effectiveBaudRate = (24000000 << 1) / ((divisor << 3) + subdivisor);
-                effectiveBaudRate = (effectiveBaudRate +1) >> 1;
-            }
-            double baudRateError = Math.abs(1.0 - (effectiveBaudRate / (double)baudRate));
-            if(baudRateError >= 0.031) // can happen only > 1.5Mbaud
-                throw new UnsupportedOperationException(String.format("Baud rate deviation %.1f%% is higher than allowed 3%%", baudRateError*100));
-            int value = divisor;
-            int index = 0;
-            switch(subdivisor) {
-                case 0:                              break; // 16,15,14 = 000 - sub-integer divisor = 0
-                case 4: value |= 0x4000;             break; // 16,15,14 = 001 - sub-integer divisor = 0.5
-                case 2: value |= 0x8000;             break; // 16,15,14 = 010 - sub-integer divisor = 0.25
-                case 1: value |= 0xc000;             break; // 16,15,14 = 011 - sub-integer divisor = 0.125
-                case 3: value |= 0x0000; index |= 1; break; // 16,15,14 = 100 - sub-integer divisor = 0.375
-                case 5: value |= 0x4000; index |= 1; break; // 16,15,14 = 101 - sub-integer divisor = 0.625
-                case 6: value |= 0x8000; index |= 1; break; // 16,15,14 = 110 - sub-integer divisor = 0.75
-                case 7: value |= 0xc000; index |= 1; break; // 16,15,14 = 111 - sub-integer divisor = 0.875
-            }
+        /**
+         * The device sends a header at least every latency timer interval while a read request is pending.
+         */
+        private boolean isHeaderStatusValid() {
+            long statusMillis = headerStatusMillis;
+            return statusMillis != 0 && MonotonicClock.millis() - statusMillis <= 2L * latencyTimer + 10;
+        }
+
+        private int setBaudrate(int baudRate) throws IOException {
+            // H devices can use 120 MHz clock for high baud rates, but not below 1200 baud
+            boolean highSpeedClock = (deviceType == DEVICE_TYPE_FT2232H || deviceType == DEVICE_TYPE_FT4232H || deviceType == DEVICE_TYPE_FT232H)
+                    && baudRate >= HIGH_SPEED_CLOCK_MIN_BAUD_RATE;
+            int[] divisor = getBaudRateDivisor(baudRate, highSpeedClock);
+            int value = divisor[0];
+            int index = divisor[1];
+            int effectiveBaudRate = divisor[2];
             if(baudRateWithPort) {
                 index <<= 8;
                 index |= mPortNumber+1;
             }
-            Log.d(TAG, String.format("baud rate=%d, effective=%d, error=%.1f%%, value=0x%04x, index=0x%04x, divisor=%d, subdivisor=%d",
-                    baudRate, effectiveBaudRate, baudRateError*100, value, index, divisor, subdivisor));
+            Log.d(TAG, String.format("baud rate=%d, effective=%d, error=%.1f%%, value=0x%04x, index=0x%04x, clock=%s",
+                    baudRate, effectiveBaudRate, Math.abs(1.0 - (effectiveBaudRate / (double)baudRate))*100, value, index,
+                    highSpeedClock ? "120MHz" : "48MHz"));
 
             int result = mConnection.controlTransfer(REQTYPE_HOST_TO_DEVICE, SET_BAUD_RATE_REQUEST,
                     value, index, null, 0, USB_WRITE_TIMEOUT_MILLIS);
             if (result != 0) {
                 throw new IOException("Setting baudrate failed: result=" + result);
             }
+            return effectiveBaudRate;
         }
 
         @Override
@@ -247,6 +300,9 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             if(baudRate <= 0) {
                 throw new IllegalArgumentException("Invalid baud rate: " + baudRate);
             }
+            if (syncFifoMode) {
+                return; // no UART
+            }
             setBaudrate(baudRate);
 
             int config = 0;
@@ -299,16 +355,55 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                 throw new IOException("Setting parameters failed: result=" + result);
             }
             breakConfig = config;
+            setFrameTime(baudRate, dataBits, stopBits, parity);
         }
 
-        private int getStatus() throws IOException {
+        /**
+         * @return modem status and line status
+         */
+        private byte[] pollStatus() throws IOException {
             byte[] data = new byte[2];
             int result = mConnection.controlTransfer(REQTYPE_DEVICE_TO_HOST, GET_MODEM_STATUS_REQUEST,
                     0, mPortNumber+1, data, data.length, USB_WRITE_TIMEOUT_MILLIS);
             if (result != data.length) {
                 throw new IOException("Get modem status failed: result=" + result);
             }
-            return data[0];
+            return data;
+        }
+
+        private int getStatus() throws IOException {
+            if (isHeaderStatusValid()) {
+                return headerModemStatus;
+            }
+            return pollStatus()[0];
+        }
+
+        /**
+         * Polls the transmitter empty status, set when the last stop bit has been sent. While reading,
+         * read headers received after this method was called can already show the empty status.
+         */
+        @Override
+        protected long waitTransmitted(int timeout) throws IOException {
+            if (syncFifoMode || bitMode != BITMODE_RESET) {
+                return System.nanoTime(); // no UART
+            }
+            final long startTime = MonotonicClock.millis();
+            final long endTime = timeout == 0 ? Long.MAX_VALUE : startTime + timeout;
+            while (true) {
+                if (isHeaderStatusValid() && headerStatusMillis > startTime && (headerLineStatus & LINE_STATUS_TEMT) != 0) {
+                    return System.nanoTime();
+                }
+                if ((pollStatus()[1] & LINE_STATUS_TEMT) != 0) {
+                    return System.nanoTime();
+                }
+                long remaining = endTime - MonotonicClock.millis();
+                if (remaining <= 0) {
+                    throw new SerialTimeoutException("Drain timeout", 0);
+                }
+                // expected send time, but at least 1 msec to limit USB load and at most 50 msec to not miss flow control changes
+                long expected = (getTransmitEndNanos() - System.nanoTime()) / 1000000;
+                sleepNanos(Math.max(1, Math.min(50, Math.min(remaining, expected))) * 1000000);
+            }
         }
 
         @Override
@@ -339,6 +434,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                 throw new IOException("Set DTR failed: result=" + result);
             }
             dtr = value;
+            headerStatusMillis = 0; // input lines might follow, e.g. with loopback or handshake
         }
 
         @Override
@@ -359,11 +455,15 @@ public class FtdiSerialDriver implements UsbSerialDriver {
                 throw new IOException("Set DTR failed: result=" + result);
             }
             rts = value;
+            headerStatusMillis = 0; // input lines might follow, e.g. with loopback or handshake
         }
 
         @Override
         public EnumSet<ControlLine> getControlLines() throws IOException {
-            int status = getStatus();
+            return getControlLines(getStatus());
+        }
+
+        private EnumSet<ControlLine> getControlLines(int status) {
             EnumSet<ControlLine> set = EnumSet.noneOf(ControlLine.class);
             if(rts) set.add(ControlLine.RTS);
             if((status & MODEM_STATUS_CTS) != 0) set.add(ControlLine.CTS);
@@ -379,6 +479,11 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             return EnumSet.allOf(ControlLine.class);
         }
 
+        @Override
+        public EnumSet<LineError> getSupportedLineErrors() {
+            return EnumSet.allOf(LineError.class);
+        }
+
         @Override
         public void setFlowControl(FlowControl flowControl) throws IOException {
             int value = 0;
@@ -411,6 +516,26 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             return EnumSet.of(FlowControl.NONE, FlowControl.RTS_CTS, FlowControl.DTR_DSR, FlowControl.XON_XOFF_INLINE);
         }
 
+        @Override
+        public UsbSerialPortProfile getProfile() {
+            UsbSerialPortProfile profile = super.getProfile()
+                    .setReadHeaderSize(READ_HEADER_LENGTH)
+                    .setInterruptStatus(true);
+            int productId = mDevice.getProductId();
+            if (deviceType == DEVICE_TYPE_FT2232H || productId == UsbId.FTDI_FT2232H) {
+                profile.setFifoSizes(4096, 4096).setMaxBaudRate(12000000);
+            } else if (deviceType == DEVICE_TYPE_FT4232H || productId == UsbId.FTDI_FT4232H) {
+                profile.setFifoSizes(2048, 2048).setMaxBaudRate(12000000);
+            } else if (deviceType == DEVICE_TYPE_FT232H || productId == UsbId.FTDI_FT232H) {
+                profile.setFifoSizes(1024, 1024).setMaxBaudRate(12000000);
+            } else if (productId == UsbId.FTDI_FT231X) {
+                profile.setFifoSizes(512, 512).setMaxBaudRate(3000000);
+            } else { // FT232R
+                profile.setFifoSizes(256, 128).setMaxBaudRate(3000000);
+            }
+            return profile;
+        }
+
         @Override
         public void purgeHwBuffers(boolean purgeWriteBuffers, boolean purgeReadBuffers) throws IOException {
             if (purgeWriteBuffers) {
@@ -447,6 +572,7 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             if (result != 0) {
                 throw new IOException("Set latency timer failed: result=" + result);
             }
+            this.latencyTimer = latencyTime;
         }
 
         public int getLatencyTimer() throws IOException {
@@ -456,9 +582,245 @@ public class FtdiSerialDriver implements UsbSerialDriver {
             if (result != data.length) {
                 throw new IOException("Get latency timer failed: result=" + result);
             }
+            latencyTimer = data[0] & 0xff;
             return data[0];
         }
 
+        /**
+         * Set event character. When received, the device sends buffered data to the host immediately,
+         * instead of waiting for a full packet or the latency timer. Useful for line oriented protocols
+         * e.g. with '\n', without the USB load of a short latency timer.
+         *
+         * @param eventChar character value 0..255, or -1 to disable
+         */
+        public void setEventChar(int eventChar) throws IOException {
+            if (eventChar < -1 || eventChar > 255) {
+                throw new IllegalArgumentException("Invalid event char: " + eventChar);
+            }
+            int value = eventChar < 0 ? 0 : eventChar | EVENT_CHAR_ENABLE;
+            int result = mConnection.controlTransfer(REQTYPE_HOST_TO_DEVICE, SET_EVENT_CHAR_REQUEST,
+                    value, mPortNumber+1, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+            if (result != 0) {
+                throw new IOException("Set event char failed: result=" + result);
+            }
+            this.eventChar = eventChar;
+        }
+
+        public int getEventChar() {
+            return eventChar;
+        }
+
+        /**
+         * Synchronous 245 FIFO mode of FT232H and FT2232H channel A, for transfer rates up to ~40 MB/s.
+         * <p>
+         * Requires the EEPROM configured for 245 FIFO mode. Baud rate and data format are not
+         * used in this mode, so setParameters() does nothing. Use read buffers with a multiple of
+         * the 512 byte packet size and {@link #setReadQueue} to keep up with the data rate.
+         */
+        public void setSyncFifoMode(boolean enable) throws IOException {
+            if (mConnection != null) {
+                if (enable && deviceType != DEVICE_TYPE_FT232H && !(deviceType == DEVICE_TYPE_FT2232H && mPortNumber == 0)) {
+                    throw new UnsupportedOperationException("Sync FIFO mode not supported by this device");
+                }
+                setBitMode(0xff, BITMODE_RESET);
+                if (enable) {
+                    setBitMode(0xff, BITMODE_SYNC_FIFO);
+                }
+            }
+            syncFifoMode = enable;
+        }
+
+        public boolean getSyncFifoMode() {
+            return syncFifoMode;
+        }
+
+        /**
+         * MPSSE engine of H devices, except channel C and D of FT4232H
+         */
+        boolean isMpsseSupported() {
+            return deviceType == DEVICE_TYPE_FT232H
+                    || ((deviceType == DEVICE_TYPE_FT2232H || deviceType == DEVICE_TYPE_FT4232H) && mPortNumber < 2);
+        }
+
+        /**
+         * Set bit mode, e.g. {@link #BITMODE_ASYNC_BITBANG} or {@link #BITMODE_SYNC_BITBANG}.
+         * <p>
+         * In bitbang modes each written byte is output on the 8 data pins, clocked with the rate set by
+         * {@link #setBitBangRate}. Large patterns are streamed with {@link #write}, so there is no USB
+         * round trip per pin change. In synchronous mode each written byte also samples the pins,
+         * use {@link #transferPins} to read them back. {@link #BITMODE_RESET} returns to UART mode.
+         *
+         * @param mask pin direction, bit 1 = output
+         */
+        public void setBitMode(int mask, int mode) throws IOException {
+            if (mask < 0 || mask > 0xff || mode < 0 || mode > 0xff) {
+                throw new IllegalArgumentException("Invalid bit mode: mask=" + mask + ", mode=" + mode);
+            }
+            int result = mConnection.controlTransfer(REQTYPE_HOST_TO_DEVICE, SET_BITMODE_REQUEST,
+                    (mode << 8) | mask, mPortNumber+1, null, 0, USB_WRITE_TIMEOUT_MILLIS);
+            if (result != 0) {
+                throw new IOException("Set bit mode failed: result=" + result);
+            }
+            bitMode = mode;
+        }
+
+        public int getBitMode() {
+            return bitMode;
+        }
+
+        /**
+         * Set pin update rate of bitbang modes, generated by the baud rate generator at 16 times the baud rate.
+         *
+         * @return effective rate in bytes per second
+         */
+        public int setBitBangRate(int bytesPerSecond) throws IOException {
+            if (bytesPerSecond < BITBANG_CLOCK_MULTIPLIER) {
+                throw new IllegalArgumentException("Invalid bitbang rate: " + bytesPerSecond);
+            }
+            return setBaudrate(bytesPerSecond / BITBANG_CLOCK_MULTIPLIER) * BITBANG_CLOCK_MULTIPLIER;
+        }
+
+        /**
+         * Read current pin states, in any bit mode. This needs one USB round trip per call,
+         * for sampling at a fixed rate use {@link #transferPins}.
+         */
+        public int readPins() throws IOException {
+            byte[] data = new byte[1];
+            int result = mConnection.controlTransfer(REQTYPE_DEVICE_TO_HOST, READ_PINS_REQUEST,
+                    0, mPortNumber+1, data, data.length, USB_WRITE_TIMEOUT_MILLIS);
+            if (result != data.length) {
+                throw new IOException("Read pins failed: result=" + result);
+            }
+            return data[0] & 0xff;
+        }
+
+        /**
+         * Write pin pattern in synchronous bitbang mode and read back the pins, sampled before each
+         * written byte is output.
+         * <p>
+         * Sampled pins are stored in the device receive buffer, so writes are kept at most one
+         * receive buffer ahead of reads to avoid losing samples. Writes are done in chunks of half
+         * the receive buffer, so the next chunk is already queued while the previous one is read back.
+         *
+         * @param pattern pin states to output
+         * @param samples buffer for pattern.length sampled pin states
+         * @param timeout total timeout in milliseconds, > 0
+         * @throws SerialTimeoutException with number of samples read, if timeout exceeded
+         */
+        public void transferPins(byte[] pattern, byte[] samples, int timeout) throws IOException {
+            if (bitMode != BITMODE_SYNC_BITBANG) {
+                throw new IOException("Not in synchronous bitbang mode");
+            }
+            if (samples.length < pattern.length) {
+                throw new IllegalArgumentException("Samples buffer too small");
+            }
+            if (timeout <= 0) {
+                throw new IllegalArgumentException("Invalid timeout: " + timeout);
+            }
+            final int bufferSize = getPinBufferSize();
+            final int chunkSize = bufferSize / 2;
+            final int maxPacketSize = mReadEndpoint.getMaxPacketSize();
+            final byte[] chunk = new byte[chunkSize];
+            final byte[] readBuffer = new byte[(bufferSize / (maxPacketSize - READ_HEADER_LENGTH) + 1) * maxPacketSize];
+            final long endTime = MonotonicClock.millis() + timeout;
+            int written = 0, sampled = 0;
+            while (sampled < pattern.length) {
+                while (written < pattern.length && written + Math.min(chunkSize, pattern.length - written) - sampled <= bufferSize) {
+                    int length = Math.min(chunkSize, pattern.length - written);
+                    System.arraycopy(pattern, written, chunk, 0, length);
+                    write(chunk, length, Math.max(1, (int) (endTime - MonotonicClock.millis())));
+                    written += length;
+                }
+                int remaining = (int) (endTime - MonotonicClock.millis());
+                if (remaining <= 0) {
+                    throw new SerialTimeoutException("Pin transfer timeout", sampled);
+                }
+                int len = read(readBuffer, readBuffer.length, remaining);
+                if (len > written - sampled) {
+                    throw new IOException("Unexpected pin samples: " + len + " instead of " + (written - sampled) + " bytes");
+                }
+                System.arraycopy(readBuffer, 0, samples, sampled, len);
+                sampled += len;
+            }
+        }
+
+        /**
+         * Smallest receive buffer of device family, 1 kB for H devices, else 256 bytes
+         */
+        private int getPinBufferSize() {
+            return deviceType == DEVICE_TYPE_FT2232H || deviceType == DEVICE_TYPE_FT4232H || deviceType == DEVICE_TYPE_FT232H
+                    ? 1024 : 256;
+        }
+
+        /**
+         * Adapt latency timer to traffic pattern seen by read().
+         * <p>
+         * Reads have to be done continuously, e.g. with {@link com.hoho.android.usbserial.util.SerialInputOutputManager}.
+         *
+         * @param tuner tuner with latency timer limits and metrics, or null to keep current latency timer
+         */
+        public void setLatencyTimerTuner(FtdiLatencyTimerTuner tuner) throws IOException {
+            if (tuner != null && mConnection != null) {
+                getLatencyTimer(); // start from actual value
+            }
+            latencyTimerTuner = tuner;
+        }
+
+        public FtdiLatencyTimerTuner getLatencyTimerTuner() {
+            return latencyTimerTuner;
+        }
+
+    }
+
+    /**
+     * Baud rate divisor, see https://www.ftdichip.com/Support/Documents/AppNotes/AN232B-05_BaudRates.pdf
+     * <p>
+     * The 48 MHz clock gives a 3 MHz base and the 120 MHz clock of H devices gives a 12 MHz base,
+     * as it uses 10 instead of 16 samples per bit. Bit 17 disables the divide by 2.5 for the 120 MHz clock.
+     *
+     * @return {value, index without port number, effective baud rate}
+     */
+    static int[] getBaudRateDivisor(int baudRate, boolean highSpeedClock) {
+        final int baseClock = highSpeedClock ? 12000000 : 3000000;
+        int divisor, subdivisor, effectiveBaudRate;
+        if (baudRate > baseClock / 6 * 7) { // 3.5 / 14 Mbaud
+            throw new UnsupportedOperationException("Baud rate to high");
+        } else if(baudRate >= baseClock / 6 * 5) {
+            divisor = 0;
+            subdivisor = 0;
+            effectiveBaudRate = baseClock;
+        } else if(baudRate >= baseClock / 12 * 7) {
+            divisor = 1;
+            subdivisor = 0;
+            effectiveBaudRate = baseClock / 3 * 2;
+        } else {
+            divisor = ((baseClock * 8) << 1) / baudRate;
+            divisor = (divisor + 1) >> 1; // round
+            subdivisor = divisor & 0x07;
+            divisor >>= 3;
+            if (divisor > 0x3fff) // exceeds bit 13 at 183 baud
+                throw new UnsupportedOperationException("Baud rate to low");
+            effectiveBaudRate = ((baseClock * 8) << 1) / ((divisor << 3) + subdivisor);
+            effectiveBaudRate = (effectiveBaudRate +1) >> 1;
+        }
+        double baudRateError = Math.abs(1.0 - (effectiveBaudRate / (double)baudRate));
+        if(baudRateError >= 0.031) // can happen only > 1.5Mbaud or > 6Mbaud
+            throw new UnsupportedOperationException(String.format("Baud rate deviation %.1f%% is higher than allowed 3%%, nearest baud rate %d", baudRateError*100, effectiveBaudRate));
+        int value = divisor;
+        int index = 0;
+        switch(subdivisor) {
+            case 0:                              break; // 16,15,14 = 000 - sub-integer divisor = 0
+            case 4: value |= 0x4000;             break; // 16,15,14 = 001 - sub-integer divisor = 0.5
+            case 2: value |= 0x8000;             break; // 16,15,14 = 010 - sub-integer divisor = 0.25
+            case 1: value |= 0xc000;             break; // 16,15,14 = 011 - sub-integer divisor = 0.125
+            case 3: value |= 0x0000; index |= 1; break; // 16,15,14 = 100 - sub-integer divisor = 0.375
+            case 5: value |= 0x4000; index |= 1; break; // 16,15,14 = 101 - sub-integer divisor = 0.625
+            case 6: value |= 0x8000; index |= 1; break; // 16,15,14 = 110 - sub-integer divisor = 0.75
+            case 7: value |= 0xc000; index |= 1; break; // 16,15,14 = 111 - sub-integer divisor = 0.875
+        }
+        if(highSpeedClock)
+            index |= 2; // 17 = 1 - 120 MHz clock without divide by 2.5
+        return new int[]{value, index, effectiveBaudRate};
     }
 
     @SuppressWarnings({"unused"})
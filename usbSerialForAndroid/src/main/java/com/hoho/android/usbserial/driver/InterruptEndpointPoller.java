@@ -0,0 +1,183 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+
+import com.hoho.android.usbserial.util.MonotonicClock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Reads status notifications from the interrupt endpoints of all open ports.
+ * <p>
+ * A single thread reads the registered endpoints round-robin, so the number of threads does not
+ * grow with the number of open ports. The transfer timeout is split between the ports, so each
+ * endpoint is read about every {@link #CYCLE_MILLIS}. Notifications are not lost in between,
+ * as the device keeps them until the endpoint is read again. The thread ends when no port is registered.
+ * <p>
+ * With a single registered endpoint, notifications are delivered as soon as they arrive. With
+ * multiple endpoints, a notification can wait while the other endpoints are read, so notification
+ * latency grows up to {@link #CYCLE_MILLIS}.
+ * <p>
+ * Blocking bulkTransfer is used instead of queued UsbRequests, as requestWait() on a connection
+ * would also return requests queued by the read path, see {@link ReadQueue}, and one thread
+ * cannot wait on multiple connections.
+ */
+class InterruptEndpointPoller {
+
+    static final int CYCLE_MILLIS = 200;
+    static final int MIN_TIMEOUT_MILLIS = 20;
+
+    interface DataListener {
+        void onData(byte[] buffer, int length) throws IOException;
+    }
+
+    interface ErrorListener {
+        void onError(Exception e);
+    }
+
+    private static class Entry {
+        final CommonUsbSerialPort port;
+        final UsbDeviceConnection connection;
+        final UsbEndpoint endpoint;
+        final byte[] buffer;
+        final DataListener dataListener;
+        final ErrorListener errorListener;
+
+        Entry(CommonUsbSerialPort port, UsbDeviceConnection connection, UsbEndpoint endpoint, int bufferSize,
+              DataListener dataListener, ErrorListener errorListener) {
+            this.port = port;
+            this.connection = connection;
+            this.endpoint = endpoint;
+            this.buffer = new byte[bufferSize];
+            this.dataListener = dataListener;
+            this.errorListener = errorListener;
+        }
+    }
+
+    private static final InterruptEndpointPoller sInstance = new InterruptEndpointPoller();
+
+    private final List<Entry> mEntries = new ArrayList<>(); // guarded by this
+    private Entry mCurrent; // entry with running transfer or listener call, guarded by this
+    private Thread mThread; // guarded by this
+
+    static InterruptEndpointPoller getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Start reading endpoint with the connection given here, which is still valid
+     * while the port is closed, until {@link #remove} is called in closeInt().
+     */
+    synchronized void add(CommonUsbSerialPort port, UsbDeviceConnection connection, UsbEndpoint endpoint, int bufferSize,
+                          DataListener dataListener, ErrorListener errorListener) {
+        removeEntries(port);
+        mEntries.add(new Entry(port, connection, endpoint, bufferSize, dataListener, errorListener));
+        if (mThread == null) {
+            mThread = new Thread(this::run, InterruptEndpointPoller.class.getSimpleName());
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Stop reading endpoint. When returning, no transfer is running on the connection of this port
+     * and no listener is called anymore, so the connection can be closed.
+     * <p>
+     * A transfer already running is waited for, which can take up to the transfer timeout
+     * of at most {@link #CYCLE_MILLIS}. Its result is dropped.
+     */
+    synchronized void remove(CommonUsbSerialPort port) {
+        removeEntries(port);
+        while (mCurrent != null && mCurrent.port == port && Thread.currentThread() != mThread) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    synchronized boolean contains(CommonUsbSerialPort port) {
+        for (Entry entry : mEntries)
+            if (entry.port == port)
+                return true;
+        return false;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+
+    private void removeEntries(CommonUsbSerialPort port) {
+        for (Iterator<Entry> it = mEntries.iterator(); it.hasNext(); )
+            if (it.next().port == port)
+                it.remove();
+    }
+
+    private synchronized boolean start(Entry entry) {
+        if (!mEntries.contains(entry))
+            return false;
+        mCurrent = entry;
+        return true;
+    }
+
+    private synchronized boolean contains(Entry entry) {
+        return mEntries.contains(entry);
+    }
+
+    private synchronized void end() {
+        mCurrent = null;
+        notifyAll();
+    }
+
+    private void run() {
+        while (true) {
+            Entry[] entries;
+            synchronized (this) {
+                if (mEntries.isEmpty()) {
+                    mThread = null;
+                    return;
+                }
+                entries = mEntries.toArray(new Entry[0]);
+            }
+            int timeout = Math.max(MIN_TIMEOUT_MILLIS, CYCLE_MILLIS / entries.length);
+            for (Entry entry : entries) {
+                if (!start(entry)) // removed meanwhile
+                    continue;
+                try {
+                    long endTime = MonotonicClock.millis() + timeout;
+                    int len;
+                    Exception exception = null;
+                    try {
+                        len = entry.connection.bulkTransfer(entry.endpoint, entry.buffer, entry.buffer.length, timeout);
+                    } catch (Exception e) {
+                        len = -1;
+                        exception = e;
+                    }
+                    if (len == 0 || !contains(entry)) // no data or removed meanwhile
+                        continue;
+                    try {
+                        if (exception != null)
+                            throw exception;
+                        if (len == -1)
+                            entry.port.testConnection(MonotonicClock.millis() < endTime);
+                        else
+                            entry.dataListener.onData(entry.buffer, len);
+                    } catch (Exception e) {
+                        synchronized (this) {
+                            mEntries.remove(entry);
+                        }
+                        entry.errorListener.onError(e);
+                    }
+                } finally {
+                    end();
+                }
+            }
+        }
+    }
+}
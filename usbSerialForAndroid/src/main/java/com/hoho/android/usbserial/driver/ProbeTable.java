@@ -7,22 +7,75 @@
 package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDevice;
-import android.util.Pair;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
-import java.util.LinkedHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Maps (vendor id, product id) pairs to the corresponding serial driver,
- * or invoke 'probe' method to check actual USB devices for matching interfaces.
+ * or invoke {@link DeviceProbe} to check actual USB devices for matching interfaces.
+ * <p>
+ * Pairs are stored as sorted (vendorId &lt;&lt; 16) | productId values, so lookups
+ * do not allocate objects. Probe methods and driver constructors of the built-in
+ * drivers are registered as {@link DeviceProbe} and {@link DriverFactory}, not via reflection.
  */
 public class ProbeTable {
 
-    private final Map<Pair<Integer, Integer>, Class<? extends UsbSerialDriver>> mVidPidProbeTable =
-            new LinkedHashMap<>();
-    private final Map<Method, Class<? extends UsbSerialDriver>> mMethodProbeTable = new LinkedHashMap<>();
+    /**
+     * Checks actual USB device for matching interfaces
+     */
+    public interface DeviceProbe {
+        boolean probe(UsbDevice device);
+    }
+
+    /**
+     * Creates driver instance, typically the driver constructor, e.g. {@code FtdiSerialDriver::new}
+     */
+    public interface DriverFactory {
+        UsbSerialDriver create(UsbDevice device);
+    }
+
+    private int[] mVidPids = new int[64]; // sorted
+    private Class<?>[] mVidPidDrivers = new Class<?>[64];
+    private int mVidPidCount = 0;
+    private final List<DeviceProbe> mProbes = new ArrayList<>();
+    private final List<Class<? extends UsbSerialDriver>> mProbeDrivers = new ArrayList<>();
+    private final Map<Class<? extends UsbSerialDriver>, DriverFactory> mDriverFactories = new HashMap<>();
+    private boolean mReadOnly = false;
+
+    public ProbeTable() {
+    }
+
+    /**
+     * Copy of other table, which can be modified independently.
+     */
+    public ProbeTable(ProbeTable other) {
+        mVidPids = Arrays.copyOf(other.mVidPids, other.mVidPids.length);
+        mVidPidDrivers = Arrays.copyOf(other.mVidPidDrivers, other.mVidPidDrivers.length);
+        mVidPidCount = other.mVidPidCount;
+        mProbes.addAll(other.mProbes);
+        mProbeDrivers.addAll(other.mProbeDrivers);
+        mDriverFactories.putAll(other.mDriverFactories);
+    }
+
+    static int vidPid(int vendorId, int productId) {
+        return (vendorId << 16) | (productId & 0xffff);
+    }
+
+    /**
+     * Prevent further modifications, used for the shared default table.
+     */
+    void setReadOnly() {
+        mReadOnly = true;
+    }
+
+    private void checkWritable() {
+        if (mReadOnly)
+            throw new UnsupportedOperationException("Read only probe table, use a copy");
+    }
 
     /**
      * Adds or updates a (vendor, product) pair in the table.
@@ -34,45 +87,72 @@ public class ProbeTable {
      */
     public ProbeTable addProduct(int vendorId, int productId,
             Class<? extends UsbSerialDriver> driverClass) {
-        mVidPidProbeTable.put(Pair.create(vendorId, productId), driverClass);
+        checkWritable();
+        int key = vidPid(vendorId, productId);
+        int pos = Arrays.binarySearch(mVidPids, 0, mVidPidCount, key);
+        if (pos >= 0) {
+            mVidPidDrivers[pos] = driverClass;
+            return this;
+        }
+        pos = -pos - 1;
+        if (mVidPidCount == mVidPids.length) {
+            mVidPids = Arrays.copyOf(mVidPids, mVidPidCount * 2);
+            mVidPidDrivers = Arrays.copyOf(mVidPidDrivers, mVidPidCount * 2);
+        }
+        System.arraycopy(mVidPids, pos, mVidPids, pos + 1, mVidPidCount - pos);
+        System.arraycopy(mVidPidDrivers, pos, mVidPidDrivers, pos + 1, mVidPidCount - pos);
+        mVidPids[pos] = key;
+        mVidPidDrivers[pos] = driverClass;
+        mVidPidCount++;
         return this;
     }
 
     /**
-     * Internal method to add all supported products from
-     * {@code getSupportedProducts} static method.
+     * Adds a probe, called in order of registration for devices not found by (vendor, product) pair.
      *
-     * @param driverClass to be added
+     * @param probe checks device for matching interfaces
+     * @param driverClass the driver class responsible for matching devices
+     * @return {@code this}, for chaining
      */
-    @SuppressWarnings("unchecked")
-    void addDriver(Class<? extends UsbSerialDriver> driverClass) {
-        Method method;
+    public ProbeTable addProbe(DeviceProbe probe, Class<? extends UsbSerialDriver> driverClass) {
+        checkWritable();
+        mProbes.add(probe);
+        mProbeDrivers.add(driverClass);
+        return this;
+    }
 
-        try {
-            method = driverClass.getMethod("getSupportedDevices");
-        } catch (SecurityException | NoSuchMethodException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * Sets factory used by {@link UsbSerialProber} instead of reflection to create driver instances.
+     *
+     * @return {@code this}, for chaining
+     */
+    public ProbeTable setDriverFactory(Class<? extends UsbSerialDriver> driverClass, DriverFactory factory) {
+        checkWritable();
+        mDriverFactories.put(driverClass, factory);
+        return this;
+    }
 
-        final Map<Integer, int[]> devices;
-        try {
-            devices = (Map<Integer, int[]>) method.invoke(null);
-        } catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException e) {
-            throw new RuntimeException(e);
-        }
+    /**
+     * @return factory for driver class, or {@code null} if driver has to be created with reflection
+     */
+    public DriverFactory getDriverFactory(Class<? extends UsbSerialDriver> driverClass) {
+        return mDriverFactories.get(driverClass);
+    }
 
+    /**
+     * Internal method to add all supported products, probe method and constructor of a built-in driver.
+     */
+    void addDriver(Class<? extends UsbSerialDriver> driverClass, DriverFactory factory,
+                   Map<Integer, int[]> devices, DeviceProbe probe) {
         for (Map.Entry<Integer, int[]> entry : devices.entrySet()) {
             final int vendorId = entry.getKey();
             for (int productId : entry.getValue()) {
                 addProduct(vendorId, productId, driverClass);
             }
         }
-
-        try {
-            method = driverClass.getMethod("probe", UsbDevice.class);
-            mMethodProbeTable.put(method, driverClass);
-        } catch (SecurityException | NoSuchMethodException ignored) {
-        }
+        if (probe != null)
+            addProbe(probe, driverClass);
+        setDriverFactory(driverClass, factory);
     }
 
     /**
@@ -81,20 +161,14 @@ public class ProbeTable {
      * @param usbDevice the USB device to be probed
      * @return the driver class matching this pair, or {@code null}
      */
+    @SuppressWarnings("unchecked")
     public Class<? extends UsbSerialDriver> findDriver(final UsbDevice usbDevice) {
-        final Pair<Integer, Integer> pair = Pair.create(usbDevice.getVendorId(), usbDevice.getProductId());
-        Class<? extends UsbSerialDriver> driverClass = mVidPidProbeTable.get(pair);
-        if (driverClass != null)
-            return driverClass;
-        for (Map.Entry<Method, Class<? extends UsbSerialDriver>> entry : mMethodProbeTable.entrySet()) {
-            try {
-                Method method = entry.getKey();
-                Object o = method.invoke(null, usbDevice);
-                if((boolean)o)
-                    return entry.getValue();
-            } catch (IllegalArgumentException | IllegalAccessException | InvocationTargetException e) {
-                throw new RuntimeException(e);
-            }
+        int pos = Arrays.binarySearch(mVidPids, 0, mVidPidCount, vidPid(usbDevice.getVendorId(), usbDevice.getProductId()));
+        if (pos >= 0)
+            return (Class<? extends UsbSerialDriver>) mVidPidDrivers[pos];
+        for (int i = 0; i < mProbes.size(); i++) {
+            if (mProbes.get(i).probe(usbDevice))
+                return mProbeDrivers.get(i);
         }
         return null;
     }
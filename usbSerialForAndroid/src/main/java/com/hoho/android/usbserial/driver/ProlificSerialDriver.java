@@ -16,7 +16,7 @@ import android.hardware.usb.UsbInterface;
 import android.util.Log;
 
 import com.hoho.android.usbserial.BuildConfig;
-import com.hoho.android.usbserial.util.MonotonicClock;
+import com.hoho.android.usbserial.util.UsbDescriptors;
 
 import java.io.IOException;
 import java.util.Collections;
@@ -118,11 +118,10 @@ public class ProlificSerialDriver implements UsbSerialDriver {
         private int mControlLinesValue = 0;
         private int mBaudRate = -1, mDataBits = -1, mStopBits = -1, mParity = -1;
 
-        private int mStatus = 0;
-        private volatile Thread mReadStatusThread = null;
-        private final Object mReadStatusThreadLock = new Object();
-        private boolean mStopReadStatusThread = false;
-        private Exception mReadStatusException = null;
+        private volatile int mStatus = 0;
+        private volatile boolean mReadStatus = false; // status read from interrupt endpoint by InterruptEndpointPoller
+        private final Object mReadStatusLock = new Object();
+        private volatile Exception mReadStatusException = null;
 
 
         public ProlificSerialPort(UsbDevice device, int portNumber) {
@@ -199,35 +198,24 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             mControlLinesValue = newControlLinesValue;
         }
 
-        private void readStatusThreadFunction() {
-            try {
-                byte[] buffer = new byte[STATUS_BUFFER_SIZE];
-                while (!mStopReadStatusThread) {
-                    long endTime = MonotonicClock.millis() + 500;
-                    int readBytesCount = mConnection.bulkTransfer(mInterruptEndpoint, buffer, STATUS_BUFFER_SIZE, 500);
-                    if(readBytesCount == -1)
-                        testConnection(MonotonicClock.millis() < endTime);
-                    if (readBytesCount > 0) {
-                        if (readBytesCount != STATUS_BUFFER_SIZE) {
-                            throw new IOException("Invalid status notification, expected " + STATUS_BUFFER_SIZE + " bytes, got " + readBytesCount);
-                        } else if(buffer[0] != (byte)STATUS_NOTIFICATION ) {
-                            throw new IOException("Invalid status notification, expected " + STATUS_NOTIFICATION + " request, got " + buffer[0]);
-                        } else {
-                            mStatus = buffer[STATUS_BYTE_IDX] & 0xff;
-                        }
-                    }
+        void readStatus(byte[] buffer, int length) throws IOException {
+            if (length != STATUS_BUFFER_SIZE) {
+                throw new IOException("Invalid status notification, expected " + STATUS_BUFFER_SIZE + " bytes, got " + length);
+            } else if(buffer[0] != (byte)STATUS_NOTIFICATION ) {
+                throw new IOException("Invalid status notification, expected " + STATUS_NOTIFICATION + " request, got " + buffer[0]);
+            } else {
+                int status = buffer[STATUS_BYTE_IDX] & 0xff;
+                if (status != mStatus) {
+                    mStatus = status;
+                    notifyControlLines(getControlLines(status));
                 }
-            } catch (Exception e) {
-                if (isOpen())
-                    mReadStatusException = e;
             }
-            //Log.d(TAG, "end control line status thread " + mStopReadStatusThread + " " + (mReadStatusException == null ? "-" : mReadStatusException.getMessage()));
         }
 
         private int getStatus() throws IOException {
-            if ((mReadStatusThread == null) && (mReadStatusException == null)) {
-                synchronized (mReadStatusThreadLock) {
-                    if (mReadStatusThread == null) {
+            if (!mReadStatus && (mReadStatusException == null)) {
+                synchronized (mReadStatusLock) {
+                    if (!mReadStatus) {
                         mStatus = 0;
                         if(mDeviceType == DeviceType.DEVICE_TYPE_HXN) {
                             byte[] data = vendorIn(GET_CONTROL_HXN_REQUEST, 0, 1);
@@ -242,15 +230,14 @@ public class ProlificSerialDriver implements UsbSerialDriver {
                             if ((data[0] & GET_CONTROL_FLAG_CD) == 0) mStatus |= STATUS_FLAG_CD;
                             if ((data[0] & GET_CONTROL_FLAG_RI) == 0) mStatus |= STATUS_FLAG_RI;
                         }
-                        //Log.d(TAG, "start control line status thread " + mStatus);
-                        mReadStatusThread = new Thread(this::readStatusThreadFunction);
-                        mReadStatusThread.setDaemon(true);
-                        mReadStatusThread.start();
+                        InterruptEndpointPoller.getInstance().add(this, mConnection, mInterruptEndpoint, STATUS_BUFFER_SIZE,
+                                this::readStatus, e -> { if (isOpen()) mReadStatusException = e; });
+                        mReadStatus = true;
                     }
                 }
             }
 
-            /* throw and clear an exception which occurred in the status read thread */
+            /* throw and clear an exception which occurred while reading status */
             Exception readStatusException = mReadStatusException;
             if (mReadStatusException != null) {
                 mReadStatusException = null;
@@ -290,13 +277,13 @@ public class ProlificSerialDriver implements UsbSerialDriver {
                 }
             }
 
-            byte[] rawDescriptors = mConnection.getRawDescriptors();
-            if(rawDescriptors == null || rawDescriptors.length < 14) {
+            UsbDescriptors.DeviceDescriptor deviceDescriptor = UsbDescriptors.get(mConnection).getDeviceDescriptor();
+            if(deviceDescriptor == null) {
                 throw new IOException("Could not get device descriptors");
             }
-            int usbVersion = (rawDescriptors[3] << 8) + rawDescriptors[2];
-            int deviceVersion = (rawDescriptors[13] << 8) + rawDescriptors[12];
-            byte maxPacketSize0 = rawDescriptors[7];
+            int usbVersion = deviceDescriptor.getUsbVersion();
+            int deviceVersion = deviceDescriptor.getDeviceVersion();
+            int maxPacketSize0 = deviceDescriptor.getMaxPacketSize0();
             if (mDevice.getDeviceClass() == 0x02 || maxPacketSize0 != 64) {
                 mDeviceType = DeviceType.DEVICE_TYPE_01;
             } else if(usbVersion == 0x200) {
@@ -321,18 +308,10 @@ public class ProlificSerialDriver implements UsbSerialDriver {
         @Override
         public void closeInt() {
             try {
-                synchronized (mReadStatusThreadLock) {
-                    if (mReadStatusThread != null) {
-                        try {
-                            mStopReadStatusThread = true;
-                            mReadStatusThread.join();
-                        } catch (Exception e) {
-                            Log.w(TAG, "An error occured while waiting for status read thread", e);
-                        }
-                        mStopReadStatusThread = false;
-                        mReadStatusThread = null;
-                        mReadStatusException = null;
-                    }
+                synchronized (mReadStatusLock) {
+                    InterruptEndpointPoller.getInstance().remove(this);
+                    mReadStatus = false;
+                    mReadStatusException = null;
                 }
                 resetDevice();
             } catch(Exception ignored) {}
@@ -473,6 +452,7 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             mDataBits = dataBits;
             mStopBits = stopBits;
             mParity = parity;
+            setFrameTime(baudRate, dataBits, stopBits, parity);
         }
 
         @Override
@@ -529,7 +509,10 @@ public class ProlificSerialDriver implements UsbSerialDriver {
 
         @Override
         public EnumSet<ControlLine> getControlLines() throws IOException {
-            int status = getStatus();
+            return getControlLines(getStatus());
+        }
+
+        private EnumSet<ControlLine> getControlLines(int status) {
             EnumSet<ControlLine> set = EnumSet.noneOf(ControlLine.class);
             if((mControlLinesValue & CONTROL_RTS) != 0) set.add(ControlLine.RTS);
             if((status & STATUS_FLAG_CTS) != 0) set.add(ControlLine.CTS);
@@ -545,6 +528,17 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             return EnumSet.allOf(ControlLine.class);
         }
 
+        @Override
+        protected void startControlLineMonitor() throws IOException {
+            // InterruptEndpointPoller notifies changes
+            notifyControlLines(getControlLines());
+        }
+
+        @Override
+        protected void stopControlLineMonitor() {
+            // status reading is stopped in closeInt()
+        }
+
         @Override
         public void setFlowControl(FlowControl flowControl) throws IOException {
             // vendorOut values from https://www.mail-archive.com/linux-usb@vger.kernel.org/msg110968.html
@@ -578,6 +572,19 @@ public class ProlificSerialDriver implements UsbSerialDriver {
             return EnumSet.of(FlowControl.NONE, FlowControl.RTS_CTS, FlowControl.XON_XOFF_INLINE);
         }
 
+        @Override
+        public UsbSerialPortProfile getProfile() {
+            UsbSerialPortProfile profile = super.getProfile().setInterruptStatus(true);
+            switch (mDeviceType) {
+                case DEVICE_TYPE_HXN:
+                    return profile.setFifoSizes(768, 256).setMaxBaudRate(12000000);
+                case DEVICE_TYPE_01:
+                    return profile.setFifoSizes(256, 256).setMaxBaudRate(1228800);
+                default:
+                    return profile.setFifoSizes(256, 256).setMaxBaudRate(6000000);
+            }
+        }
+
         @Override
         public void purgeHwBuffers(boolean purgeWriteBuffers, boolean purgeReadBuffers) throws IOException {
             if (mDeviceType == DeviceType.DEVICE_TYPE_HXN) {
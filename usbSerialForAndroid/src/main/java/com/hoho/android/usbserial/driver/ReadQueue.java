@@ -0,0 +1,128 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Multiple queued read requests for {@link CommonUsbSerialPort#read} with timeout = 0.
+ * <p>
+ * With a single request, the device has to buffer all data arriving between completion of one
+ * request and queueing of the next one. With more requests queued, USB transfers continue while
+ * the host processes received data, as required for multi-MB/s streams.
+ * <p>
+ * Requests complete in queue order, as they all use the same endpoint. Data of a completed
+ * request is returned in chunks of whole packets, if the read length is smaller than the request,
+ * so the read length has to be at least the packet size.
+ */
+class ReadQueue {
+
+    private final UsbDeviceConnection mConnection;
+    private final UsbRequest[] mRequests;
+    private final ByteBuffer[] mBuffers;
+    private final boolean[] mCompleted;
+    private final int mMaxPacketSize;
+    private int mHead; // index of oldest queued request
+    private boolean mHeadReading; // head completed and flipped for reading
+
+    static ReadQueue create(UsbDeviceConnection connection, UsbEndpoint endpoint, int count, int bufferSize) throws IOException {
+        UsbRequest[] requests = new UsbRequest[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                requests[i] = new UsbRequest();
+                if (!requests[i].initialize(connection, endpoint)) {
+                    throw new IOException("Initializing USB request failed");
+                }
+            }
+            return new ReadQueue(connection, requests, bufferSize, endpoint.getMaxPacketSize());
+        } catch (IOException | RuntimeException e) {
+            for (UsbRequest request : requests) {
+                if (request != null) {
+                    request.close();
+                }
+            }
+            throw e;
+        }
+    }
+
+    ReadQueue(UsbDeviceConnection connection, UsbRequest[] requests, int bufferSize, int maxPacketSize) throws IOException {
+        if (requests.length < 1 || bufferSize <= 0 || maxPacketSize <= 0) {
+            throw new IllegalArgumentException("Invalid read queue size");
+        }
+        bufferSize = (bufferSize + maxPacketSize - 1) / maxPacketSize * maxPacketSize;
+        mConnection = connection;
+        mRequests = requests;
+        mMaxPacketSize = maxPacketSize;
+        mBuffers = new ByteBuffer[requests.length];
+        mCompleted = new boolean[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            mBuffers[i] = ByteBuffer.allocateDirect(bufferSize);
+            queue(i);
+        }
+    }
+
+    private void queue(int i) throws IOException {
+        mBuffers[i].clear();
+        mCompleted[i] = false;
+        if (!mRequests[i].queue(mBuffers[i], mBuffers[i].capacity())) {
+            throw new IOException("Queueing USB request failed");
+        }
+    }
+
+    /**
+     * @return number of bytes read, 0 if a request completed without data
+     * @throws IllegalArgumentException if length is smaller than packet size, as packets must not be split
+     *                                  for drivers with packet headers
+     */
+    int read(byte[] dest, int length) throws IOException {
+        if (length < mMaxPacketSize) {
+            throw new IllegalArgumentException("Read buffer too small");
+        }
+        if (!mHeadReading) {
+            while (!mCompleted[mHead]) {
+                UsbRequest response = mConnection.requestWait();
+                if (response == null) {
+                    throw new IOException("Waiting for USB request failed");
+                }
+                for (int i = 0; i < mRequests.length; i++) {
+                    if (mRequests[i] == response) {
+                        mCompleted[i] = true;
+                        break;
+                    }
+                }
+            }
+            mBuffers[mHead].flip();
+            mHeadReading = true;
+        }
+        ByteBuffer buffer = mBuffers[mHead];
+        int available = buffer.remaining();
+        int len = Math.min(length, available);
+        if (len < available) {
+            len -= len % mMaxPacketSize; // keep packet boundaries for drivers with packet headers
+        }
+        buffer.get(dest, 0, len);
+        if (!buffer.hasRemaining()) {
+            mHeadReading = false;
+            queue(mHead);
+            mHead = (mHead + 1) % mRequests.length;
+        }
+        return len;
+    }
+
+    /**
+     * Cancel and release all requests. The queue cannot be used afterwards.
+     */
+    void close() {
+        for (UsbRequest request : mRequests) {
+            try {
+                request.cancel();
+            } catch (Exception ignored) {}
+            try {
+                request.close();
+            } catch (Exception ignored) {}
+        }
+    }
+}
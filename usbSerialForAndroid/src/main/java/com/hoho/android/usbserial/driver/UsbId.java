@@ -43,6 +43,10 @@ public final class UsbId {
     public static final int VENDOR_QINHENG = 0x1a86;
     public static final int QINHENG_CH340 = 0x7523;
     public static final int QINHENG_CH341A = 0x5523;
+    public static final int QINHENG_CH342 = 0x55d2; // CDC/ACM, 2 ports
+    public static final int QINHENG_CH343 = 0x55d3; // CDC/ACM
+    public static final int QINHENG_CH9102 = 0x55d4; // CDC/ACM
+    public static final int QINHENG_CH344 = 0x55d5; // CDC/ACM, 4 ports
 
     public static final int VENDOR_UNISOC = 0x1782;
     public static final int FIBOCOM_L610 = 0x4D10;
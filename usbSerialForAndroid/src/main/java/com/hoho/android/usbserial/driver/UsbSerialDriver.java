@@ -13,7 +13,8 @@ import java.util.List;
 public interface UsbSerialDriver {
 
     /*
-     * Additional interface properties. Invoked thru reflection.
+     * Additional interface properties. Registered in the default ProbeTable as method references.
+     * Custom drivers added with ProbeTable.addProduct() without DriverFactory are created thru reflection.
      *
         UsbSerialDriver(UsbDevice device);                  // constructor with device
         static Map<Integer, int[]> getSupportedDevices();
@@ -60,6 +60,32 @@ public interface UsbSerialPort extends Closeable {
     /** Values for get[Supported]ControlLines() */
     enum ControlLine { RTS, CTS, DTR, DSR, CD, RI }
 
+    /** Values for getLineErrorCount() and getSupportedLineErrors() */
+    enum LineError { OVERRUN, PARITY, FRAMING, BREAK }
+
+    /** Listener for setControlLineListener() */
+    interface ControlLineListener {
+        /**
+         * Called with the initial state and whenever one of the input control lines CTS, DSR, CD or RI changes.
+         *
+         * @param controlLines current control lines, same as returned by {@link #getControlLines()}
+         */
+        void onControlLinesChanged(EnumSet<ControlLine> controlLines);
+    }
+
+    /** Listener for setDataLossListener() */
+    interface DataLossListener {
+        /**
+         * Called when received data was likely lost.
+         * <p>
+         * Called from the thread reading data or from the thread processing device status.
+         *
+         * @param stallMillis time without pending read that exceeded the time to fill the device receive buffer,
+         *                    or 0 if the device reported an overrun
+         */
+        void onDataLoss(int stallMillis);
+    }
+
     /** Values for (set|get|getSupported)FlowControl() */
     enum FlowControl { NONE, RTS_CTS, DTR_DSR, XON_XOFF, XON_XOFF_INLINE }
 
@@ -269,6 +295,69 @@ public interface UsbSerialPort extends Closeable {
      */
     EnumSet<ControlLine> getSupportedControlLines() throws IOException;
 
+    /**
+     * Set listener for changes of input control lines, if supported.
+     * <p>
+     * Devices sending control line status notifications are monitored without additional USB calls,
+     * other devices are polled with low rate from a background thread shared by all ports.
+     * Monitoring is active while the port is open.
+     *
+     * @param listener listener, or {@code null} to stop monitoring
+     * @throws IOException if an error occurred during reading initial state
+     * @throws UnsupportedOperationException if input control lines are not supported
+     */
+    void setControlLineListener(ControlLineListener listener) throws IOException;
+
+    /**
+     * Get control line listener.
+     * @return listener, or {@code null}
+     */
+    ControlLineListener getControlLineListener();
+
+    /**
+     * Gets the number of line errors reported by the device since open, if supported.
+     * <p>
+     * Counters are maintained from status information the device sends anyway,
+     * so this does not require USB calls.
+     *
+     * @param lineError error type
+     * @return error count
+     * @throws UnsupportedOperationException if not supported
+     */
+    int getLineErrorCount(LineError lineError);
+
+    /**
+     * Gets all line error supported flags.
+     *
+     * @return EnumSet.contains(...) is {@code true} if supported, else {@code false}
+     */
+    EnumSet<LineError> getSupportedLineErrors();
+
+    /**
+     * Set listener for likely data loss.
+     * <p>
+     * Data loss is assumed when the time between two reads exceeded the time to fill the device
+     * receive buffer at the current line settings and the next read returned a full device buffer,
+     * or when the device reported an overrun. Read stalls are only detected if device buffer size
+     * and line settings are known, i.e. after {@link #setParameters}.
+     *
+     * @param listener listener, or {@code null}
+     */
+    void setDataLossListener(DataLossListener listener);
+
+    /**
+     * Get data loss listener.
+     * @return listener, or {@code null}
+     */
+    DataLossListener getDataLossListener();
+
+    /**
+     * Gets the number of likely data losses since open, detected from read stalls or reported device overruns.
+     *
+     * @return data loss count
+     */
+    int getDataLossCount();
+
     /**
      * Set flow control mode, if supported
      * @param flowControl @FlowControl
@@ -309,6 +398,50 @@ public interface UsbSerialPort extends Closeable {
      */
     void purgeHwBuffers(boolean purgeWriteBuffers, boolean purgeReadBuffers) throws IOException;
 
+    /**
+     * Enable RS-485 half-duplex mode with RTS as transmit enable, if supported.
+     * <p>
+     * RTS is set before each write and reset as soon as the last stop bit has been sent.
+     * Devices reporting transmit empty status are polled for the end of transmission, for other
+     * devices the end is calculated from data length and line parameters. Transceivers with
+     * automatic direction control, e.g. FTDI TXDEN or CP210x RS485 pin configured in the device
+     * EEPROM, do not need this mode.
+     *
+     * @param enabled {@code true} to control RTS on write, {@code false} to leave RTS unchanged
+     * @throws IOException if an error occurred resetting RTS
+     * @throws UnsupportedOperationException if RTS is not supported
+     * @throws IllegalStateException if line parameters are not set or RTS is used by flow control
+     */
+    void setRs485(boolean enabled) throws IOException;
+
+    /**
+     * Get RS-485 half-duplex mode.
+     * @return {@code true} if enabled
+     */
+    boolean getRs485();
+
+    /**
+     * Turnaround of the last write in RS-485 mode, from the end of transmission until RTS
+     * has been reset and the bus is released for the response.
+     *
+     * @return time in microseconds, or -1 if no write since enabling RS-485 mode
+     */
+    int getRs485TurnaroundMicros();
+
+    /**
+     * Wait until all data written has physically been sent by the device, e.g. before changing
+     * line parameters, toggling control lines or closing the port.
+     * <p>
+     * {@link #write} returns when the USB transfer completed, but the device buffer might still
+     * hold data. Devices reporting transmit empty status are polled, for other devices the time
+     * is calculated from data length and line parameters.
+     *
+     * @param timeout timeout in milliseconds, 0 is infinite
+     * @throws SerialTimeoutException if data is still queued after timeout
+     * @throws IOException if an error occurred reading the transmit status
+     */
+    void drain(int timeout) throws IOException;
+
     /**
      * send BREAK condition.
      *
@@ -316,6 +449,14 @@ public interface UsbSerialPort extends Closeable {
      */
     void setBreak(boolean value) throws IOException;
 
+    /**
+     * Get capabilities and tuning hints like device buffer sizes and maximum baud rate.
+     * Values depending on the actual chip are only known after open().
+     *
+     * @return profile, a new snapshot on each call
+     */
+    UsbSerialPortProfile getProfile();
+
     /**
      * Returns the current state of the connection.
      */
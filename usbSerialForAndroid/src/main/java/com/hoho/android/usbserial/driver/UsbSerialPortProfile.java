@@ -0,0 +1,126 @@
+package com.hoho.android.usbserial.driver;
+
+/**
+ * Capabilities and tuning hints of a port, returned by {@link UsbSerialPort#getProfile()}.
+ * <p>
+ * Values depending on the actual chip are only known after open(), before open() typical
+ * values of the driver are returned. 0 means unknown.
+ * <p>
+ * Setters are used by drivers, extending the profile of {@link CommonUsbSerialPort#getProfile()}.
+ */
+public class UsbSerialPortProfile {
+
+    public static final int DEFAULT_MAX_PACKET_SIZE = 64;
+    /** buffer sizes are chosen to hold data received in this time */
+    public static final int BUFFER_MILLIS = 20;
+    /** upper limit for buffer sizes, = old bulkTransfer limit prior to Android 9 */
+    public static final int MAX_BUFFER_SIZE = 16 * 1024;
+
+    private int mMaxPacketSize = DEFAULT_MAX_PACKET_SIZE;
+    private int mReadFifoSize;
+    private int mWriteFifoSize;
+    private int mMaxBaudRate;
+    private int mReadHeaderSize;
+    private boolean mInterruptStatus;
+
+    public UsbSerialPortProfile() {
+    }
+
+    public UsbSerialPortProfile setMaxPacketSize(int maxPacketSize) {
+        mMaxPacketSize = maxPacketSize;
+        return this;
+    }
+
+    public UsbSerialPortProfile setFifoSizes(int readFifoSize, int writeFifoSize) {
+        mReadFifoSize = readFifoSize;
+        mWriteFifoSize = writeFifoSize;
+        return this;
+    }
+
+    public UsbSerialPortProfile setMaxBaudRate(int maxBaudRate) {
+        mMaxBaudRate = maxBaudRate;
+        return this;
+    }
+
+    public UsbSerialPortProfile setReadHeaderSize(int readHeaderSize) {
+        mReadHeaderSize = readHeaderSize;
+        return this;
+    }
+
+    public UsbSerialPortProfile setInterruptStatus(boolean interruptStatus) {
+        mInterruptStatus = interruptStatus;
+        return this;
+    }
+
+    /** max packet size of read endpoint */
+    public int getMaxPacketSize() {
+        return mMaxPacketSize;
+    }
+
+    /** device receive buffer size in bytes */
+    public int getReadFifoSize() {
+        return mReadFifoSize;
+    }
+
+    /** device transmit buffer size in bytes */
+    public int getWriteFifoSize() {
+        return mWriteFifoSize;
+    }
+
+    public int getMaxBaudRate() {
+        return mMaxBaudRate;
+    }
+
+    /**
+     * Status bytes at start of each received packet, e.g. for FTDI.
+     * Such devices require read buffers with a multiple of the packet size.
+     */
+    public int getReadHeaderSize() {
+        return mReadHeaderSize;
+    }
+
+    /**
+     * Device reports control lines and line errors without polling, so
+     * {@link UsbSerialPort#setControlLineListener} and {@link UsbSerialPort#getLineErrorCount}
+     * cause no additional USB load.
+     */
+    public boolean hasInterruptStatus() {
+        return mInterruptStatus;
+    }
+
+    private int roundUp(int size) {
+        size = (size + mMaxPacketSize - 1) / mMaxPacketSize * mMaxPacketSize;
+        return Math.max(mMaxPacketSize, Math.min(size, MAX_BUFFER_SIZE / mMaxPacketSize * mMaxPacketSize));
+    }
+
+    private static int bytes(int baudRate, int millis) {
+        return (int) Math.min(Integer.MAX_VALUE, (long) baudRate * millis / 10000); // 10 bits per byte
+    }
+
+    /**
+     * Read buffer size holding {@link #BUFFER_MILLIS} of data, at least the device
+     * receive buffer, as multiple of the packet size.
+     *
+     * @param baudRate baud rate, or 0 if not known
+     */
+    public int getIdealReadBufferSize(int baudRate) {
+        return roundUp(Math.max(mReadFifoSize, bytes(baudRate, BUFFER_MILLIS)));
+    }
+
+    /**
+     * Write buffer size filling the device transmit buffer with one transfer, larger for high
+     * baud rates, as multiple of the packet size.
+     *
+     * @param baudRate baud rate, or 0 if not known
+     */
+    public int getIdealWriteBufferSize(int baudRate) {
+        return roundUp(Math.max(mWriteFifoSize, bytes(baudRate, BUFFER_MILLIS)));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("<%s maxPacketSize=%d fifo=%d/%d maxBaudRate=%d readHeaderSize=%d interruptStatus=%b>",
+                getClass().getSimpleName(), mMaxPacketSize, mReadFifoSize, mWriteFifoSize,
+                mMaxBaudRate, mReadHeaderSize, mInterruptStatus);
+    }
+}
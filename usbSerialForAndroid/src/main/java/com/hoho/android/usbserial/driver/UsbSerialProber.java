@@ -26,20 +26,35 @@ public class UsbSerialProber {
         mProbeTable = probeTable;
     }
 
+    /**
+     * Default prober, shared and created on first use.
+     */
     public static UsbSerialProber getDefaultProber() {
-        return new UsbSerialProber(getDefaultProbeTable());
+        return DefaultProber.INSTANCE;
     }
-    
+
+    /**
+     * @return copy of the default probe table, e.g. to add custom (vendor, product) pairs
+     */
     public static ProbeTable getDefaultProbeTable() {
-        final ProbeTable probeTable = new ProbeTable();
-        probeTable.addDriver(CdcAcmSerialDriver.class);
-        probeTable.addDriver(Cp21xxSerialDriver.class);
-        probeTable.addDriver(FtdiSerialDriver.class);
-        probeTable.addDriver(ProlificSerialDriver.class);
-        probeTable.addDriver(Ch34xSerialDriver.class);
-        probeTable.addDriver(GsmModemSerialDriver.class);
-        probeTable.addDriver(ChromeCcdSerialDriver.class);
-        return probeTable;
+        return new ProbeTable(DefaultProber.INSTANCE.mProbeTable);
+    }
+
+    private static class DefaultProber {
+        static final UsbSerialProber INSTANCE = new UsbSerialProber(createDefaultProbeTable());
+
+        private static ProbeTable createDefaultProbeTable() {
+            final ProbeTable probeTable = new ProbeTable();
+            probeTable.addDriver(CdcAcmSerialDriver.class, CdcAcmSerialDriver::new, CdcAcmSerialDriver.getSupportedDevices(), CdcAcmSerialDriver::probe);
+            probeTable.addDriver(Cp21xxSerialDriver.class, Cp21xxSerialDriver::new, Cp21xxSerialDriver.getSupportedDevices(), null);
+            probeTable.addDriver(FtdiSerialDriver.class, FtdiSerialDriver::new, FtdiSerialDriver.getSupportedDevices(), null);
+            probeTable.addDriver(ProlificSerialDriver.class, ProlificSerialDriver::new, ProlificSerialDriver.getSupportedDevices(), null);
+            probeTable.addDriver(Ch34xSerialDriver.class, Ch34xSerialDriver::new, Ch34xSerialDriver.getSupportedDevices(), null);
+            probeTable.addDriver(GsmModemSerialDriver.class, GsmModemSerialDriver::new, GsmModemSerialDriver.getSupportedDevices(), null);
+            probeTable.addDriver(ChromeCcdSerialDriver.class, ChromeCcdSerialDriver::new, ChromeCcdSerialDriver.getSupportedDevices(), null);
+            probeTable.setReadOnly();
+            return probeTable;
+        }
     }
 
     /**
@@ -73,6 +88,10 @@ public class UsbSerialProber {
     public UsbSerialDriver probeDevice(final UsbDevice usbDevice) {
         final Class<? extends UsbSerialDriver> driverClass = mProbeTable.findDriver(usbDevice);
         if (driverClass != null) {
+            final ProbeTable.DriverFactory factory = mProbeTable.getDriverFactory(driverClass);
+            if (factory != null) {
+                return factory.create(usbDevice);
+            }
             final UsbSerialDriver driver;
             try {
                 final Constructor<? extends UsbSerialDriver> ctor =
@@ -0,0 +1,206 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbManager;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Keeps drivers of attached devices, for apps handling hot-plug events.
+ * <p>
+ * Unlike {@link UsbSerialProber#findAllDrivers}, each device is probed only once, also if no
+ * driver matches, and driver instances stay the same while the device is attached. Devices are
+ * identified by device name, vendor id, product id and, if readable, serial number.
+ * <p>
+ * Call {@link #onAttached} and {@link #onDetached} from the USB_DEVICE_ATTACHED / USB_DEVICE_DETACHED
+ * broadcast receivers, or {@link #refresh} to sync with the current device list.
+ */
+public class UsbSerialRegistry {
+
+    /**
+     * Source of currently attached devices, typically {@link #fromUsbManager}
+     */
+    public interface DeviceSource {
+        Collection<UsbDevice> getDevices();
+    }
+
+    public interface Listener {
+        void onDriverAttached(UsbSerialDriver driver);
+        void onDriverDetached(UsbSerialDriver driver);
+    }
+
+    private static class Entry {
+        final String deviceName;
+        final int vendorId;
+        final int productId;
+        final String serialNumber; // null if unknown
+        final UsbSerialDriver driver; // null if not supported
+
+        Entry(UsbDevice device, UsbSerialDriver driver) {
+            this.deviceName = device.getDeviceName();
+            this.vendorId = device.getVendorId();
+            this.productId = device.getProductId();
+            this.serialNumber = getSerialNumber(device);
+            this.driver = driver;
+        }
+
+        boolean matches(UsbDevice device) {
+            if (vendorId != device.getVendorId() || productId != device.getProductId())
+                return false;
+            if (deviceName == null ? device.getDeviceName() != null : !deviceName.equals(device.getDeviceName()))
+                return false;
+            String otherSerialNumber = serialNumber == null ? null : getSerialNumber(device);
+            return otherSerialNumber == null || otherSerialNumber.equals(serialNumber);
+        }
+    }
+
+    private final UsbSerialProber mProber;
+    private final DeviceSource mDeviceSource;
+    private final List<Entry> mEntries = new ArrayList<>(); // guarded by this
+    private Listener mListener;
+
+    public UsbSerialRegistry(UsbSerialProber prober, DeviceSource deviceSource) {
+        mProber = prober;
+        mDeviceSource = deviceSource;
+    }
+
+    public static DeviceSource fromUsbManager(UsbManager usbManager) {
+        return () -> usbManager.getDeviceList().values();
+    }
+
+    /**
+     * serial number without permission, only available before Android 10
+     */
+    private static String getSerialNumber(UsbDevice device) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+            return null;
+        try {
+            return device.getSerialNumber();
+        } catch (SecurityException ignored) {
+            return null;
+        }
+    }
+
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * @return drivers of attached devices, in order of attach
+     */
+    public synchronized List<UsbSerialDriver> getDrivers() {
+        List<UsbSerialDriver> drivers = new ArrayList<>();
+        for (Entry entry : mEntries)
+            if (entry.driver != null)
+                drivers.add(entry.driver);
+        return drivers;
+    }
+
+    /**
+     * @return driver for attached device, or {@code null} if not attached or not supported
+     */
+    public synchronized UsbSerialDriver getDriver(UsbDevice device) {
+        Entry entry = findEntry(device);
+        return entry == null ? null : entry.driver;
+    }
+
+    private Entry findEntry(UsbDevice device) {
+        for (Entry entry : mEntries)
+            if (entry.matches(device))
+                return entry;
+        return null;
+    }
+
+    /**
+     * Probe new device. Already known devices are not probed again.
+     *
+     * @return driver for device, or {@code null} if not supported
+     */
+    public UsbSerialDriver onAttached(UsbDevice device) {
+        Entry entry;
+        Listener listener;
+        synchronized (this) {
+            entry = findEntry(device);
+            if (entry != null)
+                return entry.driver;
+            entry = new Entry(device, mProber.probeDevice(device));
+            mEntries.add(entry);
+            listener = mListener;
+        }
+        if (listener != null && entry.driver != null)
+            listener.onDriverAttached(entry.driver);
+        return entry.driver;
+    }
+
+    /**
+     * Forget detached device. Open ports of its driver are not closed here.
+     *
+     * @return driver of detached device, or {@code null} if not attached or not supported
+     */
+    public UsbSerialDriver onDetached(UsbDevice device) {
+        Entry entry;
+        Listener listener;
+        synchronized (this) {
+            entry = findEntry(device);
+            if (entry == null)
+                return null;
+            mEntries.remove(entry);
+            listener = mListener;
+        }
+        if (listener != null && entry.driver != null)
+            listener.onDriverDetached(entry.driver);
+        return entry.driver;
+    }
+
+    /**
+     * Sync with current device list, probing only new devices.
+     *
+     * @return drivers of attached devices
+     */
+    public List<UsbSerialDriver> refresh() {
+        Collection<UsbDevice> devices = mDeviceSource.getDevices();
+        List<UsbSerialDriver> detached = new ArrayList<>();
+        List<UsbSerialDriver> attached = new ArrayList<>();
+        Listener listener;
+        synchronized (this) {
+            List<Entry> present = new ArrayList<>();
+            List<Entry> added = new ArrayList<>();
+            for (UsbDevice device : devices) {
+                Entry entry = findEntry(device);
+                if (entry != null) {
+                    present.add(entry);
+                } else {
+                    entry = new Entry(device, mProber.probeDevice(device));
+                    added.add(entry);
+                    if (entry.driver != null)
+                        attached.add(entry.driver);
+                }
+            }
+            for (Iterator<Entry> it = mEntries.iterator(); it.hasNext(); ) {
+                Entry entry = it.next();
+                if (!present.contains(entry)) {
+                    it.remove();
+                    if (entry.driver != null)
+                        detached.add(entry.driver);
+                }
+            }
+            mEntries.addAll(added);
+            listener = mListener;
+        }
+        if (listener != null) {
+            for (UsbSerialDriver driver : detached)
+                listener.onDriverDetached(driver);
+            for (UsbSerialDriver driver : attached)
+                listener.onDriverAttached(driver);
+        }
+        return getDrivers();
+    }
+}
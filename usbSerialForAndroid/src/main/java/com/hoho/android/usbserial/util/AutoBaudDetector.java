@@ -0,0 +1,258 @@
+package com.hoho.android.usbserial.util;
+
+import android.util.Log;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Detect the baud rate of a device that is sending data, e.g. unknown field equipment.
+ * <p>
+ * Candidate baud rates are set one after another and a short sample of received data is scored.
+ * If the driver counts framing and parity errors, see {@link UsbSerialPort#getSupportedLineErrors()},
+ * they lower the score. Character statistics lower it too. With the wrong baud rate, text
+ * turns into non-printable characters. Binary data turns into runs of identical bits like
+ * 0x00, 0xf0 and 0xff. Detection stops at the first candidate with a score of at least
+ * {@link #GOOD_SCORE} percent, after also checking the double baud rate. Data sent with
+ * double baud rate can look plausible, because the receiver samples every 2nd bit.
+ * <p>
+ * The port has to be open and the device has to send data during detection. The port is left
+ * configured with the detected baud rate, or the last candidate if nothing was detected.
+ */
+public class AutoBaudDetector {
+
+    private static final String TAG = AutoBaudDetector.class.getSimpleName();
+
+    /** common baud rates, most frequently used first */
+    public static final int[] DEFAULT_BAUD_RATES = {9600, 115200, 19200, 38400, 57600, 4800, 230400, 2400, 460800, 921600, 1200};
+    public static final int DEFAULT_SAMPLE_MILLIS = 200;
+    public static final int DEFAULT_SAMPLE_BYTES = 128;
+    public static final int GOOD_SCORE = 90;
+    private static final int READ_BUFFER_SIZE = 4096;
+
+    public static class Result {
+        private final int mBaudRate;
+        private final int mConfidence;
+        private final Map<Integer, Integer> mScores;
+
+        Result(int baudRate, int confidence, Map<Integer, Integer> scores) {
+            mBaudRate = baudRate;
+            mConfidence = confidence;
+            mScores = Collections.unmodifiableMap(scores);
+        }
+
+        /** detected baud rate, or 0 if no candidate received plausible data */
+        public int getBaudRate() {
+            return mBaudRate;
+        }
+
+        /**
+         * Confidence in percent. Score of the detected baud rate, reduced by the score of
+         * the second best candidate. Half, quarter, ... of the detected baud rate are not
+         * counted as second best, as they typically receive plausible data.
+         */
+        public int getConfidence() {
+            return mConfidence;
+        }
+
+        /** score in percent of each tested baud rate, in test order */
+        public Map<Integer, Integer> getScores() {
+            return mScores;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<%s baudRate=%d confidence=%d scores=%s>",
+                    getClass().getSimpleName(), mBaudRate, mConfidence, mScores);
+        }
+    }
+
+    private final UsbSerialPort mPort;
+    private int[] mBaudRates = DEFAULT_BAUD_RATES;
+    private int mDataBits = UsbSerialPort.DATABITS_8;
+    private int mStopBits = UsbSerialPort.STOPBITS_1;
+    private int mParity = UsbSerialPort.PARITY_NONE;
+    private int mSampleMillis = DEFAULT_SAMPLE_MILLIS;
+    private int mSampleBytes = DEFAULT_SAMPLE_BYTES;
+    private boolean mTextData = true;
+    private int mCurrentBaudRate = 0; // skip redundant setParameters()
+    private boolean mPurge = true;
+
+    public AutoBaudDetector(UsbSerialPort port) {
+        mPort = port;
+    }
+
+    public void setBaudRates(int... baudRates) {
+        if (baudRates.length == 0) {
+            throw new IllegalArgumentException("No baud rates");
+        }
+        mBaudRates = baudRates.clone();
+    }
+
+    public int[] getBaudRates() {
+        return mBaudRates.clone();
+    }
+
+    /**
+     * Data format used with all candidate baud rates, default 8N1.
+     */
+    public void setDataFormat(int dataBits, int stopBits, @UsbSerialPort.Parity int parity) {
+        mDataBits = dataBits;
+        mStopBits = stopBits;
+        mParity = parity;
+    }
+
+    /**
+     * Sample size per candidate. Sampling ends when enough bytes are received or time is up,
+     * so with data flowing each candidate needs only a few msec.
+     *
+     * @param millis maximum time per candidate
+     * @param bytes  bytes per candidate
+     */
+    public void setSampleSize(int millis, int bytes) {
+        if (millis <= 0 || bytes <= 0) {
+            throw new IllegalArgumentException("Invalid sample size");
+        }
+        mSampleMillis = millis;
+        mSampleBytes = bytes;
+    }
+
+    /**
+     * Expected data type for character statistics.
+     *
+     * @param textData {@code true} for text, where only printable characters are valid,
+     *                 {@code false} for binary data
+     */
+    public void setTextData(boolean textData) {
+        mTextData = textData;
+    }
+
+    public Result detect() throws IOException {
+        EnumSet<UsbSerialPort.LineError> lineErrors = EnumSet.of(UsbSerialPort.LineError.FRAMING, UsbSerialPort.LineError.PARITY);
+        lineErrors.retainAll(mPort.getSupportedLineErrors());
+        Map<Integer, Integer> scores = new LinkedHashMap<>();
+        mCurrentBaudRate = 0; // might have been changed since last detect()
+        for (int baudRate : mBaudRates) {
+            if (scores.containsKey(baudRate))
+                continue;
+            int score = sample(baudRate, lineErrors, scores);
+            // data sent with double baud rate also looks plausible, as every 2nd bit is sampled
+            while (score >= GOOD_SCORE && isCandidate(baudRate * 2) && !scores.containsKey(baudRate * 2)) {
+                int doubleScore = sample(baudRate * 2, lineErrors, scores);
+                if (doubleScore < GOOD_SCORE)
+                    break;
+                baudRate *= 2;
+                score = doubleScore;
+            }
+            if (score >= GOOD_SCORE)
+                break;
+        }
+
+        int bestBaudRate = 0;
+        int bestScore = 0;
+        for (Map.Entry<Integer, Integer> entry : scores.entrySet()) {
+            int score = entry.getValue();
+            if (score > bestScore || (score > 0 && score == bestScore && entry.getKey() > bestBaudRate)) {
+                bestScore = score;
+                bestBaudRate = entry.getKey();
+            }
+        }
+        int secondScore = 0;
+        for (Map.Entry<Integer, Integer> entry : scores.entrySet()) {
+            if (!isSubMultiple(entry.getKey(), bestBaudRate))
+                secondScore = Math.max(secondScore, entry.getValue());
+        }
+        if (bestBaudRate != 0) {
+            setBaudRate(bestBaudRate);
+        }
+        Result result = new Result(bestBaudRate, bestScore * (100 - secondScore) / 100, scores);
+        Log.d(TAG, "detect " + result);
+        return result;
+    }
+
+    private boolean isCandidate(int baudRate) {
+        for (int candidate : mBaudRates)
+            if (candidate == baudRate)
+                return true;
+        return false;
+    }
+
+    /**
+     * @return {@code true} if baudRate equals or is reached by halving referenceBaudRate
+     */
+    private static boolean isSubMultiple(int baudRate, int referenceBaudRate) {
+        if (baudRate <= 0)
+            return false;
+        while (baudRate < referenceBaudRate)
+            baudRate *= 2;
+        return baudRate == referenceBaudRate;
+    }
+
+    private void setBaudRate(int baudRate) throws IOException {
+        if (baudRate == mCurrentBaudRate) {
+            return;
+        }
+        mPort.setParameters(baudRate, mDataBits, mStopBits, mParity);
+        mCurrentBaudRate = baudRate;
+        if (mPurge) {
+            try {
+                mPort.purgeHwBuffers(false, true); // drop data received with previous baud rate
+            } catch (UnsupportedOperationException ignored) {
+                mPurge = false;
+            }
+        }
+    }
+
+    private int getLineErrorCount(EnumSet<UsbSerialPort.LineError> lineErrors) {
+        int count = 0;
+        for (UsbSerialPort.LineError lineError : lineErrors)
+            count += mPort.getLineErrorCount(lineError);
+        return count;
+    }
+
+    /**
+     * Set baud rate, read sample and add score.
+     *
+     * @return score in percent, 0 if no data received
+     */
+    private int sample(int baudRate, EnumSet<UsbSerialPort.LineError> lineErrors, Map<Integer, Integer> scores) throws IOException {
+        setBaudRate(baudRate);
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        int errorsBefore = getLineErrorCount(lineErrors);
+        long endMillis = MonotonicClock.millis() + mSampleMillis;
+        int bytes = 0;
+        int validBytes = 0;
+        while (bytes < mSampleBytes) {
+            long remaining = endMillis - MonotonicClock.millis();
+            if (remaining <= 0)
+                break;
+            int len = mPort.read(buffer, (int) remaining);
+            for (int i = 0; i < len; i++)
+                if (isValid(buffer[i] & 0xff))
+                    validBytes++;
+            bytes += len;
+        }
+        int errors = getLineErrorCount(lineErrors) - errorsBefore;
+        int score = bytes == 0 ? 0 : 100 * validBytes / (bytes + errors);
+        scores.put(baudRate, score);
+        return score;
+    }
+
+    private boolean isValid(int b) {
+        if (mTextData) {
+            return (b >= 0x20 && b < 0x7f) || b == '\r' || b == '\n' || b == '\t';
+        }
+        // typical result of receiving with much higher baud rate than sent
+        switch (b) {
+            case 0x00: case 0x80: case 0xc0: case 0xe0: case 0xf0: case 0xf8: case 0xfc: case 0xfe: case 0xff:
+                return false;
+            default:
+                return true;
+        }
+    }
+}
@@ -0,0 +1,893 @@
+package com.hoho.android.usbserial.util;
+
+import android.util.Log;
+
+import com.hoho.android.usbserial.driver.SerialTimeoutException;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+import com.hoho.android.usbserial.driver.UsbSerialPort.ControlLine;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+
+/**
+ * 3GPP TS 27.010 (GSM 07.10) multiplexer, providing several virtual channels over one {@link UsbSerialPort},
+ * e.g. to send AT commands while a PPP data session is running.
+ * <p>
+ * Usage:
+ * <ol>
+ * <li>open the port and switch the modem to multiplexer mode, e.g. with AT+CMUX=0</li>
+ * <li>create Cmux with the same mode and maximum frame size as used in AT+CMUX</li>
+ * <li>read the port with {@link SerialInputOutputManager} using Cmux as listener</li>
+ * <li>{@link #open} the multiplexer control channel, then {@link Channel#open} channels 1..63</li>
+ * </ol>
+ * Channels have read/write/control line methods similar to {@link UsbSerialPort}.
+ * Received data is buffered per channel. If a channel buffer is nearly full, the modem is asked
+ * to stop sending on this channel until the data has been read. Writes wait while the modem
+ * stopped the channel or the whole multiplexer.
+ * <p>
+ * Frames sent in reaction to received frames are queued and written from a separate thread,
+ * so reading continues while a channel write is blocked, e.g. by hardware flow control.
+ */
+public class Cmux implements SerialInputOutputManager.Listener {
+
+    private static final String TAG = Cmux.class.getSimpleName();
+
+    public enum Mode { BASIC, ADVANCED }
+
+    private interface Response {
+        void write() throws IOException;
+    }
+
+    public static final int DEFAULT_MAX_FRAME_SIZE = 31;
+    public static final int MAX_DLCI = 63;
+    public static final int RECEIVE_BUFFER_SIZE = 4096;
+
+    private static final int FLAG_BASIC = 0xf9;
+    private static final int FLAG_ADVANCED = 0x7e;
+    private static final int ESCAPE_ADVANCED = 0x7d;
+    private static final int ESCAPE_XOR = 0x20;
+
+    private static final int EA = 0x01;
+    private static final int CR = 0x02;
+    private static final int PF = 0x10;
+
+    // frame types
+    private static final int SABM = 0x2f;
+    private static final int UA = 0x63;
+    private static final int DM = 0x0f;
+    private static final int DISC = 0x43;
+    private static final int UIH = 0xef;
+    private static final int UI = 0x03;
+
+    // control channel message types, including EA bit
+    private static final int MSG_CLD = 0xc1;
+    private static final int MSG_TEST = 0x21;
+    private static final int MSG_FCON = 0xa1;
+    private static final int MSG_FCOFF = 0x61;
+    private static final int MSG_MSC = 0xe1;
+    private static final int MSG_NSC = 0x11;
+
+    // modem status command V.24 signals
+    private static final int SIGNAL_FC = 0x02;
+    private static final int SIGNAL_RTC = 0x04; // DTR / DSR
+    private static final int SIGNAL_RTR = 0x08; // RTS / CTS
+    private static final int SIGNAL_IC = 0x40;  // RI
+    private static final int SIGNAL_DV = 0x80;  // CD
+
+    private static final int FCS_GOOD = 0xcf;
+    private static final int[] FCS_TABLE = new int[256];
+    static {
+        for (int i = 0; i < 256; i++) {
+            int fcs = i;
+            for (int bit = 0; bit < 8; bit++)
+                fcs = (fcs & 1) != 0 ? (fcs >> 1) ^ 0xe0 : fcs >> 1; // reversed polynomial x^8+x^2+x+1
+            FCS_TABLE[i] = fcs;
+        }
+    }
+
+    // decoder states
+    private static final int STATE_SEARCH = 0;
+    private static final int STATE_ADDRESS = 1;
+    private static final int STATE_CONTROL = 2;
+    private static final int STATE_LENGTH = 3;
+    private static final int STATE_LENGTH2 = 4;
+    private static final int STATE_DATA = 5;
+    private static final int STATE_FCS = 6;
+    private static final int STATE_END = 7;
+    private static final int STATE_ADVANCED = 8;
+
+    private final UsbSerialPort mPort;
+    private final Channel[] mChannels = new Channel[MAX_DLCI + 1];
+    private final Object mWriteLock = new Object();
+    private final ArrayDeque<Response> mResponses = new ArrayDeque<>(); // guarded by itself
+    private Thread mResponseThread; // guarded by mResponses
+    private Mode mMode = Mode.BASIC;
+    private int mMaxFrameSize = DEFAULT_MAX_FRAME_SIZE;
+    private int mWriteTimeout = 0;
+    private volatile boolean mFlowStopped = false; // FCoff from modem
+    private volatile Exception mError = null;
+    private volatile boolean mCloseDownAcknowledged = false;
+
+    // decoder, only accessed from read thread
+    private int mState = STATE_SEARCH;
+    private byte[] mFrame;
+    private int mFramePos;
+    private int mFrameLength;
+    private int mAddress;
+    private int mControl;
+    private int mFcs;
+    private boolean mEscape;
+    private volatile int mFcsErrors = 0;
+
+    public Cmux(UsbSerialPort port) {
+        mPort = port;
+        for (int dlci = 0; dlci <= MAX_DLCI; dlci++)
+            mChannels[dlci] = new Channel(dlci);
+        mFrame = new byte[mMaxFrameSize + 3];
+    }
+
+    /**
+     * Frame format, as set with AT+CMUX=&lt;mode&gt;
+     */
+    public void setMode(Mode mode) {
+        if (mChannels[0].isOpen())
+            throw new IllegalStateException("Already open");
+        mMode = mode;
+        mState = STATE_SEARCH;
+    }
+
+    public Mode getMode() {
+        return mMode;
+    }
+
+    /**
+     * Maximum data length per frame (N1), as set with AT+CMUX=&lt;mode&gt;,&lt;subset&gt;,&lt;port_speed&gt;,&lt;N1&gt;
+     */
+    public void setMaxFrameSize(int maxFrameSize) {
+        if (mChannels[0].isOpen())
+            throw new IllegalStateException("Already open");
+        if (maxFrameSize < 1 || maxFrameSize > 32768)
+            throw new IllegalArgumentException("Invalid max frame size");
+        mMaxFrameSize = maxFrameSize;
+        mFrame = new byte[maxFrameSize + 3];
+        mState = STATE_SEARCH;
+    }
+
+    public int getMaxFrameSize() {
+        return mMaxFrameSize;
+    }
+
+    /**
+     * timeout for writing frames to the port, 0 = infinite
+     */
+    public void setWriteTimeout(int timeout) {
+        mWriteTimeout = timeout;
+    }
+
+    public int getWriteTimeout() {
+        return mWriteTimeout;
+    }
+
+    /**
+     * @return number of received frames dropped due to invalid frame check sequence
+     */
+    public int getFcsErrorCount() {
+        return mFcsErrors;
+    }
+
+    /**
+     * Open multiplexer control channel (DLCI 0).
+     */
+    public void open(int timeout) throws IOException {
+        mError = null;
+        mFlowStopped = false;
+        mChannels[0].open(timeout);
+    }
+
+    /**
+     * Close all channels and send multiplexer close down command.
+     * Afterwards the modem is back in AT command mode.
+     */
+    public void close(int timeout) throws IOException {
+        for (int dlci = 1; dlci <= MAX_DLCI; dlci++)
+            mChannels[dlci].setClosed();
+        if (!mChannels[0].isOpen())
+            return;
+        mCloseDownAcknowledged = false;
+        writeControlMessage(MSG_CLD | CR, new byte[0]);
+        long endTime = MonotonicClock.millis() + timeout;
+        synchronized (mChannels[0]) {
+            while (!mCloseDownAcknowledged && mError == null) {
+                long waitTime = timeout == 0 ? 0 : endTime - MonotonicClock.millis();
+                if (timeout != 0 && waitTime <= 0)
+                    break;
+                try {
+                    mChannels[0].wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        mChannels[0].setClosed();
+        if (!mCloseDownAcknowledged)
+            throw new IOException("Close down not acknowledged");
+    }
+
+    public boolean isOpen() {
+        return mChannels[0].isOpen();
+    }
+
+    /**
+     * @param dlci data link connection identifier, 1..63
+     */
+    public Channel getChannel(int dlci) {
+        if (dlci < 1 || dlci > MAX_DLCI)
+            throw new IllegalArgumentException("Invalid DLCI " + dlci);
+        return mChannels[dlci];
+    }
+
+    @Override
+    public void onNewData(byte[] data) {
+        try {
+            decode(data, data.length);
+        } catch (IOException e) {
+            onRunError(e);
+        }
+    }
+
+    @Override
+    public void onRunError(Exception e) {
+        mError = e;
+        for (Channel channel : mChannels) {
+            synchronized (channel) {
+                channel.notifyAll();
+            }
+        }
+    }
+
+    private void checkError() throws IOException {
+        Exception error = mError;
+        if (error != null)
+            throw new IOException(error);
+    }
+
+    /*
+     * decoder
+     */
+    void decode(byte[] data, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            int b = data[i] & 0xff;
+            if (mMode == Mode.ADVANCED) {
+                decodeAdvanced(b);
+                continue;
+            }
+            switch (mState) {
+                case STATE_SEARCH:
+                    if (b == FLAG_BASIC)
+                        mState = STATE_ADDRESS;
+                    break;
+                case STATE_ADDRESS:
+                    if (b == FLAG_BASIC)
+                        break; // consecutive flags
+                    if ((b & EA) == 0) {
+                        mState = STATE_SEARCH;
+                        break;
+                    }
+                    mAddress = b;
+                    mFcs = FCS_TABLE[0xff ^ b];
+                    mState = STATE_CONTROL;
+                    break;
+                case STATE_CONTROL:
+                    mControl = b;
+                    mFcs = FCS_TABLE[mFcs ^ b];
+                    mState = STATE_LENGTH;
+                    break;
+                case STATE_LENGTH:
+                    mFcs = FCS_TABLE[mFcs ^ b];
+                    mFrameLength = b >> 1;
+                    mFramePos = 0;
+                    if ((b & EA) == 0)
+                        mState = STATE_LENGTH2;
+                    else
+                        mState = checkFrameLength();
+                    break;
+                case STATE_LENGTH2:
+                    mFcs = FCS_TABLE[mFcs ^ b];
+                    mFrameLength |= b << 7;
+                    mState = checkFrameLength();
+                    break;
+                case STATE_DATA:
+                    mFrame[mFramePos++] = (byte) b;
+                    if ((mControl & ~PF) == UI)
+                        mFcs = FCS_TABLE[mFcs ^ b];
+                    if (mFramePos == mFrameLength)
+                        mState = STATE_FCS;
+                    break;
+                case STATE_FCS:
+                    mFcs = FCS_TABLE[mFcs ^ b];
+                    mState = STATE_END;
+                    break;
+                case STATE_END:
+                    if (b != FLAG_BASIC) {
+                        Log.w(TAG, "Missing closing flag");
+                        mState = STATE_SEARCH;
+                        break;
+                    }
+                    mState = STATE_ADDRESS; // closing flag can also be opening flag of next frame
+                    if (mFcs != FCS_GOOD) {
+                        mFcsErrors++;
+                        break;
+                    }
+                    handleFrame(mAddress, mControl, mFrame, 0, mFrameLength);
+                    break;
+            }
+        }
+    }
+
+    private int checkFrameLength() {
+        if (mFrameLength > mMaxFrameSize) {
+            Log.w(TAG, "Invalid frame length " + mFrameLength);
+            return STATE_SEARCH;
+        }
+        return mFrameLength == 0 ? STATE_FCS : STATE_DATA;
+    }
+
+    private void decodeAdvanced(int b) throws IOException {
+        if (b == FLAG_ADVANCED) {
+            if (mState == STATE_ADVANCED && mFramePos >= 3 && !mEscape) {
+                int address = mFrame[0] & 0xff;
+                int control = mFrame[1] & 0xff;
+                int fcs = FCS_TABLE[0xff ^ address];
+                fcs = FCS_TABLE[fcs ^ control];
+                if ((control & ~PF) == UI)
+                    for (int i = 2; i < mFramePos - 1; i++)
+                        fcs = FCS_TABLE[fcs ^ (mFrame[i] & 0xff)];
+                fcs = FCS_TABLE[fcs ^ (mFrame[mFramePos - 1] & 0xff)];
+                if (fcs != FCS_GOOD)
+                    mFcsErrors++;
+                else if ((address & EA) != 0)
+                    handleFrame(address, control, mFrame, 2, mFramePos - 3);
+            }
+            mState = STATE_ADVANCED; // closing flag can also be opening flag of next frame
+            mFramePos = 0;
+            mEscape = false;
+            return;
+        }
+        if (mState != STATE_ADVANCED)
+            return;
+        if (b == ESCAPE_ADVANCED) {
+            mEscape = true;
+            return;
+        }
+        if (mEscape) {
+            b ^= ESCAPE_XOR;
+            mEscape = false;
+        }
+        if (mFramePos == mFrame.length) {
+            Log.w(TAG, "Frame too long");
+            mState = STATE_SEARCH;
+            return;
+        }
+        mFrame[mFramePos++] = (byte) b;
+    }
+
+    private void handleFrame(int address, int control, byte[] data, int offset, int length) throws IOException {
+        Channel channel = mChannels[(address >> 2) & 0x3f];
+        switch (control & ~PF) {
+            case UA:
+                channel.acknowledged();
+                break;
+            case DM:
+                channel.setClosed();
+                break;
+            case DISC:
+                queueResponse(() -> writeFrame(channel.mDlci, false, UA | PF, null, 0, 0));
+                if (channel.mDlci == 0) {
+                    for (Channel c : mChannels)
+                        c.setClosed();
+                } else {
+                    channel.setClosed();
+                }
+                break;
+            case SABM:
+                queueResponse(() -> writeFrame(channel.mDlci, false, DM | PF, null, 0, 0)); // channels are only opened from this side
+                break;
+            case UIH:
+            case UI:
+                if (channel.mDlci == 0)
+                    handleControlMessages(data, offset, length);
+                else
+                    channel.receive(data, offset, length);
+                break;
+            default:
+                Log.w(TAG, "Unknown frame type " + control);
+        }
+    }
+
+    private void handleControlMessages(byte[] data, int offset, int length) throws IOException {
+        int pos = offset;
+        int end = offset + length;
+        while (pos + 2 <= end) {
+            int type = data[pos++] & 0xff;
+            int valueLength = 0;
+            for (int shift = 0; pos < end; shift += 7) {
+                int b = data[pos++] & 0xff;
+                valueLength |= (b >> 1) << shift;
+                if ((b & EA) != 0)
+                    break;
+            }
+            if (pos + valueLength > end) {
+                Log.w(TAG, "Invalid control message length " + valueLength);
+                return;
+            }
+            byte[] value = new byte[valueLength];
+            System.arraycopy(data, pos, value, 0, valueLength);
+            pos += valueLength;
+            handleControlMessage(type, value);
+        }
+    }
+
+    private void handleControlMessage(int type, byte[] value) {
+        boolean command = (type & CR) != 0;
+        int messageType = type & ~CR;
+        if (!command) {
+            if (messageType == MSG_CLD) {
+                synchronized (mChannels[0]) {
+                    mCloseDownAcknowledged = true;
+                    mChannels[0].notifyAll();
+                }
+            } else if (messageType == MSG_NSC) {
+                Log.w(TAG, "Command not supported by modem " + (value.length > 0 ? value[0] & 0xff : -1));
+            }
+            return;
+        }
+        switch (messageType) {
+            case MSG_MSC:
+                if (value.length >= 2) {
+                    Channel channel = mChannels[((value[0] & 0xff) >> 2) & 0x3f];
+                    channel.setRemoteSignals(value[1] & 0xff);
+                }
+                queueControlMessage(messageType, value);
+                break;
+            case MSG_FCON:
+            case MSG_FCOFF:
+                mFlowStopped = messageType == MSG_FCOFF;
+                queueControlMessage(messageType, value);
+                if (!mFlowStopped) {
+                    for (Channel channel : mChannels) {
+                        synchronized (channel) {
+                            channel.notifyAll();
+                        }
+                    }
+                }
+                break;
+            case MSG_TEST:
+                queueControlMessage(messageType, value);
+                break;
+            case MSG_CLD:
+                queueControlMessage(messageType, value);
+                for (Channel channel : mChannels)
+                    channel.setClosed();
+                break;
+            default:
+                queueControlMessage(MSG_NSC, new byte[]{(byte) type});
+        }
+    }
+
+    /*
+     * encoder
+     */
+
+    /**
+     * Write from a separate thread, as writing from the read thread could block reading,
+     * e.g. while a channel write waits for hardware flow control.
+     */
+    private void queueResponse(Response response) {
+        synchronized (mResponses) {
+            mResponses.add(response);
+            if (mResponseThread == null) {
+                mResponseThread = new Thread(this::writeResponses, TAG);
+                mResponseThread.setDaemon(true);
+                mResponseThread.start();
+            }
+        }
+    }
+
+    private void writeResponses() {
+        while (true) {
+            Response response;
+            synchronized (mResponses) {
+                response = mResponses.poll();
+                if (response == null) {
+                    mResponseThread = null;
+                    mResponses.notifyAll();
+                    return;
+                }
+            }
+            try {
+                response.write();
+            } catch (IOException e) {
+                Log.w(TAG, "Writing response failed", e);
+                onRunError(e);
+            }
+        }
+    }
+
+    /**
+     * Wait until queued responses are written.
+     */
+    void waitResponses() throws InterruptedException {
+        synchronized (mResponses) {
+            while (mResponseThread != null)
+                mResponses.wait();
+        }
+    }
+
+    private void queueControlMessage(int type, byte[] value) {
+        queueResponse(() -> writeControlMessage(type, value));
+    }
+
+    private void writeControlMessage(int type, byte[] value) throws IOException {
+        byte[] message = new byte[2 + value.length];
+        message[0] = (byte) type;
+        message[1] = (byte) ((value.length << 1) | EA); // control messages are short
+        System.arraycopy(value, 0, message, 2, value.length);
+        writeFrame(0, true, UIH, message, 0, message.length);
+    }
+
+    /**
+     * Signals are evaluated under the write lock, so the last status written is the current one,
+     * even if written from different threads.
+     */
+    private void writeModemStatus(Channel channel) throws IOException {
+        synchronized (mWriteLock) {
+            writeControlMessage(MSG_MSC | CR, new byte[]{(byte) ((channel.mDlci << 2) | CR | EA), (byte) (channel.getSignals() | EA)});
+        }
+    }
+
+    /**
+     * @param command C/R bit for frames sent by the initiator: set for commands and data, cleared for responses
+     */
+    private void writeFrame(int dlci, boolean command, int control, byte[] data, int offset, int length) throws IOException {
+        byte[] frame;
+        int address = (dlci << 2) | (command ? CR : 0) | EA;
+        if (mMode == Mode.BASIC) {
+            int headerLength = length > 127 ? 4 : 3;
+            frame = new byte[headerLength + length + 3];
+            frame[0] = (byte) FLAG_BASIC;
+            frame[1] = (byte) address;
+            frame[2] = (byte) control;
+            if (length > 127) {
+                frame[3] = (byte) (length << 1);
+                frame[4] = (byte) (length >> 7);
+            } else {
+                frame[3] = (byte) ((length << 1) | EA);
+            }
+            int fcs = 0xff;
+            for (int i = 1; i <= headerLength; i++)
+                fcs = FCS_TABLE[fcs ^ (frame[i] & 0xff)];
+            if (length > 0)
+                System.arraycopy(data, offset, frame, headerLength + 1, length);
+            if ((control & ~PF) == UI)
+                for (int i = 0; i < length; i++)
+                    fcs = FCS_TABLE[fcs ^ (data[offset + i] & 0xff)];
+            frame[frame.length - 2] = (byte) (0xff - fcs);
+            frame[frame.length - 1] = (byte) FLAG_BASIC;
+        } else {
+            int fcs = FCS_TABLE[0xff ^ address];
+            fcs = FCS_TABLE[fcs ^ control];
+            if ((control & ~PF) == UI)
+                for (int i = 0; i < length; i++)
+                    fcs = FCS_TABLE[fcs ^ (data[offset + i] & 0xff)];
+            byte[] buffer = new byte[2 * (length + 3) + 2];
+            int pos = 0;
+            buffer[pos++] = (byte) FLAG_ADVANCED;
+            pos = putEscaped(buffer, pos, address);
+            pos = putEscaped(buffer, pos, control);
+            for (int i = 0; i < length; i++)
+                pos = putEscaped(buffer, pos, data[offset + i] & 0xff);
+            pos = putEscaped(buffer, pos, 0xff - fcs);
+            buffer[pos++] = (byte) FLAG_ADVANCED;
+            frame = new byte[pos];
+            System.arraycopy(buffer, 0, frame, 0, pos);
+        }
+        synchronized (mWriteLock) {
+            mPort.write(frame, mWriteTimeout);
+        }
+    }
+
+    private static int putEscaped(byte[] buffer, int pos, int b) {
+        if (b == FLAG_ADVANCED || b == ESCAPE_ADVANCED || b == UsbSerialPort.CHAR_XON || b == UsbSerialPort.CHAR_XOFF) {
+            buffer[pos++] = (byte) ESCAPE_ADVANCED;
+            b ^= ESCAPE_XOR;
+        }
+        buffer[pos++] = (byte) b;
+        return pos;
+    }
+
+    /**
+     * Virtual channel, identified by its DLCI
+     */
+    public class Channel {
+
+        private static final int STATE_CLOSED = 0;
+        private static final int STATE_OPENING = 1;
+        private static final int STATE_OPEN = 2;
+        private static final int STATE_CLOSING = 3;
+
+        private final int mDlci;
+        private int mState = STATE_CLOSED; // guarded by this
+        private final byte[] mBuffer = new byte[RECEIVE_BUFFER_SIZE]; // guarded by this
+        private int mBufferStart = 0;
+        private int mBufferLength = 0;
+        private boolean mLocalFlowStopped = false; // guarded by this
+        private volatile int mRemoteSignals = 0;
+        private boolean mDtr = true;
+        private boolean mRts = true;
+        private int mOverflowCount = 0;
+
+        private Channel(int dlci) {
+            mDlci = dlci;
+        }
+
+        public int getDlci() {
+            return mDlci;
+        }
+
+        /**
+         * Open channel and set DTR and RTS.
+         */
+        public void open(int timeout) throws IOException {
+            synchronized (this) {
+                if (mState != STATE_CLOSED)
+                    throw new IllegalStateException("Already open");
+                if (mDlci != 0 && !Cmux.this.isOpen())
+                    throw new IOException("Multiplexer not open");
+                mBufferStart = mBufferLength = 0;
+                mLocalFlowStopped = false;
+                mRemoteSignals = 0;
+                mState = STATE_OPENING;
+            }
+            writeFrame(mDlci, true, SABM | PF, null, 0, 0);
+            if (!waitState(STATE_OPENING, timeout)) {
+                setClosed();
+                throw new IOException("Channel " + mDlci + " open timeout");
+            }
+            if (!isOpen())
+                throw new IOException("Channel " + mDlci + " rejected");
+            if (mDlci != 0)
+                writeModemStatus(this);
+        }
+
+        public void close(int timeout) throws IOException {
+            synchronized (this) {
+                if (mState != STATE_OPEN)
+                    return;
+                mState = STATE_CLOSING;
+            }
+            writeFrame(mDlci, true, DISC | PF, null, 0, 0);
+            boolean acknowledged = waitState(STATE_CLOSING, timeout);
+            setClosed();
+            if (!acknowledged)
+                throw new IOException("Channel " + mDlci + " close timeout");
+        }
+
+        public synchronized boolean isOpen() {
+            return mState == STATE_OPEN;
+        }
+
+        private synchronized void setState(int state) {
+            mState = state;
+            notifyAll();
+        }
+
+        private synchronized void setClosed() {
+            setState(STATE_CLOSED);
+        }
+
+        private synchronized void acknowledged() {
+            if (mState == STATE_OPENING)
+                setState(STATE_OPEN);
+            else if (mState == STATE_CLOSING)
+                setState(STATE_CLOSED);
+        }
+
+        /** @return false on timeout */
+        private synchronized boolean waitState(int state, int timeout) throws IOException {
+            long endTime = MonotonicClock.millis() + timeout;
+            while (mState == state) {
+                checkError();
+                long waitTime = timeout == 0 ? 0 : endTime - MonotonicClock.millis();
+                if (timeout != 0 && waitTime <= 0)
+                    return false;
+                try {
+                    wait(waitTime);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException(e);
+                }
+            }
+            return true;
+        }
+
+        private void receive(byte[] data, int offset, int length) {
+            boolean stop = false;
+            synchronized (this) {
+                if (mState != STATE_OPEN)
+                    return;
+                int len = Math.min(length, mBuffer.length - mBufferLength);
+                if (len < length) {
+                    mOverflowCount += length - len;
+                    Log.w(TAG, "Channel " + mDlci + " buffer overflow, dropped " + (length - len) + " bytes");
+                }
+                int pos = (mBufferStart + mBufferLength) % mBuffer.length;
+                int len1 = Math.min(len, mBuffer.length - pos);
+                System.arraycopy(data, offset, mBuffer, pos, len1);
+                System.arraycopy(data, offset + len1, mBuffer, 0, len - len1);
+                mBufferLength += len;
+                if (!mLocalFlowStopped && mBuffer.length - mBufferLength < 2 * mMaxFrameSize) {
+                    mLocalFlowStopped = stop = true;
+                }
+                notifyAll();
+            }
+            if (stop)
+                queueResponse(() -> writeModemStatus(this));
+        }
+
+        public int read(final byte[] dest, final int timeout) throws IOException {
+            return read(dest, dest.length, timeout);
+        }
+
+        /**
+         * @param timeout in msec, 0 is infinite
+         * @return number of bytes read, 0 on timeout
+         */
+        public int read(final byte[] dest, int length, final int timeout) throws IOException {
+            if (length <= 0)
+                throw new IllegalArgumentException("Read buffer too small");
+            length = Math.min(length, dest.length);
+            boolean start = false;
+            int len;
+            synchronized (this) {
+                long endTime = MonotonicClock.millis() + timeout;
+                while (mBufferLength == 0) {
+                    checkError();
+                    if (mState != STATE_OPEN)
+                        throw new IOException("Channel " + mDlci + " closed");
+                    long waitTime = timeout == 0 ? 0 : endTime - MonotonicClock.millis();
+                    if (timeout != 0 && waitTime <= 0)
+                        return 0;
+                    try {
+                        wait(waitTime);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException(e);
+                    }
+                }
+                len = Math.min(length, mBufferLength);
+                int len1 = Math.min(len, mBuffer.length - mBufferStart);
+                System.arraycopy(mBuffer, mBufferStart, dest, 0, len1);
+                System.arraycopy(mBuffer, 0, dest, len1, len - len1);
+                mBufferStart = (mBufferStart + len) % mBuffer.length;
+                mBufferLength -= len;
+                if (mLocalFlowStopped && mBufferLength <= mBuffer.length / 2) {
+                    mLocalFlowStopped = false;
+                    start = true;
+                }
+            }
+            if (start)
+                writeModemStatus(this);
+            return len;
+        }
+
+        public void write(final byte[] src, final int timeout) throws IOException {
+            write(src, src.length, timeout);
+        }
+
+        /**
+         * @param timeout in msec, 0 is infinite
+         * @throws SerialTimeoutException if the modem stopped the channel longer than timeout
+         */
+        public void write(final byte[] src, int length, final int timeout) throws IOException {
+            long endTime = MonotonicClock.millis() + timeout;
+            length = Math.min(length, src.length);
+            int offset = 0;
+            while (offset < length) {
+                synchronized (this) {
+                    while (mFlowStopped || (mRemoteSignals & SIGNAL_FC) != 0) {
+                        checkError();
+                        long waitTime = timeout == 0 ? 0 : endTime - MonotonicClock.millis();
+                        if (timeout != 0 && waitTime <= 0)
+                            throw new SerialTimeoutException("Channel " + mDlci + " write timeout, flow control", offset);
+                        try {
+                            wait(waitTime);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IOException(e);
+                        }
+                    }
+                    checkError();
+                    if (mState != STATE_OPEN)
+                        throw new IOException("Channel " + mDlci + " closed");
+                }
+                int len = Math.min(length - offset, mMaxFrameSize);
+                writeFrame(mDlci, true, UIH, src, offset, len);
+                offset += len;
+            }
+        }
+
+        private synchronized int getSignals() {
+            return (mDtr ? SIGNAL_RTC : 0) | (mRts ? SIGNAL_RTR : 0) | (mLocalFlowStopped ? SIGNAL_FC : 0);
+        }
+
+        private void setRemoteSignals(int signals) {
+            synchronized (this) {
+                mRemoteSignals = signals;
+                notifyAll();
+            }
+        }
+
+        public boolean getDTR() {
+            return mDtr;
+        }
+
+        public void setDTR(boolean value) throws IOException {
+            mDtr = value;
+            if (isOpen())
+                writeModemStatus(this);
+        }
+
+        public boolean getRTS() {
+            return mRts;
+        }
+
+        public void setRTS(boolean value) throws IOException {
+            mRts = value;
+            if (isOpen())
+                writeModemStatus(this);
+        }
+
+        public boolean getCTS() {
+            return (mRemoteSignals & SIGNAL_RTR) != 0;
+        }
+
+        public boolean getDSR() {
+            return (mRemoteSignals & SIGNAL_RTC) != 0;
+        }
+
+        public boolean getRI() {
+            return (mRemoteSignals & SIGNAL_IC) != 0;
+        }
+
+        public boolean getCD() {
+            return (mRemoteSignals & SIGNAL_DV) != 0;
+        }
+
+        public EnumSet<ControlLine> getControlLines() {
+            EnumSet<ControlLine> set = EnumSet.noneOf(ControlLine.class);
+            if (mRts) set.add(ControlLine.RTS);
+            if (getCTS()) set.add(ControlLine.CTS);
+            if (mDtr) set.add(ControlLine.DTR);
+            if (getDSR()) set.add(ControlLine.DSR);
+            if (getCD()) set.add(ControlLine.CD);
+            if (getRI()) set.add(ControlLine.RI);
+            return set;
+        }
+
+        /**
+         * @return false if the modem stopped sending on this channel or the whole multiplexer
+         */
+        public boolean getXON() {
+            return !mFlowStopped && (mRemoteSignals & SIGNAL_FC) == 0;
+        }
+
+        /**
+         * @return number of received bytes dropped because the channel buffer was full
+         */
+        public synchronized int getOverflowCount() {
+            return mOverflowCount;
+        }
+    }
+}
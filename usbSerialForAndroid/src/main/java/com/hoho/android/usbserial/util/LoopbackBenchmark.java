@@ -0,0 +1,377 @@
+package com.hoho.android.usbserial.util;
+
+import android.util.Log;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Benchmark for a port with TX externally connected to RX, for field diagnostics of cables,
+ * hubs and adapters.
+ * <p>
+ * A PRBS-15 sequence is sent and received data is checked for lost, duplicated and corrupted
+ * bytes. First data is sent continuously to measure throughput, then small probes are sent
+ * one after another to measure round trip latency.
+ * <p>
+ * The port has to be open with parameters set. Do not use while a {@link SerialInputOutputManager}
+ * is running on the port.
+ */
+public class LoopbackBenchmark {
+
+    private static final String TAG = LoopbackBenchmark.class.getSimpleName();
+
+    public static final int DEFAULT_DURATION_MILLIS = 5000;
+    public static final int DEFAULT_WRITE_SIZE = 1024;
+    public static final int DEFAULT_LATENCY_PROBES = 100;
+    public static final int DEFAULT_PROBE_SIZE = 1;
+    public static final int DEFAULT_TIMEOUT_MILLIS = 1000;
+    /** latency histogram bucket i counts round trips from 2^i to 2^(i+1)-1 usec */
+    public static final int HISTOGRAM_BUCKETS = 24;
+
+    static final int PRBS_PERIOD = 32767; // bytes, as 8 and 2^15-1 are coprime
+    private static final int SYNC_LENGTH = 4; // bytes matching sequence to resync after error
+    private static final int READ_TIMEOUT_MILLIS = 100;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    /** PRBS-15 sequence x^15 + x^14 + 1, and sequence position of each 2 byte window */
+    static class Prbs {
+        static final byte[] SEQUENCE = new byte[PRBS_PERIOD];
+        static final short[] POSITION = new short[65536];
+
+        static {
+            int state = 0x7fff;
+            for (int i = 0; i < PRBS_PERIOD; i++) {
+                int b = 0;
+                for (int bit = 0; bit < 8; bit++) {
+                    int newBit = ((state >> 14) ^ (state >> 13)) & 1;
+                    state = ((state << 1) | newBit) & 0x7fff;
+                    b |= newBit << bit;
+                }
+                SEQUENCE[i] = (byte) b;
+            }
+            Arrays.fill(POSITION, (short) -1);
+            for (int i = 0; i < PRBS_PERIOD; i++)
+                POSITION[window(SEQUENCE[i], SEQUENCE[(i + 1) % PRBS_PERIOD])] = (short) i;
+        }
+
+        static int window(byte b1, byte b2) {
+            return ((b1 & 0xff) << 8) | (b2 & 0xff);
+        }
+    }
+
+    /**
+     * Streaming check of received data against the sequence. After an error the position is
+     * resynchronized with the next {@link #SYNC_LENGTH} bytes. Gaps of lost or duplicated data
+     * are detected up to half the sequence period.
+     */
+    static class Checker {
+        private final byte[] mPending = new byte[SYNC_LENGTH];
+        private int mPendingLength;
+        private long mPosition; // next expected sequence index
+        long received;
+        long lost;
+        long duplicated;
+        long corrupted;
+
+        long getPosition() {
+            return mPosition;
+        }
+
+        void check(byte[] data, int length) {
+            received += length;
+            for (int i = 0; i < length; i++) {
+                mPending[mPendingLength++] = data[i];
+                while (mPendingLength == SYNC_LENGTH)
+                    process(false);
+            }
+        }
+
+        /** check pending bytes without resync */
+        void flush() {
+            while (mPendingLength > 0)
+                process(true);
+        }
+
+        private static int index(long position) {
+            return (int) (((position % PRBS_PERIOD) + PRBS_PERIOD) % PRBS_PERIOD);
+        }
+
+        private void process(boolean flush) {
+            int expected = index(mPosition);
+            if (mPending[0] == Prbs.SEQUENCE[expected]) {
+                mPosition++;
+                consume();
+                return;
+            }
+            if (!flush) {
+                int position = Prbs.POSITION[Prbs.window(mPending[0], mPending[1])];
+                boolean sync = position >= 0;
+                for (int i = 2; sync && i < SYNC_LENGTH; i++)
+                    sync = mPending[i] == Prbs.SEQUENCE[(position + i) % PRBS_PERIOD];
+                if (sync) {
+                    int delta = (position - expected + PRBS_PERIOD) % PRBS_PERIOD;
+                    if (delta <= PRBS_PERIOD / 2) {
+                        lost += delta;
+                        mPosition += delta;
+                    } else {
+                        duplicated += PRBS_PERIOD - delta;
+                        mPosition -= PRBS_PERIOD - delta;
+                    }
+                    return; // pending bytes now match
+                }
+            }
+            corrupted++;
+            mPosition++;
+            consume();
+        }
+
+        private void consume() {
+            System.arraycopy(mPending, 1, mPending, 0, --mPendingLength);
+        }
+    }
+
+    public static class Report {
+        long bytesWritten;
+        long bytesRead;
+        long writeBytesPerSecond;
+        long readBytesPerSecond;
+        long lostBytes;
+        long duplicatedBytes;
+        long corruptedBytes;
+        int latencyTimeouts;
+        int[] latencyMicros = new int[0]; // sorted
+        final long[] latencyHistogram = new long[HISTOGRAM_BUCKETS];
+
+        Report() {
+        }
+
+        /** bytes written in total */
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        /** bytes read in total */
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        /** sustained write throughput of continuous phase */
+        public long getWriteBytesPerSecond() {
+            return writeBytesPerSecond;
+        }
+
+        /** sustained read throughput of continuous phase, from first write until last read */
+        public long getReadBytesPerSecond() {
+            return readBytesPerSecond;
+        }
+
+        /** bytes missing in received data, including data not received at all */
+        public long getLostBytes() {
+            return lostBytes;
+        }
+
+        public long getDuplicatedBytes() {
+            return duplicatedBytes;
+        }
+
+        public long getCorruptedBytes() {
+            return corruptedBytes;
+        }
+
+        /** @return {@code true} if all data was received unmodified */
+        public boolean isIntact() {
+            return lostBytes == 0 && duplicatedBytes == 0 && corruptedBytes == 0;
+        }
+
+        /** number of latency probes not received within timeout */
+        public int getLatencyTimeouts() {
+            return latencyTimeouts;
+        }
+
+        /** number of latency probes received */
+        public int getLatencyCount() {
+            return latencyMicros.length;
+        }
+
+        /**
+         * @param percentile 0..100
+         * @return round trip latency in usec, or -1 if no probe received
+         */
+        public int getLatencyMicros(double percentile) {
+            if (latencyMicros.length == 0)
+                return -1;
+            int rank = (int) Math.ceil(percentile / 100 * latencyMicros.length);
+            return latencyMicros[Math.min(Math.max(rank, 1), latencyMicros.length) - 1];
+        }
+
+        /** see {@link #HISTOGRAM_BUCKETS} */
+        public long[] getLatencyHistogram() {
+            return latencyHistogram.clone();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("<%s written=%d read=%d write=%d B/s read=%d B/s lost=%d duplicated=%d corrupted=%d"
+                            + " latency p50=%d p90=%d p99=%d max=%d usec timeouts=%d>",
+                    getClass().getSimpleName(), bytesWritten, bytesRead, getWriteBytesPerSecond(), getReadBytesPerSecond(),
+                    lostBytes, duplicatedBytes, corruptedBytes,
+                    getLatencyMicros(50), getLatencyMicros(90), getLatencyMicros(99), getLatencyMicros(100), latencyTimeouts);
+        }
+    }
+
+    private final UsbSerialPort mPort;
+    private int mDurationMillis = DEFAULT_DURATION_MILLIS;
+    private int mWriteSize = DEFAULT_WRITE_SIZE;
+    private int mLatencyProbes = DEFAULT_LATENCY_PROBES;
+    private int mProbeSize = DEFAULT_PROBE_SIZE;
+    private int mTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    public LoopbackBenchmark(UsbSerialPort port) {
+        mPort = port;
+    }
+
+    /**
+     * @param durationMillis duration of continuous write, 0 to skip throughput measurement
+     * @param writeSize      bytes per write
+     */
+    public void setThroughputTest(int durationMillis, int writeSize) {
+        if (durationMillis < 0 || writeSize <= 0) {
+            throw new IllegalArgumentException("Invalid throughput test");
+        }
+        mDurationMillis = durationMillis;
+        mWriteSize = writeSize;
+    }
+
+    /**
+     * @param probes    number of probes, 0 to skip latency measurement
+     * @param probeSize bytes per probe
+     */
+    public void setLatencyTest(int probes, int probeSize) {
+        if (probes < 0 || probeSize <= 0) {
+            throw new IllegalArgumentException("Invalid latency test");
+        }
+        mLatencyProbes = probes;
+        mProbeSize = probeSize;
+    }
+
+    /**
+     * @param timeoutMillis write timeout, time to wait for outstanding data after continuous
+     *                      write and for each latency probe
+     */
+    public void setTimeout(int timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Invalid timeout");
+        }
+        mTimeoutMillis = timeoutMillis;
+    }
+
+    public Report run() throws IOException {
+        Report report = new Report();
+        Checker checker = new Checker();
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        while (mPort.read(buffer, READ_TIMEOUT_MILLIS) > 0) {
+            // discard stale data
+        }
+        long written = runThroughput(report, checker, buffer);
+        written = runLatency(report, checker, buffer, written);
+        checker.flush();
+        report.bytesWritten = written;
+        report.bytesRead = checker.received;
+        report.lostBytes = checker.lost + Math.max(0, written - checker.getPosition());
+        report.duplicatedBytes = checker.duplicated;
+        report.corruptedBytes = checker.corrupted;
+        Log.d(TAG, "run " + report);
+        return report;
+    }
+
+    private void write(long position, int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = (int) (position % PRBS_PERIOD);
+        for (int i = 0; i < length; ) {
+            int len = Math.min(length - i, PRBS_PERIOD - offset);
+            System.arraycopy(Prbs.SEQUENCE, offset, data, i, len);
+            i += len;
+            offset = 0;
+        }
+        mPort.write(data, mTimeoutMillis);
+    }
+
+    private long runThroughput(Report report, Checker checker, byte[] buffer) throws IOException {
+        if (mDurationMillis == 0)
+            return 0;
+        AtomicLong written = new AtomicLong();
+        AtomicReference<Exception> writeError = new AtomicReference<>();
+        Thread writer = new Thread(() -> {
+            long endMillis = MonotonicClock.millis() + mDurationMillis;
+            try {
+                while (MonotonicClock.millis() < endMillis) {
+                    write(written.get(), mWriteSize);
+                    written.addAndGet(mWriteSize);
+                }
+            } catch (Exception e) {
+                writeError.set(e);
+            }
+        }, TAG + "_write");
+        long startMillis = MonotonicClock.millis();
+        long lastReadMillis = startMillis;
+        writer.start();
+        try {
+            while (writer.isAlive() || MonotonicClock.millis() - lastReadMillis < mTimeoutMillis) {
+                int len = mPort.read(buffer, READ_TIMEOUT_MILLIS);
+                if (len > 0) {
+                    checker.check(buffer, len);
+                    lastReadMillis = MonotonicClock.millis();
+                    if (!writer.isAlive() && checker.received >= written.get())
+                        break;
+                }
+            }
+        } finally {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (writeError.get() != null) {
+            Exception e = writeError.get();
+            throw e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+        report.writeBytesPerSecond = written.get() * 1000 / mDurationMillis;
+        report.readBytesPerSecond = checker.received * 1000 / Math.max(1, lastReadMillis - startMillis);
+        return written.get();
+    }
+
+    private long runLatency(Report report, Checker checker, byte[] buffer, long written) throws IOException {
+        int[] latencyMicros = new int[mLatencyProbes];
+        int count = 0;
+        for (int probe = 0; probe < mLatencyProbes; probe++) {
+            long target = checker.received + mProbeSize;
+            long startNanos = System.nanoTime();
+            long endMillis = MonotonicClock.millis() + mTimeoutMillis;
+            write(written, mProbeSize);
+            written += mProbeSize;
+            while (checker.received < target) {
+                long remaining = endMillis - MonotonicClock.millis();
+                if (remaining <= 0)
+                    break;
+                int len = mPort.read(buffer, (int) Math.min(remaining, READ_TIMEOUT_MILLIS));
+                checker.check(buffer, len);
+            }
+            if (checker.received < target) {
+                report.latencyTimeouts++;
+                continue;
+            }
+            int micros = (int) Math.min(Integer.MAX_VALUE, (System.nanoTime() - startNanos) / 1000);
+            latencyMicros[count++] = micros;
+            int bucket = 31 - Integer.numberOfLeadingZeros(Math.max(1, micros));
+            report.latencyHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+        }
+        report.latencyMicros = Arrays.copyOf(latencyMicros, count);
+        Arrays.sort(report.latencyMicros);
+        return written;
+    }
+}
@@ -9,7 +9,10 @@ package com.hoho.android.usbserial.util;
 import android.os.Process;
 import android.util.Log;
 
+import com.hoho.android.usbserial.driver.CommonUsbSerialPort;
+import com.hoho.android.usbserial.driver.SerialTimeoutException;
 import com.hoho.android.usbserial.driver.UsbSerialPort;
+import com.hoho.android.usbserial.driver.UsbSerialPortProfile;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -43,6 +46,7 @@ public class SerialInputOutputManager {
 
     private ByteBuffer mReadBuffer; // default size = getReadEndpoint().getMaxPacketSize()
     private ByteBuffer mWriteBuffer = ByteBuffer.allocate(BUFSIZ);
+    private boolean mWriting; // guarded by mWriteBufferLock
 
     private int mThreadPriority = Process.THREAD_PRIORITY_URGENT_AUDIO;
     private final AtomicReference<State> mState = new AtomicReference<>(State.STOPPED);
@@ -145,6 +149,28 @@ public class SerialInputOutputManager {
         return mWriteBuffer.capacity();
     }
 
+    /**
+     * Set buffer sizes from {@link UsbSerialPort#getProfile()} instead of chip specific values.
+     * <p>
+     * Sets the read buffer size, and the size of single USB write transfers of the port.
+     * The write buffer collecting data from {@link #writeAsync} is only increased.
+     * Call after port open(), as the actual chip is only known then.
+     *
+     * @param baudRate baud rate, or 0 if not known
+     */
+    public void configure(int baudRate) {
+        UsbSerialPortProfile profile = mSerialPort.getProfile();
+        if (DEBUG) {
+            Log.d(TAG, "configure " + baudRate + " from " + profile);
+        }
+        int writeBufferSize = profile.getIdealWriteBufferSize(baudRate);
+        setReadBufferSize(profile.getIdealReadBufferSize(baudRate));
+        setWriteBufferSize(Math.max(getWriteBufferSize(), writeBufferSize));
+        if (mSerialPort instanceof CommonUsbSerialPort) {
+            ((CommonUsbSerialPort) mSerialPort).setWriteBufferSize(writeBufferSize);
+        }
+    }
+
     /**
      * write data asynchronously
      */
@@ -155,6 +181,41 @@ public class SerialInputOutputManager {
         }
     }
 
+    /**
+     * Wait until data from {@link #writeAsync} has been written and sent by the device, see
+     * {@link UsbSerialPort#drain}, e.g. before changing line parameters or closing the port.
+     *
+     * @param timeout timeout in milliseconds, 0 is infinite
+     * @throws SerialTimeoutException if data is still queued after timeout
+     * @throws IOException if data is queued and the write thread is not running
+     */
+    public void flush(int timeout) throws IOException {
+        final long endTime = timeout == 0 ? Long.MAX_VALUE : MonotonicClock.millis() + timeout;
+        synchronized (mWriteBufferLock) {
+            while (mWriteBuffer.position() > 0 || mWriting) {
+                State state = getState();
+                if (state == State.STOPPING || state == State.STOPPED) {
+                    throw new IOException("Flush failed, " + state);
+                }
+                long remaining = endTime - MonotonicClock.millis();
+                if (remaining <= 0) {
+                    throw new SerialTimeoutException("Flush timeout", 0);
+                }
+                try {
+                    mWriteBufferLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Flush interrupted", e);
+                }
+            }
+        }
+        long remaining = endTime - MonotonicClock.millis();
+        if (remaining <= 0) {
+            throw new SerialTimeoutException("Flush timeout", 0);
+        }
+        mSerialPort.drain(timeout == 0 ? 0 : (int) remaining);
+    }
+
     /**
      * start SerialInputOutputManager in separate threads
      */
@@ -288,6 +349,9 @@ public class SerialInputOutputManager {
                     Log.i(TAG, "runWrite: Stopped mState=" + getState());
                 }
             }
+            synchronized (mWriteBufferLock) {
+                mWriteBufferLock.notifyAll(); // wake up flush to check the stop condition
+            }
         }
     }
 
@@ -321,6 +385,7 @@ public class SerialInputOutputManager {
                 mWriteBuffer.rewind();
                 mWriteBuffer.get(buffer, 0, len);
                 mWriteBuffer.clear();
+                mWriting = true;
                 mWriteBufferLock.notifyAll(); // Notify writeAsync that there is space in the buffer
             } else {
                 mWriteBufferLock.wait();
@@ -330,7 +395,14 @@ public class SerialInputOutputManager {
             if (DEBUG) {
                 Log.d(TAG, "Writing data len=" + buffer.length);
             }
-            mSerialPort.write(buffer, mWriteTimeout);
+            try {
+                mSerialPort.write(buffer, mWriteTimeout);
+            } finally {
+                synchronized (mWriteBufferLock) {
+                    mWriting = false;
+                    mWriteBufferLock.notifyAll(); // Notify flush
+                }
+            }
         }
     }
 
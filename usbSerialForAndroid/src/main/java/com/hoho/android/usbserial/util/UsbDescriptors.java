@@ -0,0 +1,244 @@
+package com.hoho.android.usbserial.util;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * USB descriptors of a connection.
+ * <p>
+ * Descriptors are typed views on the array returned by {@link UsbDeviceConnection#getRawDescriptors()},
+ * no data is copied. Parsed descriptors are cached per connection, so all ports of a device
+ * share one instance.
+ */
+public class UsbDescriptors {
+
+    public static final int TYPE_DEVICE = 0x01;
+    public static final int TYPE_CONFIGURATION = 0x02;
+    public static final int TYPE_STRING = 0x03;
+    public static final int TYPE_INTERFACE = 0x04;
+    public static final int TYPE_ENDPOINT = 0x05;
+    public static final int TYPE_INTERFACE_ASSOCIATION = 0x0b;
+    public static final int TYPE_CS_INTERFACE = 0x24;
+
+    private static final Map<UsbDeviceConnection, UsbDescriptors> sCache = new WeakHashMap<>();
+
+    private final byte[] mRawDescriptors;
+    private final List<Descriptor> mDescriptors;
+
+    public static class Descriptor {
+        protected final byte[] raw;
+        protected final int offset;
+        protected final int length;
+
+        Descriptor(byte[] raw, int offset, int length) {
+            this.raw = raw;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        public int getType() {
+            return length > 1 ? raw[offset + 1] & 0xff : 0;
+        }
+
+        /** unsigned byte at index in descriptor, 0 if beyond descriptor length */
+        public int getByte(int index) {
+            return index < length ? raw[offset + index] & 0xff : 0;
+        }
+
+        /** unsigned little endian word at index in descriptor, 0 if beyond descriptor length */
+        public int getWord(int index) {
+            return getByte(index) | (getByte(index + 1) << 8);
+        }
+
+        public byte[] toByteArray() {
+            byte[] data = new byte[length];
+            System.arraycopy(raw, offset, data, 0, length);
+            return data;
+        }
+
+        @Override
+        public String toString() {
+            return HexDump.toHexString(raw, offset, length);
+        }
+    }
+
+    public static class DeviceDescriptor extends Descriptor {
+        DeviceDescriptor(byte[] raw, int offset, int length) { super(raw, offset, length); }
+
+        /** bcdUSB */
+        public int getUsbVersion() { return getWord(2); }
+        public int getDeviceClass() { return getByte(4); }
+        public int getDeviceSubclass() { return getByte(5); }
+        public int getDeviceProtocol() { return getByte(6); }
+        public int getMaxPacketSize0() { return getByte(7); }
+        public int getVendorId() { return getWord(8); }
+        public int getProductId() { return getWord(10); }
+        /** bcdDevice */
+        public int getDeviceVersion() { return getWord(12); }
+        public int getConfigurationCount() { return getByte(17); }
+    }
+
+    public static class ConfigurationDescriptor extends Descriptor {
+        ConfigurationDescriptor(byte[] raw, int offset, int length) { super(raw, offset, length); }
+
+        public int getTotalLength() { return getWord(2); }
+        public int getInterfaceCount() { return getByte(4); }
+        public int getConfigurationValue() { return getByte(5); }
+        public int getAttributes() { return getByte(7); }
+        /** in 2mA units */
+        public int getMaxPower() { return getByte(8); }
+    }
+
+    public static class InterfaceDescriptor extends Descriptor {
+        InterfaceDescriptor(byte[] raw, int offset, int length) { super(raw, offset, length); }
+
+        public int getInterfaceNumber() { return getByte(2); }
+        public int getAlternateSetting() { return getByte(3); }
+        public int getEndpointCount() { return getByte(4); }
+        public int getInterfaceClass() { return getByte(5); }
+        public int getInterfaceSubclass() { return getByte(6); }
+        public int getInterfaceProtocol() { return getByte(7); }
+    }
+
+    public static class EndpointDescriptor extends Descriptor {
+        EndpointDescriptor(byte[] raw, int offset, int length) { super(raw, offset, length); }
+
+        public int getAddress() { return getByte(2); }
+        public int getAttributes() { return getByte(3); }
+        public int getMaxPacketSize() { return getWord(4) & 0x7ff; }
+        public int getInterval() { return getByte(6); }
+    }
+
+    /** see https://www.usb.org/sites/default/files/iadclasscode_r10.pdf */
+    public static class InterfaceAssociationDescriptor extends Descriptor {
+        InterfaceAssociationDescriptor(byte[] raw, int offset, int length) { super(raw, offset, length); }
+
+        public int getFirstInterface() { return getByte(2); }
+        public int getInterfaceCount() { return getByte(3); }
+        public int getFunctionClass() { return getByte(4); }
+        public int getFunctionSubclass() { return getByte(5); }
+        public int getFunctionProtocol() { return getByte(6); }
+    }
+
+    /** CDC class specific interface descriptor, e.g. header, call management, ACM, union */
+    public static class CdcFunctionalDescriptor extends Descriptor {
+        public static final int SUBTYPE_HEADER = 0x00;
+        public static final int SUBTYPE_CALL_MANAGEMENT = 0x01;
+        public static final int SUBTYPE_ACM = 0x02;
+        public static final int SUBTYPE_UNION = 0x06;
+
+        CdcFunctionalDescriptor(byte[] raw, int offset, int length) { super(raw, offset, length); }
+
+        public int getSubtype() { return getByte(2); }
+        /** bmCapabilities of call management and ACM descriptors */
+        public int getCapabilities() { return getByte(3); }
+        /** bControlInterface of union descriptor */
+        public int getControlInterface() { return getByte(3); }
+        /** bSubordinateInterface0..n of union descriptor */
+        public int getSubordinateInterface(int index) { return getByte(4 + index); }
+        public int getSubordinateInterfaceCount() { return Math.max(0, length - 4); }
+    }
+
+    /**
+     * parse raw descriptors, truncated descriptors are ignored
+     */
+    public UsbDescriptors(byte[] rawDescriptors) {
+        mRawDescriptors = rawDescriptors != null ? rawDescriptors : new byte[0];
+        List<Descriptor> descriptors = new ArrayList<>();
+        int pos = 0;
+        while (pos + 2 <= mRawDescriptors.length) {
+            int len = mRawDescriptors[pos] & 0xff;
+            if (len < 2 || pos + len > mRawDescriptors.length)
+                break;
+            descriptors.add(createDescriptor(mRawDescriptors, pos, len));
+            pos += len;
+        }
+        mDescriptors = Collections.unmodifiableList(descriptors);
+    }
+
+    private static Descriptor createDescriptor(byte[] raw, int offset, int length) {
+        switch (raw[offset + 1] & 0xff) {
+            case TYPE_DEVICE:
+                if (length >= 18) return new DeviceDescriptor(raw, offset, length);
+                break;
+            case TYPE_CONFIGURATION:
+                if (length >= 9) return new ConfigurationDescriptor(raw, offset, length);
+                break;
+            case TYPE_INTERFACE:
+                if (length >= 9) return new InterfaceDescriptor(raw, offset, length);
+                break;
+            case TYPE_ENDPOINT:
+                if (length >= 7) return new EndpointDescriptor(raw, offset, length);
+                break;
+            case TYPE_INTERFACE_ASSOCIATION:
+                if (length >= 8) return new InterfaceAssociationDescriptor(raw, offset, length);
+                break;
+            case TYPE_CS_INTERFACE:
+                if (length >= 3) return new CdcFunctionalDescriptor(raw, offset, length);
+                break;
+        }
+        return new Descriptor(raw, offset, length);
+    }
+
+    /**
+     * Get parsed descriptors of connection. Raw descriptors are fetched only once per connection.
+     */
+    public static UsbDescriptors get(UsbDeviceConnection connection) {
+        synchronized (sCache) {
+            UsbDescriptors descriptors = sCache.get(connection);
+            if (descriptors == null) {
+                byte[] rawDescriptors = connection.getRawDescriptors();
+                descriptors = new UsbDescriptors(rawDescriptors);
+                if (rawDescriptors != null)
+                    sCache.put(connection, descriptors);
+            }
+            return descriptors;
+        }
+    }
+
+    /**
+     * Forget cached descriptors, e.g. when connection is closed.
+     */
+    public static void remove(UsbDeviceConnection connection) {
+        synchronized (sCache) {
+            sCache.remove(connection);
+        }
+    }
+
+    public byte[] getRawDescriptors() {
+        return mRawDescriptors;
+    }
+
+    public List<Descriptor> getDescriptors() {
+        return mDescriptors;
+    }
+
+    /**
+     * @return descriptors of given class, e.g. all {@link InterfaceAssociationDescriptor}
+     */
+    public <T extends Descriptor> List<T> getDescriptors(Class<T> descriptorClass) {
+        List<T> descriptors = new ArrayList<>();
+        for (Descriptor descriptor : mDescriptors)
+            if (descriptorClass.isInstance(descriptor))
+                descriptors.add(descriptorClass.cast(descriptor));
+        return descriptors;
+    }
+
+    /**
+     * @return device descriptor, or {@code null} if missing or truncated
+     */
+    public DeviceDescriptor getDeviceDescriptor() {
+        if (!mDescriptors.isEmpty() && mDescriptors.get(0) instanceof DeviceDescriptor)
+            return (DeviceDescriptor) mDescriptors.get(0);
+        return null;
+    }
+}
@@ -2,8 +2,10 @@ package com.hoho.android.usbserial.driver;
 
 import static com.hoho.android.usbserial.driver.CdcAcmSerialDriver.USB_SUBCLASS_ACM;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.clearInvocations;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
@@ -16,11 +18,16 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 
+import com.hoho.android.usbserial.driver.UsbSerialPort.ControlLine;
+import com.hoho.android.usbserial.driver.UsbSerialPort.LineError;
 import com.hoho.android.usbserial.util.HexDump;
+import com.hoho.android.usbserial.util.UsbDescriptors;
 
 import org.junit.Test;
 
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class CdcAcmSerialDriverTest {
 
@@ -123,6 +130,38 @@ public class CdcAcmSerialDriverTest {
         assertNull(probeDriver);
     }
 
+    @Test
+    public void qinhengCdcDevices() throws Exception {
+        // newer QinHeng chips are CDC/ACM, only CH340 and CH341A use the vendor specific protocol
+        int[][] devices = {
+                {UsbId.QINHENG_CH342, 2},
+                {UsbId.QINHENG_CH343, 1},
+                {UsbId.QINHENG_CH9102, 1},
+                {UsbId.QINHENG_CH344, 4},
+        };
+        ProbeTable probeTable = UsbSerialProber.getDefaultProbeTable();
+        for (int[] device : devices) {
+            int n = device[1];
+            UsbDevice usbDevice = mock(UsbDevice.class);
+            when(usbDevice.getVendorId()).thenReturn(UsbId.VENDOR_QINHENG);
+            when(usbDevice.getProductId()).thenReturn(device[0]);
+            when(usbDevice.getInterfaceCount()).thenReturn(2 * n);
+            for (int i = 0; i < n; i++) {
+                UsbInterface controlInterface = mock(UsbInterface.class);
+                UsbInterface dataInterface = mock(UsbInterface.class);
+                when(usbDevice.getInterface(2 * i)).thenReturn(controlInterface);
+                when(usbDevice.getInterface(2 * i + 1)).thenReturn(dataInterface);
+                when(controlInterface.getId()).thenReturn(2 * i);
+                when(controlInterface.getInterfaceClass()).thenReturn(UsbConstants.USB_CLASS_COMM);
+                when(controlInterface.getInterfaceSubclass()).thenReturn(USB_SUBCLASS_ACM);
+                when(dataInterface.getId()).thenReturn(2 * i + 1);
+                when(dataInterface.getInterfaceClass()).thenReturn(UsbConstants.USB_CLASS_CDC_DATA);
+            }
+            assertEquals(CdcAcmSerialDriver.class, probeTable.findDriver(usbDevice));
+            assertEquals(n, new CdcAcmSerialDriver(usbDevice).getPorts().size());
+        }
+    }
+
     @Test
     public void multiPortDevice() throws Exception {
         int n = 2;
@@ -215,6 +254,7 @@ public class CdcAcmSerialDriverTest {
         clearInvocations(controlInterfaces[0]);
         clearInvocations(controlInterfaces[1]);
 
+        UsbDescriptors.remove(usbDeviceConnection); // cached descriptors, normally removed by close()
         when(usbDeviceConnection.getRawDescriptors()).thenReturn(null);
         port.openInt();
         verify(controlInterfaces[0], times(2)).getInterfaceClass(); // openInterface with 'no IAD fallback'
@@ -223,6 +263,7 @@ public class CdcAcmSerialDriverTest {
         clearInvocations(controlInterfaces[0]);
         clearInvocations(controlInterfaces[1]);
 
+        UsbDescriptors.remove(usbDeviceConnection); // cached descriptors, normally removed by close()
         when(usbDeviceConnection.getRawDescriptors()).thenReturn(HexDump.hexStringToByteArray("01 02 02 82 02")); // truncated descriptor
         port.openInt();
         verify(controlInterfaces[0], times(2)).getInterfaceClass(); // openInterface with 'no IAD fallback'
@@ -543,4 +584,52 @@ public class CdcAcmSerialDriverTest {
         assertNull(port.mWriteEndpoint);
     }
 
+    @Test
+    public void serialStateNotification() throws Exception {
+        UsbDevice usbDevice = mock(UsbDevice.class);
+        CdcAcmSerialDriver driver = new CdcAcmSerialDriver(usbDevice);
+        CdcAcmSerialDriver.CdcAcmSerialPort port = (CdcAcmSerialDriver.CdcAcmSerialPort) driver.getPorts().get(0);
+        AtomicReference<EnumSet<ControlLine>> notifiedControlLines = new AtomicReference<>();
+        port.setControlLineListener(controlLines -> notifiedControlLines.set(controlLines));
+        byte[] data;
+
+        assertEquals(EnumSet.noneOf(ControlLine.class), port.getControlLines());
+        assertThrows(UnsupportedOperationException.class, port::getCTS);
+
+        // complete notification in one packet
+        data = HexDump.hexStringToByteArray("A1 20 00 00 00 00 02 00 03 00");
+        port.readNotification(data, data.length);
+        assertEquals(EnumSet.of(ControlLine.CD, ControlLine.DSR), port.getControlLines());
+        assertEquals(EnumSet.of(ControlLine.CD, ControlLine.DSR), notifiedControlLines.get());
+        assertTrue(port.getCD());
+        assertTrue(port.getDSR());
+        assertFalse(port.getRI());
+
+        // notification split over 8 byte packets
+        data = HexDump.hexStringToByteArray("A1 20 00 00 00 00 02 00");
+        port.readNotification(data, data.length);
+        assertEquals(EnumSet.of(ControlLine.CD, ControlLine.DSR), port.getControlLines());
+        data = HexDump.hexStringToByteArray("08 00");
+        port.readNotification(data, data.length);
+        assertEquals(EnumSet.of(ControlLine.RI), port.getControlLines());
+        assertEquals(EnumSet.of(ControlLine.RI), notifiedControlLines.get());
+
+        // garbage, other notification and multiple notifications in one packet
+        data = HexDump.hexStringToByteArray("55 A1 00 01 00 00 00 00 00 A1 20 00 00 00 00 02 00 74 00 A1 20 00 00 00 00 02 00 11 00");
+        port.readNotification(data, data.length);
+        assertEquals(EnumSet.of(ControlLine.CD), port.getControlLines());
+        assertEquals(EnumSet.of(ControlLine.CD), notifiedControlLines.get());
+        assertEquals(1, port.getLineErrorCount(LineError.BREAK));
+        assertEquals(2, port.getLineErrorCount(LineError.FRAMING));
+        assertEquals(1, port.getLineErrorCount(LineError.PARITY));
+        assertEquals(1, port.getLineErrorCount(LineError.OVERRUN));
+
+        // too long notification is skipped
+        data = HexDump.hexStringToByteArray("A1 20 00 00 00 00 00 01 02 00");
+        port.readNotification(data, data.length);
+        data = HexDump.hexStringToByteArray("A1 20 00 00 00 00 02 00 02 00");
+        port.readNotification(data, data.length);
+        assertEquals(EnumSet.of(ControlLine.DSR), port.getControlLines());
+    }
+
 }
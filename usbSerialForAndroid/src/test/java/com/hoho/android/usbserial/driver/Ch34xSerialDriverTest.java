@@ -0,0 +1,152 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.hardware.usb.UsbRequest;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort.ControlLine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class Ch34xSerialDriverTest {
+
+    private final UsbDevice usbDevice = mock(UsbDevice.class);
+    private final UsbInterface usbInterface = mock(UsbInterface.class);
+    private final UsbEndpoint readEndpoint = mock(UsbEndpoint.class);
+    private final UsbEndpoint writeEndpoint = mock(UsbEndpoint.class);
+    private final UsbDeviceConnection usbDeviceConnection = mock(UsbDeviceConnection.class);
+    private final List<String> controlTransfers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        when(usbDevice.getInterface(0)).thenReturn(usbInterface);
+        when(usbInterface.getEndpointCount()).thenReturn(2);
+        when(usbInterface.getEndpoint(0)).thenReturn(readEndpoint);
+        when(usbInterface.getEndpoint(1)).thenReturn(writeEndpoint);
+        when(readEndpoint.getType()).thenReturn(UsbConstants.USB_ENDPOINT_XFER_BULK);
+        when(readEndpoint.getDirection()).thenReturn(UsbConstants.USB_DIR_IN);
+        when(writeEndpoint.getType()).thenReturn(UsbConstants.USB_ENDPOINT_XFER_BULK);
+        when(writeEndpoint.getDirection()).thenReturn(UsbConstants.USB_DIR_OUT);
+        when(usbDeviceConnection.claimInterface(any(UsbInterface.class), anyBoolean())).thenReturn(true);
+        when(usbDeviceConnection.controlTransfer(anyInt(), anyInt(), anyInt(), anyInt(), any(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            int requestType = invocation.getArgument(0);
+            controlTransfers.add(String.format("%s %02x %04x %04x",
+                    (requestType & UsbConstants.USB_DIR_IN) != 0 ? "in" : "out",
+                    invocation.<Integer>getArgument(1), invocation.<Integer>getArgument(2), invocation.<Integer>getArgument(3)));
+            return (requestType & UsbConstants.USB_DIR_IN) != 0 ? invocation.<Integer>getArgument(5) : 0;
+        });
+    }
+
+    /**
+     * open() + setParameters() latency, measured in control transfers
+     */
+    @Test
+    public void fastOpen() throws Exception {
+        Ch34xSerialDriver.Ch340SerialPort port = (Ch34xSerialDriver.Ch340SerialPort) new Ch34xSerialDriver(usbDevice).getPorts().get(0);
+        port.mConnection = usbDeviceConnection;
+        port.openInt();
+        port.setParameters(115200, 8, 1, UsbSerialPort.PARITY_NONE);
+        port.closeInt();
+        int regularTransfers = controlTransfers.size();
+        List<String> regularLastTransfers = new ArrayList<>(controlTransfers.subList(regularTransfers - 3, regularTransfers));
+        assertEquals(17, regularTransfers);
+
+        controlTransfers.clear();
+        port.mConnection = null;
+        assertFalse(port.isFastOpen());
+        port.setFastOpen(115200, 8, 1, UsbSerialPort.PARITY_NONE);
+        assertTrue(port.isFastOpen());
+        port.mConnection = usbDeviceConnection;
+        port.openInt();
+        port.closeInt();
+        int fastTransfers = controlTransfers.size();
+        assertEquals(5, fastTransfers);
+        assertEquals("out a1 0000 0000", controlTransfers.get(0));
+        assertEquals(regularLastTransfers, controlTransfers.subList(1, 4)); // same baud rate and lcr values
+        assertTrue(controlTransfers.get(4).startsWith("out a4 "));
+
+        assertThrows(IllegalStateException.class, () -> port.setFastOpen(115200, 8, 1, UsbSerialPort.PARITY_NONE));
+        port.mConnection = null;
+        assertThrows(IllegalArgumentException.class, () -> port.setFastOpen(0, 8, 1, UsbSerialPort.PARITY_NONE));
+        assertThrows(IllegalArgumentException.class, () -> port.setFastOpen(115200, 9, 1, UsbSerialPort.PARITY_NONE));
+        assertThrows(UnsupportedOperationException.class, () -> port.setFastOpen(115200, 8, UsbSerialPort.STOPBITS_1_5, UsbSerialPort.PARITY_NONE));
+        port.disableFastOpen();
+        assertFalse(port.isFastOpen());
+    }
+
+    /**
+     * transmit time calculated from data length and line parameters, as device has no transmit empty status
+     */
+    @Test
+    public void fastOpenFrameTime() throws Exception {
+        Ch34xSerialDriver.Ch340SerialPort port = (Ch34xSerialDriver.Ch340SerialPort) new Ch34xSerialDriver(usbDevice).getPorts().get(0);
+        port.setFastOpen(115200, 8, 1, UsbSerialPort.PARITY_NONE);
+        port.mConnection = usbDeviceConnection;
+        assertEquals(0, port.getFrameNanos());
+        port.openInt();
+        assertEquals(86805, port.getFrameNanos()); // 10 bits with 115200 baud, used by drain(), RS-485 and data loss detection
+    }
+
+    @Test
+    public void drain() throws Exception {
+        when(writeEndpoint.getMaxPacketSize()).thenReturn(32);
+        when(usbDeviceConnection.bulkTransfer(any(UsbEndpoint.class), any(), anyInt(), anyInt())).thenAnswer(invocation -> invocation.getArgument(2));
+        Ch34xSerialDriver.Ch340SerialPort port = (Ch34xSerialDriver.Ch340SerialPort) new Ch34xSerialDriver(usbDevice).getPorts().get(0);
+        port.mConnection = usbDeviceConnection;
+        port.mWriteEndpoint = writeEndpoint;
+        port.mUsbRequest = mock(UsbRequest.class);
+        port.drain(1); // nothing written
+
+        port.setParameters(9600, 8, 1, UsbSerialPort.PARITY_NONE);
+        long startNanos = System.nanoTime();
+        port.write(new byte[100], 1000);
+        assertThrows(SerialTimeoutException.class, () -> port.drain(10));
+        port.drain(1000);
+        long elapsedMicros = (System.nanoTime() - startNanos) / 1000;
+        assertTrue("elapsed " + elapsedMicros, elapsedMicros >= 100 * 1041); // 100 characters with 9600 baud 8N1
+        assertTrue("elapsed " + elapsedMicros, elapsedMicros < 200 * 1041);
+    }
+
+    @Test
+    public void statusEndpoint() throws Exception {
+        Ch34xSerialDriver.Ch340SerialPort port = (Ch34xSerialDriver.Ch340SerialPort) new Ch34xSerialDriver(usbDevice).getPorts().get(0);
+        port.mConnection = usbDeviceConnection;
+        port.openInt();
+        controlTransfers.clear();
+        assertTrue(port.getCTS()); // no status received yet, read with control transfer returning 0 = all lines active
+        assertEquals(1, controlTransfers.size());
+
+        controlTransfers.clear();
+        port.readStatus(new byte[]{(byte) 0xe4, 0x00, (byte) 0xfe, (byte) 0xee}, 4); // CTS active, DSR, RI, CD inactive
+        port.readStatus(new byte[]{(byte) 0xe4, 0x00, 0x00}, 3); // ignored, too short
+        assertTrue(port.getCTS());
+        assertFalse(port.getDSR());
+        assertFalse(port.getRI());
+        assertFalse(port.getCD());
+        assertEquals(EnumSet.of(ControlLine.CTS), port.getControlLines());
+        assertEquals(0, controlTransfers.size());
+
+        port.closeInt();
+        assertTrue(port.getCTS());
+        assertEquals(1, controlTransfers.size());
+    }
+}
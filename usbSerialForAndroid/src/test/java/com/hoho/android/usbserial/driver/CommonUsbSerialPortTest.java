@@ -0,0 +1,82 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+public class CommonUsbSerialPortTest {
+
+    /** port with 64 byte receive FIFO */
+    private static class TestPort extends CommonUsbSerialPort {
+        TestPort() {
+            super(mock(UsbDevice.class), 0);
+        }
+
+        @Override
+        public UsbSerialDriver getDriver() { return null; }
+
+        @Override
+        protected void openInt() { }
+
+        @Override
+        protected void closeInt() { }
+
+        @Override
+        public void setParameters(int baudRate, int dataBits, int stopBits, int parity) {
+            setFrameTime(baudRate, dataBits, stopBits, parity);
+        }
+
+        @Override
+        public UsbSerialPortProfile getProfile() {
+            return super.getProfile().setFifoSizes(64, 64);
+        }
+    }
+
+    @Test
+    public void dataLoss() throws Exception {
+        TestPort port = new TestPort();
+        List<Integer> stalls = new ArrayList<>();
+        port.setDataLossListener(stalls::add);
+
+        port.checkReadStall(1000, 1000, 64, 64);
+        port.checkReadStall(1100, 1100, 64, 64); // line settings unknown
+        assertEquals(0, port.getDataLossCount());
+
+        port.setParameters(9600, 8, 1, UsbSerialPort.PARITY_NONE); // 64 byte FIFO filled in 66.7 msec
+        port.checkReadStall(1150, 1150, 64, 64);
+        port.checkReadStall(1216, 1216, 64, 64);
+        assertEquals(0, port.getDataLossCount());
+        port.checkReadStall(1284, 1284, 64, 64);
+        assertEquals(1, port.getDataLossCount());
+        assertEquals(68, (int) stalls.get(0));
+        port.checkReadStall(1400, 1400, 10, 64); // no backlog in device
+        assertEquals(1, port.getDataLossCount());
+        port.checkReadStall(1500, 1500, 64, 1024); // full FIFO with larger read buffer
+        assertEquals(2, port.getDataLossCount());
+
+        port.countLineError(UsbSerialPort.LineError.OVERRUN);
+        assertEquals(3, port.getDataLossCount());
+        assertEquals(0, (int) stalls.get(2));
+    }
+
+    @Test
+    public void dataLossReadQueue() throws Exception {
+        TestPort port = new TestPort();
+        port.setParameters(9600, 8, 1, UsbSerialPort.PARITY_NONE);
+        port.checkReadStall(1000, 1000, 64, 64);
+        port.checkReadStall(1100, 1100, 64, 64);
+        assertEquals(1, port.getDataLossCount());
+
+        port.setReadQueue(4, 64); // FIFO + 4 requests filled in 333 msec
+        port.checkReadStall(1200, 1200, 64, 64);
+        assertEquals(1, port.getDataLossCount());
+        port.checkReadStall(1600, 1600, 64, 64);
+        assertEquals(2, port.getDataLossCount());
+    }
+}
@@ -0,0 +1,124 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort.LineError;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class Cp21xxSerialDriverTest {
+
+    private final UsbDevice usbDevice = mock(UsbDevice.class);
+    private final UsbDeviceConnection usbDeviceConnection = mock(UsbDeviceConnection.class);
+    private final Queue<byte[]> commStatusResponses = new ArrayDeque<>();
+    private Cp21xxSerialDriver.Cp21xxSerialPort port;
+
+    private static byte[] commStatus(int errors, int holdReasons, int rxQueueCount, int txQueueCount) {
+        byte[] buffer = new byte[Cp21xxSerialDriver.CommStatus.LENGTH];
+        int[] values = {errors, holdReasons, rxQueueCount, txQueueCount};
+        for (int i = 0; i < values.length; i++)
+            for (int j = 0; j < 4; j++)
+                buffer[i * 4 + j] = (byte) (values[i] >> (8 * j));
+        return buffer;
+    }
+
+    @Before
+    public void setUp() {
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        when(usbDeviceConnection.controlTransfer(eq(0xc1), eq(0x10), anyInt(), anyInt(), any(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            byte[] response = commStatusResponses.size() > 1 ? commStatusResponses.remove() : commStatusResponses.peek();
+            System.arraycopy(response, 0, invocation.<byte[]>getArgument(4), 0, response.length);
+            return response.length;
+        });
+        port = (Cp21xxSerialDriver.Cp21xxSerialPort) new Cp21xxSerialDriver(usbDevice).getPorts().get(0);
+        port.mConnection = usbDeviceConnection;
+    }
+
+    @Test
+    public void commStatus() throws Exception {
+        commStatusResponses.add(commStatus(0, 0x08, 300, 0x10203));
+        Cp21xxSerialDriver.CommStatus status = port.getCommStatus();
+        assertEquals(0, status.getErrors());
+        assertEquals(Cp21xxSerialDriver.CommStatus.HOLD_XOFF_RECEIVED, status.getHoldReasons());
+        assertEquals(300, status.getRxQueueCount());
+        assertEquals(0x10203, status.getTxQueueCount());
+        assertFalse(port.getXON());
+        assertEquals(300, port.getMaxRxQueueCount());
+
+        commStatusResponses.clear();
+        commStatusResponses.add(commStatus(Cp21xxSerialDriver.CommStatus.ERROR_FRAMING | Cp21xxSerialDriver.CommStatus.ERROR_QUEUE_OVERRUN, 0, 10, 0));
+        assertTrue(port.getXON());
+        assertEquals(1, port.getLineErrorCount(LineError.FRAMING));
+        assertEquals(1, port.getLineErrorCount(LineError.OVERRUN));
+        assertEquals(0, port.getLineErrorCount(LineError.PARITY));
+        assertEquals(300, port.getMaxRxQueueCount());
+    }
+
+    @Test
+    public void drain() throws Exception {
+        port.setParameters(115200, 8, 1, UsbSerialPort.PARITY_NONE);
+        commStatusResponses.add(commStatus(0, 0, 0, 500));
+        commStatusResponses.add(commStatus(0, 0, 0, 100));
+        commStatusResponses.add(commStatus(0, 0, 0, 0));
+        port.drain(1000);
+        assertEquals(1, commStatusResponses.size());
+
+        commStatusResponses.clear();
+        commStatusResponses.add(commStatus(0, Cp21xxSerialDriver.CommStatus.HOLD_CTS, 0, 64)); // stuck by flow control
+        SerialTimeoutException e = assertThrows(SerialTimeoutException.class, () -> port.drain(100));
+        assertTrue(e.getMessage().contains("64 bytes"));
+    }
+
+    @Test
+    public void embedEvents() throws Exception {
+        port.setEmbedEvents(true);
+        assertTrue(port.getEmbedEvents());
+        byte[] data = {
+                0x31, (byte) 0xec, 0x00, 0x32,       // escaped 0xec
+                (byte) 0xec, 0x01, 0x04, 0x33,       // parity error + data
+                (byte) 0xec, 0x02, 0x12,             // break + overrun
+                (byte) 0xec, 0x03, (byte) 0x91,      // CTS + CD active, delta bit ignored
+                0x34};
+        byte[] expected = {0x31, (byte) 0xec, 0x32, 0x33, 0x34};
+        for (int chunkSize = 1; chunkSize <= data.length; chunkSize++) {
+            byte[] result = new byte[data.length];
+            int resultLength = 0;
+            for (int pos = 0; pos < data.length; pos += chunkSize) {
+                byte[] buffer = new byte[chunkSize];
+                int len = Math.min(chunkSize, data.length - pos);
+                System.arraycopy(data, pos, buffer, 0, len);
+                len = port.readFilter(buffer, len);
+                System.arraycopy(buffer, 0, result, resultLength, len);
+                resultLength += len;
+            }
+            assertEquals(expected.length, resultLength);
+            for (int i = 0; i < expected.length; i++)
+                assertEquals(expected[i], result[i]);
+        }
+        assertEquals(data.length, port.getLineErrorCount(LineError.PARITY));
+        assertEquals(data.length, port.getLineErrorCount(LineError.BREAK));
+        assertEquals(data.length, port.getLineErrorCount(LineError.OVERRUN));
+        assertEquals(0, port.getLineErrorCount(LineError.FRAMING));
+
+        // modem status from events, GET_MDMSTS control transfer not mocked and would fail
+        assertTrue(port.getCTS());
+        assertTrue(port.getCD());
+        assertFalse(port.getDSR());
+        assertFalse(port.getRI());
+    }
+}
@@ -0,0 +1,199 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+
+import com.hoho.android.usbserial.util.HexDump;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class FtdiMpsseTest {
+
+    private static final int CS = 0x08; // ADBUS3
+    private static final int SPI_DIRECTION = 0x0b; // ADBUS0 = SCK, ADBUS1 = MOSI, ADBUS3 = CS output
+    private static final int SPI_READ = 0x03;
+
+    private final UsbDevice usbDevice = mock(UsbDevice.class);
+    private MpsseEmulator emulator;
+    private FtdiMpsse mpsse;
+
+    /**
+     * Command level MPSSE emulator with SPI flash on ADBUS.
+     */
+    private class MpsseEmulator extends FtdiSerialDriver.FtdiSerialPort {
+        final byte[] flash = new byte[64 * 1024];
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int writes, reads;
+        int bitsLow, bitMode;
+        boolean loopback;
+        int flashCommandLength, flashAddress;
+
+        MpsseEmulator(FtdiSerialDriver driver) {
+            driver.super(usbDevice, 0);
+            for (int i = 0; i < flash.length; i++)
+                flash[i] = (byte) (i * 7 + (i >> 8));
+        }
+
+        @Override boolean isMpsseSupported() { return true; }
+        @Override public void setBitMode(int mask, int mode) { bitMode = mode; }
+        @Override public void purgeHwBuffers(boolean purgeWriteBuffers, boolean purgeReadBuffers) { response.reset(); }
+
+        @Override
+        public int read(byte[] dest, int timeout) {
+            byte[] data = response.toByteArray();
+            int len = Math.min(data.length, dest.length);
+            System.arraycopy(data, 0, dest, 0, len);
+            response.reset();
+            response.write(data, len, data.length - len);
+            reads++;
+            return len;
+        }
+
+        @Override
+        public void write(byte[] src, int length, int timeout) throws IOException {
+            writes++;
+            int i = 0;
+            while (i < length) {
+                int command = src[i++] & 0xff;
+                switch (command) {
+                    case FtdiMpsse.SET_BITS_LOW:
+                        int value = src[i] & 0xff;
+                        if ((bitsLow & CS) == 0 && (value & CS) != 0)
+                            flashCommandLength = 0;
+                        bitsLow = value;
+                        i += 2;
+                        break;
+                    case FtdiMpsse.GET_BITS_LOW:
+                        response.write(bitsLow);
+                        break;
+                    case FtdiMpsse.SET_BITS_HIGH:
+                    case FtdiMpsse.SET_CLOCK_DIVISOR:
+                        i += 2;
+                        break;
+                    case FtdiMpsse.LOOPBACK_ON:
+                    case FtdiMpsse.LOOPBACK_OFF:
+                        loopback = command == FtdiMpsse.LOOPBACK_ON;
+                        break;
+                    case FtdiMpsse.SEND_IMMEDIATE:
+                    case FtdiMpsse.DISABLE_CLOCK_DIVIDE_BY_5:
+                    case FtdiMpsse.DISABLE_3_PHASE_CLOCK:
+                    case FtdiMpsse.DISABLE_ADAPTIVE_CLOCK:
+                        break;
+                    case FtdiMpsse.CLOCK_BYTES_OUT:
+                    case FtdiMpsse.CLOCK_BYTES_IN:
+                    case FtdiMpsse.CLOCK_BYTES_IN_OUT:
+                        int len = (src[i] & 0xff) + ((src[i + 1] & 0xff) << 8) + 1;
+                        i += 2;
+                        for (int j = 0; j < len; j++) {
+                            int out = command == FtdiMpsse.CLOCK_BYTES_IN ? 0 : src[i++] & 0xff;
+                            int in = spi(out);
+                            if (command != FtdiMpsse.CLOCK_BYTES_OUT)
+                                response.write(loopback ? out : in);
+                        }
+                        break;
+                    default:
+                        response.write(FtdiMpsse.BAD_COMMAND);
+                        response.write(command);
+                }
+            }
+        }
+
+        private int spi(int out) {
+            if ((bitsLow & CS) != 0)
+                return 0xff;
+            if (flashCommandLength < 4) {
+                if (flashCommandLength == 0 && out != SPI_READ)
+                    flashCommandLength = -1;
+                else if (flashCommandLength > 0)
+                    flashAddress = (flashAddress << 8 | out) & 0xffffff;
+                if (flashCommandLength >= 0)
+                    flashCommandLength++;
+                return 0xff;
+            }
+            return flash[flashAddress++ % flash.length] & 0xff;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        emulator = new MpsseEmulator(new FtdiSerialDriver(usbDevice));
+        mpsse = new FtdiMpsse(emulator);
+        assertEquals(30000000, mpsse.open(30000000));
+        assertEquals(FtdiMpsse.BITMODE_MPSSE, emulator.bitMode);
+    }
+
+    @Test
+    public void batch() throws Exception {
+        FtdiMpsse.Batch batch = new FtdiMpsse.Batch()
+                .setBitsLow(CS, SPI_DIRECTION)
+                .write(new byte[]{1, 2})
+                .read(3)
+                .transfer(new byte[]{4})
+                .writeBits(0x5, 3)
+                .readBits(4)
+                .getBitsLow();
+        assertEquals("80 08 0B 11 01 00 01 02 20 02 00 31 00 00 04 13 02 05 22 03 81",
+                HexDump.toHexString(batch.toByteArray()));
+        assertEquals(3 + 1 + 1 + 1, batch.getResponseLength());
+
+        batch.clear().read(FtdiMpsse.MAX_CLOCK_LENGTH + 1);
+        assertEquals("20 FF FF 20 00 00", HexDump.toHexString(batch.toByteArray()));
+
+        assertEquals(0, FtdiMpsse.getClockDivisor(30000000));
+        assertEquals(29, FtdiMpsse.getClockDivisor(1000000));
+        assertEquals(4, FtdiMpsse.getClockDivisor(7000000)); // 6 MHz, not above requested clock
+        assertEquals(0xffff, FtdiMpsse.getClockDivisor(100));
+        assertThrows(IllegalArgumentException.class, () -> new FtdiMpsse.Batch().read(0));
+        assertThrows(IllegalArgumentException.class, () -> new FtdiMpsse.Batch().writeBits(0, 9));
+    }
+
+    @Test
+    public void execute() throws Exception {
+        FtdiMpsse.Batch batch = new FtdiMpsse.Batch()
+                .setLoopback(true)
+                .setBitsLow(0, SPI_DIRECTION)
+                .transfer(new byte[]{0x12, 0x34})
+                .getBitsLow()
+                .setLoopback(false);
+        List<byte[]> responses = mpsse.execute(batch);
+        assertEquals(1, emulator.writes - 2); // + sync + open
+        assertEquals(2, responses.size());
+        assertArrayEquals(new byte[]{0x12, 0x34}, responses.get(0));
+        assertArrayEquals(new byte[]{0}, responses.get(1));
+
+        emulator.write(new byte[]{(byte) 0xaa}, 0); // unexpected response
+        assertThrows(IOException.class, () -> mpsse.execute(new FtdiMpsse.Batch().getBitsLow()));
+    }
+
+    /**
+     * SPI flash read with one round trip per page
+     */
+    @Test
+    public void spiReadBatched() throws Exception {
+        final int pageSize = 4096;
+        byte[] data = new byte[emulator.flash.length];
+        FtdiMpsse.Batch batch = new FtdiMpsse.Batch();
+        emulator.writes = 0;
+        for (int address = 0; address < data.length; address += pageSize) {
+            batch.clear()
+                    .setBitsLow(0, SPI_DIRECTION)
+                    .write(new byte[]{SPI_READ, (byte) (address >> 16), (byte) (address >> 8), (byte) address})
+                    .read(pageSize)
+                    .setBitsLow(CS, SPI_DIRECTION);
+            System.arraycopy(mpsse.execute(batch).get(0), 0, data, address, pageSize);
+        }
+        assertArrayEquals(emulator.flash, data);
+        assertEquals(data.length / pageSize, emulator.writes);
+    }
+}
@@ -1,22 +1,40 @@
 package com.hoho.android.usbserial.driver;
 
 import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort.ControlLine;
+import com.hoho.android.usbserial.driver.UsbSerialPort.LineError;
+import com.hoho.android.usbserial.util.HexDump;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.EnumSet;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 public class FtdiSerialDriverTest {
 
     private final UsbDevice usbDevice = mock(UsbDevice.class);
     private final UsbEndpoint readEndpoint = mock(UsbEndpoint.class);
+    private final UsbDeviceConnection usbDeviceConnection = mock(UsbDeviceConnection.class);
 
     private void initBuf(byte[] buf) {
         for(int i=0; i<buf.length; i++)
@@ -86,4 +104,410 @@ public class FtdiSerialDriverTest {
         assertEquals(len, 16*62+9);
         assertTrue(testBuf(buf, len));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void readFilterStatus() throws Exception {
+        byte[] buf;
+        int len;
+
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        when(readEndpoint.getMaxPacketSize()).thenReturn(64);
+        FtdiSerialDriver driver = new FtdiSerialDriver(usbDevice);
+        FtdiSerialDriver.FtdiSerialPort port = (FtdiSerialDriver.FtdiSerialPort) driver.getPorts().get(0);
+        port.mReadEndpoint = readEndpoint;
+        port.mConnection = usbDeviceConnection; // controlTransfer returns 0 -> GET_MODEM_STATUS fails
+        assertThrows(IOException.class, port::getCTS);
+
+        // status only packet
+        buf = HexDump.hexStringToByteArray("11 60");
+        len = port.readFilter(buf, buf.length);
+        assertEquals(0, len);
+        assertEquals(EnumSet.of(ControlLine.CTS), port.getControlLines());
+        assertTrue(port.getCTS());
+        assertEquals(0, port.getLineErrorCount(LineError.OVERRUN));
+
+        // last packet wins for status, errors counted for packets with data only
+        buf = new byte[64+3];
+        buf[0] = (byte)0x31; buf[1] = (byte)0x6e; // OE+PE+FE
+        buf[64] = (byte)0xe1; buf[65] = (byte)0x70; // BI
+        len = port.readFilter(buf, buf.length);
+        assertEquals(62+1, len);
+        assertEquals(EnumSet.of(ControlLine.DSR, ControlLine.RI, ControlLine.CD), port.getControlLines());
+        assertEquals(1, port.getLineErrorCount(LineError.OVERRUN));
+        assertEquals(1, port.getLineErrorCount(LineError.PARITY));
+        assertEquals(0, port.getLineErrorCount(LineError.FRAMING));
+        assertEquals(1, port.getLineErrorCount(LineError.BREAK));
+
+        buf = HexDump.hexStringToByteArray("01 6e");
+        port.readFilter(buf, buf.length);
+        assertEquals(EnumSet.noneOf(ControlLine.class), port.getControlLines());
+        assertEquals(1, port.getLineErrorCount(LineError.OVERRUN));
+        buf = HexDump.hexStringToByteArray("01 68 00");
+        port.readFilter(buf, buf.length);
+        assertEquals(1, port.getLineErrorCount(LineError.FRAMING));
+
+        // status expires when not reading any more
+        Thread.sleep(100);
+        assertThrows(IOException.class, port::getControlLines);
+    }
+
+    @Test
+    public void baudRateDivisor() {
+        // {baud rate, value, index, effective baud rate}
+        int[][] normalClock = {
+                {184,     0x3fb0, 1, 184},
+                {300,     0x2710, 0, 300},
+                {9600,    0x4138, 0, 9600},
+                {115200,  0x001a, 0, 115385},
+                {230400,  0x000d, 0, 230769},
+                {921600,  0x8003, 0, 923077},
+                {1000000, 0x0003, 0, 1000000},
+                {1500000, 0x0002, 0, 1500000},
+                {2000000, 0x0001, 0, 2000000},
+                {3000000, 0x0000, 0, 3000000},
+        };
+        for (int[] row : normalClock) {
+            assertArrayEquals("baud rate " + row[0], new int[]{row[1], row[2], row[3]},
+                    FtdiSerialDriver.getBaudRateDivisor(row[0], false));
+        }
+        int[][] highSpeedClock = {
+                {1200,     0x2710, 2, 1200},
+                {9600,     0x04e2, 2, 9600},
+                {115200,   0xc068, 2, 115246},
+                {921600,   0x000d, 2, 923077},
+                {3000000,  0x0004, 2, 3000000},
+                {4000000,  0x0003, 2, 4000000},
+                {6000000,  0x0002, 2, 6000000},
+                {8000000,  0x0001, 2, 8000000},
+                {12000000, 0x0000, 2, 12000000},
+        };
+        for (int[] row : highSpeedClock) {
+            assertArrayEquals("baud rate " + row[0], new int[]{row[1], row[2], row[3]},
+                    FtdiSerialDriver.getBaudRateDivisor(row[0], true));
+        }
+        assertThrows(UnsupportedOperationException.class, () -> FtdiSerialDriver.getBaudRateDivisor(183, false));
+        assertThrows(UnsupportedOperationException.class, () -> FtdiSerialDriver.getBaudRateDivisor(3600000, false));
+        assertThrows(UnsupportedOperationException.class, () -> FtdiSerialDriver.getBaudRateDivisor(4000000, false));
+        assertThrows(UnsupportedOperationException.class, () -> FtdiSerialDriver.getBaudRateDivisor((int)(2000000*1.04), false));
+        FtdiSerialDriver.getBaudRateDivisor((int)(2000000*1.04), true);
+        assertThrows(UnsupportedOperationException.class, () -> FtdiSerialDriver.getBaudRateDivisor((int)(8000000*1.04), true));
+        assertThrows(UnsupportedOperationException.class, () -> FtdiSerialDriver.getBaudRateDivisor(12500000, true));
+        assertThrows(UnsupportedOperationException.class, () -> FtdiSerialDriver.getBaudRateDivisor(15000000, true));
+    }
+
+    @Test
+    public void profile() {
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        when(usbDevice.getProductId()).thenReturn(UsbId.FTDI_FT232R);
+        FtdiSerialDriver.FtdiSerialPort port = (FtdiSerialDriver.FtdiSerialPort) new FtdiSerialDriver(usbDevice).getPorts().get(0);
+        UsbSerialPortProfile profile = port.getProfile();
+        assertEquals(64, profile.getMaxPacketSize());
+        assertEquals(256, profile.getReadFifoSize());
+        assertEquals(128, profile.getWriteFifoSize());
+        assertEquals(3000000, profile.getMaxBaudRate());
+        assertEquals(2, profile.getReadHeaderSize());
+        assertTrue(profile.hasInterruptStatus());
+        assertEquals(256, profile.getIdealReadBufferSize(0));
+        assertEquals(128, profile.getIdealWriteBufferSize(0));
+        assertEquals(256, profile.getIdealReadBufferSize(115200));
+        assertEquals(256, profile.getIdealWriteBufferSize(115200));
+        assertEquals(6016, profile.getIdealReadBufferSize(3000000));
+
+        when(usbDevice.getInterfaceCount()).thenReturn(2);
+        when(usbDevice.getProductId()).thenReturn(UsbId.FTDI_FT2232H);
+        when(readEndpoint.getMaxPacketSize()).thenReturn(512);
+        port = (FtdiSerialDriver.FtdiSerialPort) new FtdiSerialDriver(usbDevice).getPorts().get(1);
+        port.mReadEndpoint = readEndpoint;
+        profile = port.getProfile();
+        assertEquals(512, profile.getMaxPacketSize());
+        assertEquals(12000000, profile.getMaxBaudRate());
+        assertEquals(4096, profile.getIdealReadBufferSize(115200));
+        assertEquals(UsbSerialPortProfile.MAX_BUFFER_SIZE, profile.getIdealReadBufferSize(12000000));
+    }
+
+    @Test
+    public void rs485() throws Exception {
+        UsbEndpoint writeEndpoint = mock(UsbEndpoint.class);
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        when(writeEndpoint.getMaxPacketSize()).thenReturn(64);
+        FtdiSerialDriver.FtdiSerialPort port = (FtdiSerialDriver.FtdiSerialPort) new FtdiSerialDriver(usbDevice).getPorts().get(0);
+        port.mConnection = usbDeviceConnection;
+        port.mWriteEndpoint = writeEndpoint;
+        port.mUsbRequest = mock(UsbRequest.class);
+        assertThrows(IllegalStateException.class, () -> port.setRs485(true)); // line parameters not set
+
+        port.setParameters(9600, 8, 1, UsbSerialPort.PARITY_NONE);
+        port.setRs485(true);
+        assertTrue(port.getRs485());
+        assertEquals(-1, port.getRs485TurnaroundMicros());
+        StringBuilder events = new StringBuilder();
+        when(usbDeviceConnection.controlTransfer(anyInt(), eq(1), anyInt(), anyInt(), any(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            events.append((invocation.<Integer>getArgument(2) & 2) != 0 ? "R" : "r");
+            return 0;
+        });
+        when(usbDeviceConnection.bulkTransfer(eq(writeEndpoint), any(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            events.append("w");
+            return invocation.<Integer>getArgument(2);
+        });
+        when(usbDeviceConnection.controlTransfer(anyInt(), eq(5), anyInt(), anyInt(), any(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            events.append("s");
+            invocation.<byte[]>getArgument(4)[1] = (byte) (events.length() < 5 ? 0x00 : 0x60); // TEMT at 3rd poll
+            return 2;
+        });
+        port.write(new byte[20], 1000);
+        assertEquals("Rwsssr", events.toString()); // RTS set, write, poll transmitter empty, RTS reset
+        assertTrue(port.getRs485TurnaroundMicros() >= 0);
+
+        port.setRs485(false);
+        events.setLength(0);
+        port.write(new byte[20], 1000);
+        assertEquals("w", events.toString());
+
+        events.setLength(0);
+        when(usbDeviceConnection.controlTransfer(anyInt(), eq(5), anyInt(), anyInt(), any(), anyInt(), anyInt())).thenReturn(2); // never empty
+        assertThrows(SerialTimeoutException.class, () -> port.drain(20));
+    }
+
+    @Test
+    public void eventChar() throws Exception {
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        FtdiSerialDriver.FtdiSerialPort port = (FtdiSerialDriver.FtdiSerialPort) new FtdiSerialDriver(usbDevice).getPorts().get(0);
+        port.mConnection = usbDeviceConnection;
+        assertEquals(-1, port.getEventChar());
+        assertThrows(IllegalArgumentException.class, () -> port.setEventChar(256));
+        assertThrows(IllegalArgumentException.class, () -> port.setEventChar(-2));
+
+        port.setEventChar('\r'); // enable bit | char
+        verify(usbDeviceConnection).controlTransfer(anyInt(), eq(6), eq(0x10d), eq(1), any(), eq(0), anyInt());
+        assertEquals('\r', port.getEventChar());
+        port.setEventChar(0xff);
+        verify(usbDeviceConnection).controlTransfer(anyInt(), eq(6), eq(0x1ff), eq(1), any(), eq(0), anyInt());
+        port.setEventChar(-1); // disabled
+        verify(usbDeviceConnection).controlTransfer(anyInt(), eq(6), eq(0), eq(1), any(), eq(0), anyInt());
+        assertEquals(-1, port.getEventChar());
+
+        when(usbDeviceConnection.controlTransfer(anyInt(), eq(6), anyInt(), anyInt(), any(), anyInt(), anyInt())).thenReturn(-1);
+        assertThrows(IOException.class, () -> port.setEventChar('\n'));
+        assertEquals(-1, port.getEventChar());
+    }
+
+    @Test
+    public void latencyTimerTuner() {
+        FtdiLatencyTimerTuner tuner = new FtdiLatencyTimerTuner(2, 16);
+        int lt = 16;
+        long t = 1000;
+
+        // sparse traffic -> lower, at most once per interval
+        for(int i = 0; i <= 10; i++) {
+            lt = tuner.onRead(5, lt, t);
+            t += 100;
+        }
+        assertEquals(8, lt);
+        assertEquals(0, tuner.getStreamPercent());
+        for(int i = 0; i < 49; i++) {
+            lt = tuner.onRead(5, lt, t);
+            t += 100;
+        }
+        assertEquals(2, lt); // limited
+        assertEquals(3, tuner.getAdjustCount());
+
+        // stream -> raise
+        for(int i = 0; i < 2000; i++) {
+            lt = tuner.onRead(62, lt, t);
+            t += lt;
+        }
+        assertEquals(16, lt);
+        assertEquals(100, tuner.getStreamPercent());
+        assertEquals(6, tuner.getAdjustCount());
+        assertEquals(2060, tuner.getReadCount());
+        assertEquals(60*5 + 2000*62, tuner.getByteCount());
+
+        // mixed -> unchanged
+        for(int i = 0; i < 200; i++) {
+            lt = tuner.onRead(10, lt, t);
+            t += (i % 2 == 0) ? 10 : 100;
+        }
+        assertEquals(16, lt);
+        assertTrue(tuner.getStreamPercent() > FtdiLatencyTimerTuner.STREAM_PERCENT_LOWER);
+        assertTrue(tuner.getStreamPercent() < FtdiLatencyTimerTuner.STREAM_PERCENT_RAISE);
+
+        // not enough reads -> unchanged
+        lt = tuner.onRead(1, lt, t += 5000);
+        lt = tuner.onRead(1, lt, t += 5000);
+        assertEquals(16, lt);
+
+        assertThrows(IllegalArgumentException.class, () -> new FtdiLatencyTimerTuner(0, 16));
+        assertThrows(IllegalArgumentException.class, () -> new FtdiLatencyTimerTuner(16, 2));
+    }
+
+    /**
+     * Synchronous bitbang device, with lower 4 pins as output and upper 4 pins as input counting samples.
+     */
+    private class SyncBitBangEmulator extends FtdiSerialDriver.FtdiSerialPort {
+        final ByteArrayOutputStream receiveBuffer = new ByteArrayOutputStream();
+        int pins, sampleCount, writes, overflows;
+
+        SyncBitBangEmulator(FtdiSerialDriver driver) {
+            driver.super(usbDevice, 0);
+        }
+
+        @Override
+        public void write(byte[] src, int length, int timeout) {
+            writes++;
+            for (int i = 0; i < length; i++) {
+                if (receiveBuffer.size() < 256)
+                    receiveBuffer.write((pins & 0x0f) | ((sampleCount & 0x0f) << 4));
+                else
+                    overflows++;
+                sampleCount++;
+                pins = src[i];
+            }
+        }
+
+        @Override
+        public int read(byte[] dest, int length, int timeout) {
+            byte[] data = receiveBuffer.toByteArray();
+            int len = Math.min(data.length, Math.min(length, 62)); // one packet
+            System.arraycopy(data, 0, dest, 0, len);
+            receiveBuffer.reset();
+            receiveBuffer.write(data, len, data.length - len);
+            return len;
+        }
+    }
+
+    @Test
+    public void syncBitBang() throws Exception {
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        when(readEndpoint.getMaxPacketSize()).thenReturn(64);
+        SyncBitBangEmulator port = new SyncBitBangEmulator(new FtdiSerialDriver(usbDevice));
+        port.mReadEndpoint = readEndpoint;
+        port.mConnection = usbDeviceConnection;
+
+        byte[] pattern = new byte[10000];
+        byte[] samples = new byte[pattern.length];
+        for (int i = 0; i < pattern.length; i++)
+            pattern[i] = (byte) (i * 5);
+        assertThrows(IOException.class, () -> port.transferPins(pattern, samples, 1000));
+        assertThrows(IllegalArgumentException.class, () -> port.setBitMode(0x100, FtdiSerialDriver.FtdiSerialPort.BITMODE_SYNC_BITBANG));
+
+        port.setBitMode(0x0f, FtdiSerialDriver.FtdiSerialPort.BITMODE_SYNC_BITBANG);
+        assertEquals(FtdiSerialDriver.FtdiSerialPort.BITMODE_SYNC_BITBANG, port.getBitMode());
+        port.transferPins(pattern, samples, 1000);
+        for (int i = 0; i < pattern.length; i++) {
+            int expected = (i == 0 ? 0 : pattern[i - 1] & 0x0f) | ((i & 0x0f) << 4); // sampled before output
+            assertEquals("sample " + i, expected, samples[i] & 0xff);
+        }
+        assertEquals(0, port.overflows);
+        assertEquals((pattern.length + 127) / 128, port.writes); // half of 256 byte receive buffer per write
+        assertThrows(IllegalArgumentException.class, () -> port.transferPins(pattern, new byte[1], 1000));
+    }
+
+    @Test
+    public void syncFifoReadQueue() throws Exception {
+        final int packetSize = 512;
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        when(readEndpoint.getMaxPacketSize()).thenReturn(packetSize);
+        FtdiSerialDriver driver = new FtdiSerialDriver(usbDevice);
+        FtdiSerialDriver.FtdiSerialPort port = (FtdiSerialDriver.FtdiSerialPort) driver.getPorts().get(0);
+        port.mReadEndpoint = readEndpoint;
+
+        assertEquals(8, simulateSyncFifo(port, 1, packetSize)); // 2 of 3 requests lost in each of 4 stalls
+        assertEquals(0, simulateSyncFifo(port, 4, packetSize));
+    }
+
+    @Test
+    public void readQueueSmallBuffer() throws Exception {
+        final int packetSize = 64;
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        when(readEndpoint.getMaxPacketSize()).thenReturn(packetSize);
+        FtdiSerialDriver driver = new FtdiSerialDriver(usbDevice);
+        FtdiSerialDriver.FtdiSerialPort port = (FtdiSerialDriver.FtdiSerialPort) driver.getPorts().get(0);
+        port.mReadEndpoint = readEndpoint;
+        UsbRequest request = mock(UsbRequest.class);
+        ByteBuffer[] queued = new ByteBuffer[1];
+        when(request.queue(any(ByteBuffer.class), anyInt())).thenAnswer(invocation -> {
+            queued[0] = invocation.getArgument(0);
+            return true;
+        });
+        UsbDeviceConnection connection = mock(UsbDeviceConnection.class);
+        when(connection.requestWait()).thenAnswer(invocation -> {
+            queued[0].put((byte) 0x01).put((byte) 0x60);
+            for (int i = 2; i < packetSize; i++)
+                queued[0].put((byte) i);
+            return request;
+        });
+        ReadQueue readQueue = new ReadQueue(connection, new UsbRequest[]{request}, packetSize, packetSize);
+
+        byte[] dest = new byte[packetSize];
+        assertThrows(IllegalArgumentException.class, () -> readQueue.read(dest, 10)); // would split packet header from data
+        int len = port.readFilter(dest, readQueue.read(dest, dest.length));
+        assertEquals(packetSize - 2, len);
+        for (int i = 0; i < len; i++)
+            assertEquals(i + 2, dest[i]);
+
+        readQueue.close();
+        verify(request).cancel();
+        verify(request).close(); // native resources released
+    }
+
+    /**
+     * Simulated data acquisition device fills one request per tick, and drops data if no request is queued.
+     * The device ticks while the host waits for a request, and 3 times while the host stalls every 8 reads,
+     * e.g. by garbage collection.
+     * @return number of lost requests, detected by gaps in request sequence numbers
+     */
+    private int simulateSyncFifo(FtdiSerialDriver.FtdiSerialPort port, int queueCount, int packetSize) throws Exception {
+        final int bufferSize = 16 * packetSize;
+        Deque<Object[]> queued = new ArrayDeque<>();
+        Deque<UsbRequest> completed = new ArrayDeque<>();
+        byte[] deviceSequence = {0};
+        Runnable tick = () -> {
+            Object[] item = queued.poll();
+            if (item != null) {
+                ByteBuffer buffer = (ByteBuffer) item[1];
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0x01);
+                    buffer.put((byte) 0x60);
+                    for (int j = 2; j < packetSize; j++)
+                        buffer.put(deviceSequence[0]);
+                }
+                completed.add((UsbRequest) item[0]);
+            }
+            deviceSequence[0]++;
+        };
+        UsbDeviceConnection connection = mock(UsbDeviceConnection.class);
+        when(connection.requestWait()).thenAnswer(invocation -> {
+            while (completed.isEmpty())
+                tick.run();
+            return completed.poll();
+        });
+        UsbRequest[] requests = new UsbRequest[queueCount];
+        for (int i = 0; i < queueCount; i++) {
+            UsbRequest request = mock(UsbRequest.class);
+            when(request.queue(any(ByteBuffer.class), anyInt())).thenAnswer(invocation ->
+                    queued.add(new Object[]{request, invocation.getArgument(0)}));
+            requests[i] = request;
+        }
+
+        ReadQueue readQueue = new ReadQueue(connection, requests, bufferSize, packetSize);
+        byte[] dest = new byte[bufferSize];
+        int lost = 0;
+        byte sequence = -1;
+        for (int i = 0; i < 40; i++) {
+            int len = port.readFilter(dest, readQueue.read(dest, dest.length));
+            assertEquals(bufferSize / packetSize * (packetSize - 2), len);
+            for (int j = 0; j < len; j++) {
+                if (dest[j] != dest[0])
+                    fail("unexpected data at request " + i + " offset " + j);
+            }
+            if (i > 0)
+                lost += (dest[0] - sequence - 1) & 0xff;
+            sequence = dest[0];
+            if (i % 8 == 7) {
+                for (int j = 0; j < 3; j++)
+                    tick.run();
+            }
+        }
+        return lost;
+    }
+}
@@ -0,0 +1,142 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class InterruptEndpointPollerTest {
+
+    private static final int PORTS = 8;
+
+    private final InterruptEndpointPoller poller = InterruptEndpointPoller.getInstance();
+    private final List<CommonUsbSerialPort> ports = new ArrayList<>();
+
+    private CommonUsbSerialPort createPort(UsbDeviceConnection connection) {
+        UsbDevice usbDevice = mock(UsbDevice.class);
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        CommonUsbSerialPort port = (CommonUsbSerialPort) new Cp21xxSerialDriver(usbDevice).getPorts().get(0);
+        port.mConnection = connection;
+        port.mUsbRequest = mock(UsbRequest.class);
+        ports.add(port);
+        return port;
+    }
+
+    /** connection returning one notification, then timeouts */
+    private static UsbDeviceConnection createConnection(byte value) {
+        UsbDeviceConnection connection = mock(UsbDeviceConnection.class);
+        AtomicInteger transfers = new AtomicInteger();
+        when(connection.bulkTransfer(any(UsbEndpoint.class), any(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            if (transfers.getAndIncrement() == 0) {
+                invocation.<byte[]>getArgument(1)[0] = value;
+                return 1;
+            }
+            Thread.sleep(invocation.<Integer>getArgument(3));
+            return -1;
+        });
+        return connection;
+    }
+
+    private static int pollerThreadCount() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+            if (thread.getName().equals(InterruptEndpointPoller.class.getSimpleName()) && thread.isAlive())
+                count++;
+        return count;
+    }
+
+    @After
+    public void tearDown() {
+        for (CommonUsbSerialPort port : ports)
+            poller.remove(port);
+    }
+
+    @Test
+    public void sharedThread() throws Exception {
+        CountDownLatch received = new CountDownLatch(PORTS);
+        byte[] values = new byte[PORTS];
+        for (int i = 0; i < PORTS; i++) {
+            final int index = i;
+            CommonUsbSerialPort port = createPort(createConnection((byte) (i + 1)));
+            poller.add(port, port.mConnection, mock(UsbEndpoint.class), 8,
+                    (buffer, length) -> { values[index] = buffer[0]; received.countDown(); },
+                    e -> { throw new AssertionError(e); });
+        }
+        assertTrue(received.await(2 * InterruptEndpointPoller.CYCLE_MILLIS, TimeUnit.MILLISECONDS));
+        for (int i = 0; i < PORTS; i++)
+            assertEquals(i + 1, values[i]);
+        assertEquals(PORTS, poller.size());
+        assertEquals(1, pollerThreadCount());
+
+        for (CommonUsbSerialPort port : ports)
+            poller.remove(port);
+        assertEquals(0, poller.size());
+        Thread.sleep(InterruptEndpointPoller.CYCLE_MILLIS + 100);
+        assertEquals(0, pollerThreadCount());
+    }
+
+    @Test
+    public void error() throws Exception {
+        UsbDeviceConnection connection = createConnection((byte) 0);
+        CommonUsbSerialPort port = createPort(connection);
+        CountDownLatch failed = new CountDownLatch(1);
+        poller.add(port, connection, mock(UsbEndpoint.class), 8,
+                (buffer, length) -> { throw new IOException("invalid notification"); },
+                e -> failed.countDown());
+        assertTrue(failed.await(InterruptEndpointPoller.CYCLE_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(poller.contains(port));
+
+        // failing connection test
+        connection = mock(UsbDeviceConnection.class);
+        when(connection.bulkTransfer(any(UsbEndpoint.class), any(), anyInt(), anyInt())).thenReturn(-1);
+        when(connection.controlTransfer(eq(0x80), eq(0), anyInt(), anyInt(), any(), anyInt(), anyInt())).thenReturn(-1);
+        port = createPort(connection);
+        CountDownLatch disconnected = new CountDownLatch(1);
+        poller.add(port, connection, mock(UsbEndpoint.class), 8,
+                (buffer, length) -> { },
+                e -> disconnected.countDown());
+        assertTrue(disconnected.await(InterruptEndpointPoller.CYCLE_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(poller.contains(port));
+    }
+
+    @Test
+    public void removeWaitsForTransfer() throws Exception {
+        UsbDeviceConnection connection = mock(UsbDeviceConnection.class);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean transferring = new AtomicBoolean();
+        when(connection.bulkTransfer(any(UsbEndpoint.class), any(), anyInt(), anyInt())).thenAnswer(invocation -> {
+            transferring.set(true);
+            started.countDown();
+            Thread.sleep(invocation.<Integer>getArgument(3));
+            transferring.set(false);
+            return -1;
+        });
+        CommonUsbSerialPort port = createPort(connection);
+        poller.add(port, connection, mock(UsbEndpoint.class), 8,
+                (buffer, length) -> { },
+                e -> { throw new AssertionError(e); });
+        assertTrue(started.await(InterruptEndpointPoller.CYCLE_MILLIS, TimeUnit.MILLISECONDS));
+        poller.remove(port);
+        assertFalse(transferring.get()); // connection can be closed
+    }
+}
@@ -0,0 +1,68 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UsbSerialProberTest {
+
+    private static UsbDevice device(int vendorId, int productId) {
+        UsbDevice usbDevice = mock(UsbDevice.class);
+        when(usbDevice.getVendorId()).thenReturn(vendorId);
+        when(usbDevice.getProductId()).thenReturn(productId);
+        when(usbDevice.getInterfaceCount()).thenReturn(0); // no CDC interfaces
+        return usbDevice;
+    }
+
+    @Test
+    public void defaultProber() throws Exception {
+        UsbSerialProber prober = UsbSerialProber.getDefaultProber();
+        assertSame(prober, UsbSerialProber.getDefaultProber());
+
+        UsbSerialDriver driver = prober.probeDevice(device(UsbId.VENDOR_FTDI, UsbId.FTDI_FT232R));
+        assertTrue(driver instanceof FtdiSerialDriver);
+        driver = prober.probeDevice(device(UsbId.VENDOR_QINHENG, UsbId.QINHENG_CH340));
+        assertTrue(driver instanceof Ch34xSerialDriver);
+        assertNull(prober.probeDevice(device(0xffff, 0xffff)));
+    }
+
+    @Test
+    public void probeTable() throws Exception {
+        ProbeTable probeTable = UsbSerialProber.getDefaultProbeTable();
+        assertNotSame(probeTable, UsbSerialProber.getDefaultProbeTable());
+        UsbDevice customDevice = device(0xffff, 0x8001); // negative key
+        assertNull(probeTable.findDriver(customDevice));
+
+        probeTable.addProduct(0xffff, 0x8001, CdcAcmSerialDriver.class);
+        assertEquals(CdcAcmSerialDriver.class, probeTable.findDriver(customDevice));
+        probeTable.addProduct(0xffff, 0x8001, FtdiSerialDriver.class); // update
+        assertEquals(FtdiSerialDriver.class, probeTable.findDriver(customDevice));
+        assertTrue(new UsbSerialProber(probeTable).probeDevice(customDevice) instanceof FtdiSerialDriver);
+        assertNull(UsbSerialProber.getDefaultProbeTable().findDriver(customDevice)); // copy not modified
+
+        for (int productId = 0; productId < 200; productId++) // grow table
+            probeTable.addProduct(0x1234, productId, Cp21xxSerialDriver.class);
+        for (int productId = 0; productId < 200; productId++)
+            assertEquals(Cp21xxSerialDriver.class, probeTable.findDriver(device(0x1234, productId)));
+        assertEquals(FtdiSerialDriver.class, probeTable.findDriver(customDevice));
+        assertEquals(FtdiSerialDriver.class, probeTable.findDriver(device(UsbId.VENDOR_FTDI, UsbId.FTDI_FT232R)));
+
+        UsbDevice probedDevice = device(0xfffe, 0);
+        probeTable.addProbe(device -> device.getVendorId() == 0xfffe, ProlificSerialDriver.class);
+        assertEquals(ProlificSerialDriver.class, probeTable.findDriver(probedDevice));
+
+        ProbeTable defaultProbeTable = new ProbeTable(probeTable);
+        defaultProbeTable.setReadOnly();
+        assertThrows(UnsupportedOperationException.class, () -> defaultProbeTable.addProduct(1, 1, FtdiSerialDriver.class));
+        assertEquals(ProlificSerialDriver.class, defaultProbeTable.findDriver(probedDevice));
+    }
+}
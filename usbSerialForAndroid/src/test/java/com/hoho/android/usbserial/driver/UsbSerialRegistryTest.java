@@ -0,0 +1,110 @@
+package com.hoho.android.usbserial.driver;
+
+import android.hardware.usb.UsbDevice;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class UsbSerialRegistryTest {
+
+    private final List<UsbDevice> devices = new ArrayList<>();
+    private final List<String> events = new ArrayList<>();
+    private int probeCount = 0;
+    private UsbSerialRegistry registry;
+
+    private static UsbDevice device(String name, int vendorId, int productId) {
+        UsbDevice usbDevice = mock(UsbDevice.class);
+        when(usbDevice.getDeviceName()).thenReturn(name);
+        when(usbDevice.getVendorId()).thenReturn(vendorId);
+        when(usbDevice.getProductId()).thenReturn(productId);
+        when(usbDevice.getInterfaceCount()).thenReturn(1);
+        return usbDevice;
+    }
+
+    @Before
+    public void setUp() {
+        ProbeTable probeTable = new ProbeTable();
+        probeTable.addProbe(device -> { probeCount++; return device.getVendorId() == 0x1234; }, FtdiSerialDriver.class);
+        registry = new UsbSerialRegistry(new UsbSerialProber(probeTable), () -> devices);
+        registry.setListener(new UsbSerialRegistry.Listener() {
+            @Override
+            public void onDriverAttached(UsbSerialDriver driver) {
+                events.add("+" + driver.getDevice().getDeviceName());
+            }
+
+            @Override
+            public void onDriverDetached(UsbSerialDriver driver) {
+                events.add("-" + driver.getDevice().getDeviceName());
+            }
+        });
+    }
+
+    @Test
+    public void refresh() {
+        UsbDevice serial1 = device("/dev/bus/usb/001/002", 0x1234, 1);
+        UsbDevice serial2 = device("/dev/bus/usb/001/003", 0x1234, 1);
+        UsbDevice other = device("/dev/bus/usb/001/004", 0x5678, 1);
+        devices.addAll(Arrays.asList(serial1, other, serial2));
+        List<UsbSerialDriver> drivers = registry.refresh();
+        assertEquals(2, drivers.size());
+        assertEquals(3, probeCount);
+        assertEquals(Arrays.asList("+/dev/bus/usb/001/002", "+/dev/bus/usb/001/003"), events);
+
+        // new UsbDevice instances for same devices
+        events.clear();
+        devices.clear();
+        devices.addAll(Arrays.asList(device("/dev/bus/usb/001/002", 0x1234, 1), device("/dev/bus/usb/001/004", 0x5678, 1), serial2));
+        List<UsbSerialDriver> drivers2 = registry.refresh();
+        assertEquals(drivers, drivers2);
+        assertSame(drivers.get(0), drivers2.get(0));
+        assertEquals(3, probeCount);
+        assertEquals(Collections.emptyList(), events);
+
+        // re-plugged device gets new name
+        devices.remove(0);
+        UsbDevice serial3 = device("/dev/bus/usb/001/005", 0x1234, 1);
+        devices.add(serial3);
+        drivers2 = registry.refresh();
+        assertEquals(Arrays.asList("-/dev/bus/usb/001/002", "+/dev/bus/usb/001/005"), events);
+        assertEquals(2, drivers2.size());
+        assertSame(drivers.get(1), drivers2.get(0));
+        assertSame(serial3, drivers2.get(1).getDevice());
+        assertEquals(4, probeCount);
+    }
+
+    @Test
+    public void attachDetach() {
+        UsbDevice serial1 = device("/dev/bus/usb/001/002", 0x1234, 1);
+        UsbDevice other = device("/dev/bus/usb/001/003", 0x5678, 1);
+        UsbSerialDriver driver = registry.onAttached(serial1);
+        assertSame(serial1, driver.getDevice());
+        assertSame(driver, registry.onAttached(device("/dev/bus/usb/001/002", 0x1234, 1)));
+        assertNull(registry.onAttached(other));
+        assertNull(registry.onAttached(other));
+        assertEquals(2, probeCount);
+        assertSame(driver, registry.getDriver(serial1));
+        assertEquals(Collections.singletonList(driver), registry.getDrivers());
+        assertEquals(Collections.singletonList("+/dev/bus/usb/001/002"), events);
+
+        assertNull(registry.onDetached(other));
+        assertSame(driver, registry.onDetached(device("/dev/bus/usb/001/002", 0x1234, 1)));
+        assertNull(registry.onDetached(serial1));
+        assertTrue(registry.getDrivers().isEmpty());
+        assertEquals(Arrays.asList("+/dev/bus/usb/001/002", "-/dev/bus/usb/001/002"), events);
+
+        assertSame(registry.onAttached(serial1).getClass(), FtdiSerialDriver.class); // probed again after detach
+        assertEquals(3, probeCount);
+    }
+}
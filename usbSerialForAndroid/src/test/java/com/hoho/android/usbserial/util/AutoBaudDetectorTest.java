@@ -0,0 +1,150 @@
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+import com.hoho.android.usbserial.driver.UsbSerialPort.LineError;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AutoBaudDetectorTest {
+
+    /**
+     * Port receiving text repeatedly sent with fixed baud rate in 8N1 format,
+     * decoded like an UART with the currently configured baud rate.
+     */
+    private static class SimulatedPort {
+        static final int IDLE_BITS = 30; // after text
+        final UsbSerialPort port = mock(UsbSerialPort.class);
+        final boolean[] signal; // one entry per bit at send baud rate, true = idle level
+        final int sendBaudRate;
+        int receiveBaudRate = 9600;
+        double time = 0; // seconds
+        int framingErrors = 0;
+
+        SimulatedPort(int sendBaudRate, String text, boolean lineErrors) throws Exception {
+            this.sendBaudRate = sendBaudRate;
+            byte[] data = text.getBytes(StandardCharsets.ISO_8859_1);
+            signal = new boolean[data.length * 10 + IDLE_BITS];
+            for (int i = 0; i < data.length; i++) {
+                signal[i * 10] = false; // start bit
+                for (int bit = 0; bit < 8; bit++)
+                    signal[i * 10 + 1 + bit] = ((data[i] >> bit) & 1) != 0;
+                signal[i * 10 + 9] = true; // stop bit
+            }
+            Arrays.fill(signal, data.length * 10, signal.length, true);
+            doAnswer(invocation -> {
+                receiveBaudRate = invocation.getArgument(0);
+                return null;
+            }).when(port).setParameters(anyInt(), anyInt(), anyInt(), anyInt());
+            doAnswer(invocation -> receive(invocation.getArgument(0))).when(port).read(any(byte[].class), anyInt());
+            when(port.getSupportedLineErrors()).thenReturn(lineErrors ? EnumSet.allOf(LineError.class) : EnumSet.noneOf(LineError.class));
+            when(port.getLineErrorCount(LineError.FRAMING)).thenAnswer(invocation -> framingErrors);
+        }
+
+        boolean level(double time) {
+            return signal[(int) (time * sendBaudRate) % signal.length];
+        }
+
+        /** decode 20 characters at send baud rate */
+        int receive(byte[] buffer) {
+            double end = time + 200.0 / sendBaudRate;
+            double bitTime = 1.0 / receiveBaudRate;
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            while (time < end && received.size() < buffer.length) {
+                if (level(time)) {
+                    time += bitTime / 16;
+                    continue;
+                }
+                int b = 0;
+                for (int bit = 0; bit < 8; bit++)
+                    if (level(time + (1.5 + bit) * bitTime))
+                        b |= 1 << bit;
+                if (!level(time + 9.5 * bitTime))
+                    framingErrors++;
+                received.write(b);
+                time += 9.5 * bitTime;
+            }
+            byte[] data = received.toByteArray();
+            System.arraycopy(data, 0, buffer, 0, data.length);
+            return data.length;
+        }
+    }
+
+    private static final String TEXT = "$GPGGA,123519,4807.038,N,01131.000,E,1,08,0.9,545.4,M,46.9,M,,*47\r\n";
+
+    @Test
+    public void lineErrors() throws Exception {
+        SimulatedPort simulatedPort = new SimulatedPort(38400, TEXT, true);
+        AutoBaudDetector detector = new AutoBaudDetector(simulatedPort.port);
+        AutoBaudDetector.Result result = detector.detect();
+        assertEquals(38400, result.getBaudRate());
+        assertTrue(result.toString(), result.getConfidence() >= 80); // 19200 with plausible data not counted
+        assertEquals(Arrays.asList(9600, 115200, 19200, 38400), new ArrayList<>(result.getScores().keySet())); // stopped at first good candidate
+        assertTrue(result.toString(), result.getScores().get(9600) < 50);
+        assertTrue(result.toString(), result.getScores().get(115200) < 50);
+        verify(simulatedPort.port, times(4)).setParameters(anyInt(), anyInt(), anyInt(), anyInt()); // no redundant call
+        assertEquals(38400, simulatedPort.receiveBaudRate);
+
+        simulatedPort = new SimulatedPort(57600, TEXT, true);
+        detector = new AutoBaudDetector(simulatedPort.port);
+        result = detector.detect();
+        assertEquals(57600, result.getBaudRate());
+        assertEquals(AutoBaudDetector.DEFAULT_BAUD_RATES.length, result.getScores().size());
+        assertEquals(57600, simulatedPort.receiveBaudRate); // reset to best candidate
+    }
+
+    @Test
+    public void characterStatistics() throws Exception {
+        SimulatedPort simulatedPort = new SimulatedPort(4800, TEXT, false);
+        doThrow(new UnsupportedOperationException()).when(simulatedPort.port).purgeHwBuffers(anyBoolean(), anyBoolean());
+        AutoBaudDetector detector = new AutoBaudDetector(simulatedPort.port);
+        detector.setBaudRates(9600, 115200, 2400, 4800, 1200);
+        AutoBaudDetector.Result result = detector.detect();
+        assertEquals(4800, result.getBaudRate());
+        assertTrue(result.toString(), result.getConfidence() >= 80);
+        verify(simulatedPort.port, times(1)).purgeHwBuffers(false, true);
+    }
+
+    @Test
+    public void binaryData() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 1; i < 256; i += 7)
+            text.append((char) i);
+        SimulatedPort simulatedPort = new SimulatedPort(115200, text.toString(), true);
+        AutoBaudDetector detector = new AutoBaudDetector(simulatedPort.port);
+        detector.setTextData(false);
+        detector.setBaudRates(921600, 460800, 230400, 115200, 57600);
+        AutoBaudDetector.Result result = detector.detect();
+        assertEquals(115200, result.getBaudRate());
+    }
+
+    @Test
+    public void noData() throws Exception {
+        UsbSerialPort port = mock(UsbSerialPort.class);
+        when(port.getSupportedLineErrors()).thenReturn(EnumSet.noneOf(LineError.class));
+        AutoBaudDetector detector = new AutoBaudDetector(port);
+        detector.setSampleSize(5, 10);
+        detector.setBaudRates(9600, 19200);
+        AutoBaudDetector.Result result = detector.detect();
+        assertEquals(0, result.getBaudRate());
+        assertEquals(0, result.getConfidence());
+        assertEquals(2, result.getScores().size());
+    }
+}
@@ -0,0 +1,310 @@
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.SerialTimeoutException;
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class CmuxTest {
+
+    private static final int SABM = 0x3f, UA = 0x73, DM = 0x1f, DISC = 0x53, UIH = 0xef;
+
+    private final UsbSerialPort port = mock(UsbSerialPort.class);
+    // responses are written from another thread
+    private final List<byte[]> written = Collections.synchronizedList(new ArrayList<>()); // raw frames
+    private final List<int[]> writtenHeaders = Collections.synchronizedList(new ArrayList<>()); // dlci, control
+    private final List<byte[]> writtenData = Collections.synchronizedList(new ArrayList<>());
+    private Cmux cmux;
+
+    @Before
+    public void setUp() throws Exception {
+        cmux = new Cmux(port);
+        doAnswer(invocation -> {
+            modemReceive(invocation.getArgument(0));
+            return null;
+        }).when(port).write(any(byte[].class), anyInt());
+    }
+
+    private static int fcs(byte[] data, int offset, int length) {
+        int fcs = 0xff;
+        for (int i = offset; i < offset + length; i++) {
+            fcs ^= data[i] & 0xff;
+            for (int bit = 0; bit < 8; bit++)
+                fcs = (fcs & 1) != 0 ? (fcs >> 1) ^ 0xe0 : fcs >> 1;
+        }
+        return 0xff - fcs;
+    }
+
+    /** frame sent by modem */
+    private byte[] frame(int dlci, int control, byte[] data) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write((dlci << 2) | 0x03);
+        header.write(control);
+        if (cmux.getMode() == Cmux.Mode.BASIC) {
+            if (data.length > 127) {
+                header.write(data.length << 1);
+                header.write(data.length >> 7);
+            } else {
+                header.write((data.length << 1) | 1);
+            }
+            byte[] h = header.toByteArray();
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(0xf9);
+            frame.write(h, 0, h.length);
+            frame.write(data, 0, data.length);
+            frame.write(fcs(h, 0, h.length));
+            frame.write(0xf9);
+            return frame.toByteArray();
+        } else {
+            byte[] h = header.toByteArray();
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            content.write(h, 0, h.length);
+            content.write(data, 0, data.length);
+            content.write(fcs(h, 0, h.length));
+            ByteArrayOutputStream frame = new ByteArrayOutputStream();
+            frame.write(0x7e);
+            for (byte b : content.toByteArray()) {
+                if (b == 0x7e || b == 0x7d || b == 0x11 || b == 0x13) {
+                    frame.write(0x7d);
+                    frame.write(b ^ 0x20);
+                } else {
+                    frame.write(b);
+                }
+            }
+            frame.write(0x7e);
+            return frame.toByteArray();
+        }
+    }
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            data[i] = (byte) values[i];
+        return data;
+    }
+
+    /** decode frame written by Cmux and answer like a modem */
+    private void modemReceive(byte[] frame) throws Exception {
+        written.add(frame);
+        byte[] content;
+        int dataOffset;
+        if (frame[0] == (byte) 0xf9) {
+            assertEquals((byte) 0xf9, frame[frame.length - 1]);
+            dataOffset = (frame[3] & 1) != 0 ? 4 : 5;
+            content = Arrays.copyOfRange(frame, 1, frame.length - 1);
+            assertEquals(content[content.length - 1] & 0xff, fcs(content, 0, dataOffset - 1));
+        } else {
+            assertEquals((byte) 0x7e, frame[0]);
+            assertEquals((byte) 0x7e, frame[frame.length - 1]);
+            ByteArrayOutputStream unescaped = new ByteArrayOutputStream();
+            for (int i = 1; i < frame.length - 1; i++) {
+                assertTrue(frame[i] != 0x7e && frame[i] != 0x11 && frame[i] != 0x13);
+                if (frame[i] == 0x7d)
+                    unescaped.write(frame[++i] ^ 0x20);
+                else
+                    unescaped.write(frame[i]);
+            }
+            content = unescaped.toByteArray();
+            dataOffset = 3;
+            assertEquals(content[content.length - 1] & 0xff, fcs(content, 0, 2));
+        }
+        int dlci = (content[0] & 0xff) >> 2;
+        int control = content[1] & 0xff;
+        byte[] data = Arrays.copyOfRange(content, dataOffset - 1, content.length - 1);
+        writtenHeaders.add(new int[]{dlci, control});
+        writtenData.add(data);
+        if (control == SABM || control == DISC)
+            cmux.onNewData(frame(dlci, UA, new byte[0]));
+        if (control == UIH && dlci == 0 && data[0] == (byte) 0xc3) // close down
+            cmux.onNewData(frame(0, UIH, bytes(0xc1, 0x01)));
+    }
+
+    private void clearWritten() {
+        written.clear();
+        writtenHeaders.clear();
+        writtenData.clear();
+    }
+
+    @Test
+    public void basicMode() throws Exception {
+        cmux.open(100);
+        assertTrue(cmux.isOpen());
+        assertArrayEquals(bytes(0xf9, 0x03, 0x3f, 0x01, 0x1c, 0xf9), written.get(0)); // SABM example from 27.010
+        assertArrayEquals(bytes(0xf9, 0x03, 0x73, 0x01, 0xd7, 0xf9), frame(0, UA, new byte[0]));
+
+        clearWritten();
+        Cmux.Channel channel = cmux.getChannel(1);
+        channel.open(100);
+        assertTrue(channel.isOpen());
+        assertEquals(2, written.size());
+        assertArrayEquals(new int[]{1, SABM}, writtenHeaders.get(0));
+        assertArrayEquals(bytes(0xe3, 0x05, 0x07, 0x0d), writtenData.get(1)); // MSC DTR+RTS
+
+        // streaming decoder, frame split into single bytes
+        byte[] data = "\r\nOK\r\n".getBytes();
+        for (byte b : frame(1, UIH, data))
+            cmux.onNewData(new byte[]{b});
+        byte[] buffer = new byte[100];
+        assertEquals(data.length, channel.read(buffer, 100));
+        assertArrayEquals(data, Arrays.copyOf(buffer, data.length));
+        assertEquals(0, channel.read(buffer, 10));
+
+        // invalid FCS
+        byte[] frame = frame(1, UIH, data);
+        frame[frame.length - 2]++;
+        cmux.onNewData(frame);
+        assertEquals(1, cmux.getFcsErrorCount());
+        assertEquals(0, channel.read(buffer, 10));
+
+        // write split into max frame size
+        clearWritten();
+        data = new byte[100];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) i;
+        channel.write(data, 100);
+        assertEquals(4, written.size());
+        ByteArrayOutputStream writtenStream = new ByteArrayOutputStream();
+        for (int i = 0; i < written.size(); i++) {
+            assertArrayEquals(new int[]{1, UIH}, writtenHeaders.get(i));
+            assertTrue(writtenData.get(i).length <= Cmux.DEFAULT_MAX_FRAME_SIZE);
+            writtenStream.write(writtenData.get(i), 0, writtenData.get(i).length);
+        }
+        assertArrayEquals(data, writtenStream.toByteArray());
+
+        // modem status with flow control
+        clearWritten();
+        cmux.onNewData(frame(0, UIH, bytes(0xe3, 0x05, 0x07, 0x8f))); // MSC FC, RTR, RTC, DV
+        cmux.waitResponses();
+        assertArrayEquals(bytes(0xe1, 0x05, 0x07, 0x8f), writtenData.get(0)); // response
+        assertTrue(channel.getCTS());
+        assertTrue(channel.getDSR());
+        assertTrue(channel.getCD());
+        assertFalse(channel.getRI());
+        assertFalse(channel.getXON());
+        SerialTimeoutException e = assertThrows(SerialTimeoutException.class, () -> channel.write(new byte[1], 50));
+        assertEquals(0, e.bytesTransferred);
+        cmux.onNewData(frame(0, UIH, bytes(0xe3, 0x05, 0x07, 0x8d)));
+        assertTrue(channel.getXON());
+        channel.write(new byte[1], 50);
+
+        // multiplexer flow control
+        cmux.onNewData(frame(0, UIH, bytes(0x63, 0x01))); // FCoff
+        assertFalse(channel.getXON());
+        assertThrows(SerialTimeoutException.class, () -> channel.write(new byte[1], 50));
+        cmux.onNewData(frame(0, UIH, bytes(0xa3, 0x01))); // FCon
+        channel.write(new byte[1], 50);
+
+        clearWritten();
+        channel.close(100);
+        assertFalse(channel.isOpen());
+        assertArrayEquals(new int[]{1, DISC}, writtenHeaders.get(0));
+        cmux.close(100);
+        assertFalse(cmux.isOpen());
+        assertArrayEquals(bytes(0xc3, 0x01), writtenData.get(1));
+    }
+
+    @Test
+    public void responses() throws Exception {
+        cmux.open(100);
+        Cmux.Channel channel = cmux.getChannel(1);
+        channel.open(100);
+        assertEquals(0x07, written.get(1)[1] & 0xff); // C/R set in commands from initiator
+
+        clearWritten();
+        cmux.onNewData(frame(3, SABM, new byte[0]));
+        cmux.onNewData(frame(1, DISC, new byte[0]));
+        cmux.waitResponses();
+        assertArrayEquals(new int[]{3, DM}, writtenHeaders.get(0));
+        assertEquals(0x0d, written.get(0)[1] & 0xff); // C/R cleared in responses from initiator
+        assertArrayEquals(new int[]{1, UA}, writtenHeaders.get(1));
+        assertEquals(0x05, written.get(1)[1] & 0xff);
+        assertFalse(channel.isOpen());
+    }
+
+    @Test
+    public void advancedMode() throws Exception {
+        cmux.setMode(Cmux.Mode.ADVANCED);
+        cmux.open(100);
+        Cmux.Channel channel = cmux.getChannel(2);
+        channel.open(100);
+        byte[] data = bytes(0x7e, 0x7d, 0x11, 0x13, 0xf9, 0x41);
+        byte[] frame = frame(2, UIH, data);
+        cmux.onNewData(Arrays.copyOfRange(frame, 0, 5));
+        cmux.onNewData(Arrays.copyOfRange(frame, 5, frame.length));
+        byte[] buffer = new byte[100];
+        assertEquals(data.length, channel.read(buffer, 100));
+        assertArrayEquals(data, Arrays.copyOf(buffer, data.length));
+
+        clearWritten();
+        channel.write(data, 100);
+        assertArrayEquals(data, writtenData.get(0));
+        assertEquals(data.length + 5 + 4, written.get(0).length); // flags, address, control, fcs, 4 escapes
+    }
+
+    @Test
+    public void longFrames() throws Exception {
+        cmux.setMaxFrameSize(200);
+        cmux.open(100);
+        Cmux.Channel channel = cmux.getChannel(1);
+        channel.open(100);
+        byte[] data = new byte[150];
+        Arrays.fill(data, (byte) 0x55);
+        cmux.onNewData(frame(1, UIH, data));
+        byte[] buffer = new byte[200];
+        assertEquals(data.length, channel.read(buffer, 100));
+
+        clearWritten();
+        channel.write(data, 100);
+        assertEquals(1, written.size());
+        assertArrayEquals(data, writtenData.get(0));
+
+        byte[] tooLong = new byte[201];
+        cmux.onNewData(frame(1, UIH, tooLong));
+        assertEquals(0, channel.read(buffer, 10));
+    }
+
+    @Test
+    public void receiveFlowControl() throws Exception {
+        cmux.open(100);
+        Cmux.Channel channel = cmux.getChannel(1);
+        channel.open(100);
+        clearWritten();
+        byte[] data = new byte[Cmux.DEFAULT_MAX_FRAME_SIZE];
+        int received = 0;
+        while (written.isEmpty()) {
+            cmux.onNewData(frame(1, UIH, data));
+            cmux.waitResponses();
+            received += data.length;
+        }
+        assertTrue(received <= Cmux.RECEIVE_BUFFER_SIZE);
+        assertArrayEquals(bytes(0xe3, 0x05, 0x07, 0x0f), writtenData.get(0)); // MSC FC
+
+        clearWritten();
+        byte[] buffer = new byte[Cmux.RECEIVE_BUFFER_SIZE];
+        assertEquals(received, channel.read(buffer, 100));
+        assertArrayEquals(bytes(0xe3, 0x05, 0x07, 0x0d), writtenData.get(0)); // MSC no FC
+
+        // overflow
+        for (int i = 0; i < Cmux.RECEIVE_BUFFER_SIZE / data.length + 1; i++)
+            cmux.onNewData(frame(1, UIH, data));
+        assertTrue(channel.getOverflowCount() > 0);
+        assertEquals(Cmux.RECEIVE_BUFFER_SIZE, channel.read(buffer, 100));
+    }
+}
@@ -0,0 +1,138 @@
+package com.hoho.android.usbserial.util;
+
+import com.hoho.android.usbserial.driver.UsbSerialPort;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+public class LoopbackBenchmarkTest {
+
+    /** Port with TX connected to RX, optionally dropping, duplicating or corrupting one byte */
+    private static class LoopbackPort {
+        final UsbSerialPort port = mock(UsbSerialPort.class);
+        final ByteArrayOutputStream loopback = new ByteArrayOutputStream();
+        long position = 0;
+        long dropAt = -1;
+        long duplicateAt = -1;
+        long corruptAt = -1;
+
+        LoopbackPort() throws Exception {
+            doAnswer(invocation -> {
+                write(invocation.getArgument(0));
+                return null;
+            }).when(port).write(any(byte[].class), anyInt());
+            doAnswer(invocation -> read(invocation.getArgument(0), invocation.getArgument(1)))
+                    .when(port).read(any(byte[].class), anyInt());
+        }
+
+        synchronized void write(byte[] data) throws InterruptedException {
+            while (loopback.size() > 16 * 1024)
+                wait(); // like device buffer full
+            for (byte b : data) {
+                if (position == dropAt) {
+                    // drop
+                } else if (position == duplicateAt) {
+                    loopback.write(b);
+                    loopback.write(b);
+                } else if (position == corruptAt) {
+                    loopback.write(b ^ 0x10);
+                } else {
+                    loopback.write(b);
+                }
+                position++;
+            }
+            notifyAll();
+        }
+
+        synchronized int read(byte[] buffer, int timeout) throws InterruptedException {
+            if (loopback.size() == 0)
+                wait(timeout);
+            byte[] data = loopback.toByteArray();
+            int len = Math.min(data.length, buffer.length);
+            System.arraycopy(data, 0, buffer, 0, len);
+            loopback.reset();
+            loopback.write(data, len, data.length - len);
+            notifyAll();
+            return len;
+        }
+    }
+
+    @Test
+    public void checker() {
+        byte[] data = LoopbackBenchmark.Prbs.SEQUENCE;
+        LoopbackBenchmark.Checker checker = new LoopbackBenchmark.Checker();
+        checker.check(data, 10);
+        checker.check(Arrays.copyOfRange(data, 20, 40), 20); // 10 lost
+        checker.check(Arrays.copyOfRange(data, 35, 50), 15); // 5 duplicated
+        byte[] corrupted = Arrays.copyOfRange(data, 50, 60);
+        corrupted[3] ^= 1;
+        corrupted[4] ^= 1;
+        checker.check(corrupted, 10);
+        checker.flush();
+        assertEquals(55, checker.received);
+        assertEquals(60, checker.getPosition());
+        assertEquals(10, checker.lost);
+        assertEquals(5, checker.duplicated);
+        assertEquals(2, checker.corrupted);
+    }
+
+    @Test
+    public void intact() throws Exception {
+        LoopbackPort loopbackPort = new LoopbackPort();
+        LoopbackBenchmark benchmark = new LoopbackBenchmark(loopbackPort.port);
+        benchmark.setThroughputTest(200, 1000);
+        benchmark.setLatencyTest(20, 10);
+        benchmark.setTimeout(100);
+        LoopbackBenchmark.Report report = benchmark.run();
+        assertTrue(report.toString(), report.isIntact());
+        assertTrue(report.getBytesWritten() > 200 * 10);
+        assertEquals(report.getBytesWritten(), report.getBytesRead());
+        assertTrue(report.getWriteBytesPerSecond() > 0);
+        assertTrue(report.getReadBytesPerSecond() > 0);
+        assertEquals(20, report.getLatencyCount());
+        assertEquals(0, report.getLatencyTimeouts());
+        assertTrue(report.getLatencyMicros(50) <= report.getLatencyMicros(99));
+        assertTrue(report.getLatencyMicros(99) <= report.getLatencyMicros(100));
+        assertEquals(20, Arrays.stream(report.getLatencyHistogram()).sum());
+    }
+
+    @Test
+    public void errors() throws Exception {
+        LoopbackPort loopbackPort = new LoopbackPort();
+        loopbackPort.dropAt = 5000;
+        loopbackPort.duplicateAt = 7000;
+        loopbackPort.corruptAt = 9000;
+        LoopbackBenchmark benchmark = new LoopbackBenchmark(loopbackPort.port);
+        benchmark.setThroughputTest(200, 1000);
+        benchmark.setLatencyTest(0, 1);
+        benchmark.setTimeout(100);
+        LoopbackBenchmark.Report report = benchmark.run();
+        assertFalse(report.isIntact());
+        assertEquals(report.toString(), 1, report.getLostBytes());
+        assertEquals(1, report.getDuplicatedBytes());
+        assertEquals(1, report.getCorruptedBytes());
+        assertEquals(report.getBytesWritten(), report.getBytesRead());
+        assertEquals(-1, report.getLatencyMicros(50));
+
+        loopbackPort = new LoopbackPort();
+        loopbackPort.dropAt = 0;
+        benchmark = new LoopbackBenchmark(loopbackPort.port);
+        benchmark.setThroughputTest(0, 1);
+        benchmark.setLatencyTest(6, 1);
+        benchmark.setTimeout(50);
+        report = benchmark.run();
+        assertEquals(1, report.getLatencyTimeouts()); // 1st probe lost, further probes received
+        assertEquals(5, report.getLatencyCount());
+        assertEquals(1, report.getLostBytes());
+    }
+}
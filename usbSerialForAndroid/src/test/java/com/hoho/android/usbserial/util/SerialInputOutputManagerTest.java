@@ -1,16 +1,29 @@
 package com.hoho.android.usbserial.util;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import android.hardware.usb.UsbEndpoint;
 import android.os.Process;
 
 import com.hoho.android.usbserial.driver.CommonUsbSerialPort;
+import com.hoho.android.usbserial.driver.SerialTimeoutException;
+import com.hoho.android.usbserial.driver.UsbSerialPortProfile;
 
 import org.junit.Test;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 public class SerialInputOutputManagerTest {
 
 
@@ -52,4 +65,58 @@ public class SerialInputOutputManagerTest {
         assertEquals(UnknownError.class, errorListener.e.getCause().getClass());
         assertEquals("error1", errorListener.e.getCause().getMessage());
     }
+
+    @Test
+    public void configure() throws Exception {
+        UsbEndpoint readEndpoint = mock(UsbEndpoint.class);
+        when(readEndpoint.getMaxPacketSize()).thenReturn(64);
+        CommonUsbSerialPort port = mock(CommonUsbSerialPort.class);
+        when(port.getReadEndpoint()).thenReturn(readEndpoint);
+        when(port.getProfile()).thenReturn(new UsbSerialPortProfile().setFifoSizes(256, 128));
+        SerialInputOutputManager manager = new SerialInputOutputManager(port);
+
+        manager.configure(0);
+        assertEquals(256, manager.getReadBufferSize());
+        assertEquals(4096, manager.getWriteBufferSize()); // not reduced
+        verify(port).setWriteBufferSize(128);
+
+        manager.configure(921600);
+        assertEquals(1856, manager.getReadBufferSize());
+        assertEquals(4096, manager.getWriteBufferSize());
+        verify(port).setWriteBufferSize(1856);
+    }
+
+    @Test
+    public void flush() throws Exception {
+        UsbEndpoint readEndpoint = mock(UsbEndpoint.class);
+        when(readEndpoint.getMaxPacketSize()).thenReturn(16);
+        CommonUsbSerialPort port = mock(CommonUsbSerialPort.class);
+        when(port.getReadEndpoint()).thenReturn(readEndpoint);
+        when(port.isOpen()).thenReturn(true);
+        when(port.read(any(byte[].class), anyInt())).thenAnswer(invocation -> {
+            Thread.sleep(10);
+            return 0;
+        });
+        List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            Thread.sleep(50);
+            calls.add("write " + invocation.<byte[]>getArgument(0).length);
+            return null;
+        }).when(port).write(any(byte[].class), anyInt());
+        doAnswer(invocation -> calls.add("drain")).when(port).drain(anyInt());
+        SerialInputOutputManager manager = new SerialInputOutputManager(port);
+        manager.setThreadPriority(Process.THREAD_PRIORITY_DEFAULT);
+
+        manager.writeAsync(new byte[10]);
+        assertThrows(IOException.class, () -> manager.flush(100)); // not started
+        manager.start();
+        manager.flush(1000);
+        assertEquals(Arrays.asList("write 10", "drain"), calls); // drain after write completed
+
+        manager.writeAsync(new byte[20]);
+        assertThrows(SerialTimeoutException.class, () -> manager.flush(10));
+        manager.flush(0);
+        assertEquals(Arrays.asList("write 10", "drain", "write 20", "drain"), calls);
+        manager.stop();
+    }
 }
@@ -0,0 +1,115 @@
+package com.hoho.android.usbserial.util;
+
+import android.hardware.usb.UsbDeviceConnection;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UsbDescriptorsTest {
+
+    // digispark + IAD
+    private static final byte[] RAW_DESCRIPTORS = HexDump.hexStringToByteArray(
+            "12 01 10 01 EF 02 01 08 D0 16 7E 08 00 01 01 02 00 01\n" +
+            "09 02 4B 00 02 01 00 80 32\n" +
+            "08 0B 00 02 02 02 01 00\n" +
+            "09 04 00 00 01 02 02 01 00\n" +
+            "05 24 00 10 01\n" +
+            "04 24 02 02\n" +
+            "05 24 06 00 01\n" +
+            "05 24 01 03 01\n" +
+            "07 05 83 03 08 00 FF\n" +
+            "09 04 01 00 02 0A 00 00 00\n" +
+            "07 05 01 02 08 00 00\n" +
+            "07 05 81 02 40 02 00");
+
+    @Test
+    public void parse() {
+        UsbDescriptors descriptors = new UsbDescriptors(RAW_DESCRIPTORS);
+        assertEquals(12, descriptors.getDescriptors().size());
+        assertSame(RAW_DESCRIPTORS, descriptors.getRawDescriptors());
+
+        UsbDescriptors.DeviceDescriptor device = descriptors.getDeviceDescriptor();
+        assertEquals(0x110, device.getUsbVersion());
+        assertEquals(0xef, device.getDeviceClass());
+        assertEquals(2, device.getDeviceSubclass());
+        assertEquals(1, device.getDeviceProtocol());
+        assertEquals(8, device.getMaxPacketSize0());
+        assertEquals(0x16d0, device.getVendorId());
+        assertEquals(0x087e, device.getProductId());
+        assertEquals(0x100, device.getDeviceVersion());
+        assertEquals(1, device.getConfigurationCount());
+        assertEquals("12 01 10 01 EF 02 01 08 D0 16 7E 08 00 01 01 02 00 01", device.toString());
+
+        UsbDescriptors.ConfigurationDescriptor configuration = descriptors.getDescriptors(UsbDescriptors.ConfigurationDescriptor.class).get(0);
+        assertEquals(RAW_DESCRIPTORS.length - 18, configuration.getTotalLength());
+        assertEquals(2, configuration.getInterfaceCount());
+        assertEquals(0x32, configuration.getMaxPower());
+
+        UsbDescriptors.InterfaceAssociationDescriptor iad = descriptors.getDescriptors(UsbDescriptors.InterfaceAssociationDescriptor.class).get(0);
+        assertEquals(0, iad.getFirstInterface());
+        assertEquals(2, iad.getInterfaceCount());
+        assertEquals(2, iad.getFunctionClass());
+        assertEquals(2, iad.getFunctionSubclass());
+
+        List<UsbDescriptors.InterfaceDescriptor> interfaces = descriptors.getDescriptors(UsbDescriptors.InterfaceDescriptor.class);
+        assertEquals(2, interfaces.size());
+        assertEquals(1, interfaces.get(1).getInterfaceNumber());
+        assertEquals(0x0a, interfaces.get(1).getInterfaceClass());
+        assertEquals(2, interfaces.get(1).getEndpointCount());
+
+        List<UsbDescriptors.CdcFunctionalDescriptor> functionals = descriptors.getDescriptors(UsbDescriptors.CdcFunctionalDescriptor.class);
+        assertEquals(4, functionals.size());
+        assertEquals(UsbDescriptors.CdcFunctionalDescriptor.SUBTYPE_ACM, functionals.get(1).getSubtype());
+        assertEquals(2, functionals.get(1).getCapabilities());
+        assertEquals(UsbDescriptors.CdcFunctionalDescriptor.SUBTYPE_UNION, functionals.get(2).getSubtype());
+        assertEquals(0, functionals.get(2).getControlInterface());
+        assertEquals(1, functionals.get(2).getSubordinateInterfaceCount());
+        assertEquals(1, functionals.get(2).getSubordinateInterface(0));
+
+        List<UsbDescriptors.EndpointDescriptor> endpoints = descriptors.getDescriptors(UsbDescriptors.EndpointDescriptor.class);
+        assertEquals(3, endpoints.size());
+        assertEquals(0x83, endpoints.get(0).getAddress());
+        assertEquals(3, endpoints.get(0).getAttributes());
+        assertEquals(0xff, endpoints.get(0).getInterval());
+        assertEquals(0x81, endpoints.get(2).getAddress());
+        assertEquals(0x240, endpoints.get(2).getMaxPacketSize());
+    }
+
+    @Test
+    public void invalid() {
+        assertTrue(new UsbDescriptors(null).getDescriptors().isEmpty());
+        assertNull(new UsbDescriptors(null).getDeviceDescriptor());
+        assertTrue(new UsbDescriptors(HexDump.hexStringToByteArray("01 02 02 82 02")).getDescriptors().isEmpty());
+
+        UsbDescriptors descriptors = new UsbDescriptors(HexDump.hexStringToByteArray("04 01 10 01 09 02 4B 00"));
+        assertEquals(1, descriptors.getDescriptors().size()); // truncated 2nd descriptor ignored
+        assertNull(descriptors.getDeviceDescriptor()); // too short
+        assertEquals(UsbDescriptors.TYPE_DEVICE, descriptors.getDescriptors().get(0).getType());
+        assertEquals(0x110, descriptors.getDescriptors().get(0).getWord(2));
+        assertEquals(0, descriptors.getDescriptors().get(0).getByte(4));
+    }
+
+    @Test
+    public void cache() {
+        UsbDeviceConnection connection = mock(UsbDeviceConnection.class);
+        assertTrue(UsbDescriptors.get(connection).getDescriptors().isEmpty()); // not cached
+        when(connection.getRawDescriptors()).thenReturn(RAW_DESCRIPTORS);
+        UsbDescriptors descriptors = UsbDescriptors.get(connection);
+        assertSame(descriptors, UsbDescriptors.get(connection));
+        verify(connection, times(2)).getRawDescriptors();
+
+        UsbDescriptors.remove(connection);
+        assertEquals(12, UsbDescriptors.get(connection).getDescriptors().size());
+        verify(connection, times(3)).getRawDescriptors();
+    }
+}